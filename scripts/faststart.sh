@@ -0,0 +1,50 @@
+#!/usr/bin/env bash
+# Starts the fast-start build (mvn -P faststart package): Spring's AOT generated bean definitions,
+# lazy initialization and an AppCDS archive of the classes startup loads. The archive only works
+# from an extracted jar, so each new jar is extracted into its own directory and a training run
+# (stopped once the context is refreshed) writes the archive. "faststart.sh train" just prepares a
+# new jar, which deploys do while the previous one keeps running. Other arguments are passed to the
+# application.
+jar=${CLARIFAI_JAR:-/home/pi/Clarifai-1.0.jar}
+# Must match the profiles the jar was built with (-Dfaststart.profiles)
+profiles=${CLARIFAI_PROFILES:-faststart,noopenapi}
+base=$(dirname "$jar")/faststart
+dir=$base/$(stat -c %Y "$jar")
+app=$dir/$(basename "$jar")
+flags=(-Dspring.aot.enabled=true -Dspring.profiles.active="$profiles")
+
+train=false
+if [ "$1" == "train" ]; then
+	train=true
+	shift
+fi
+
+if [ ! -f "$dir/trained" ]; then
+	rm -rf "$dir"
+	java -Djarmode=tools -jar "$jar" extract --destination "$dir" || exit 1
+	# Every bean is built so their classes are archived, with anything that keeps state pointed
+	# away from what a running instance uses
+	java -XX:ArchiveClassesAtExit="$dir/application.jsa" -Dspring.context.exit=onRefresh "${flags[@]}" \
+		-Dspring.main.lazy-initialization=false \
+		-DwatchEnabled=false \
+		-DjournalEnabled=false \
+		-DhistoryEnabled=false \
+		-DeventCacheEnabled=false \
+		-DclarifaiWarmup=false \
+		-DquotaStatePath="$dir/quota.state" \
+		-Ds3SpoolPath="$dir/spool" \
+		-jar "$app" "$@" \
+		|| echo "Training run failed, starting without a class archive"
+	touch "$dir/trained"
+fi
+if [ "$train" == "true" ]; then
+	exit 0
+fi
+
+# Older builds are no longer needed
+find "$base" -mindepth 1 -maxdepth 1 ! -path "$dir" -exec rm -rf {} +
+archive=()
+if [ -f "$dir/application.jsa" ]; then
+	archive=(-XX:SharedArchiveFile="$dir/application.jsa")
+fi
+exec java "${archive[@]}" "${flags[@]}" -jar "$app" "$@"
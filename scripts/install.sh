@@ -1,8 +1,15 @@
 #!/usr/bin/env bash
+# ./install.sh faststart installs the service for the fast-start build (mvn -P faststart package)
 host=frontdoor3
+service=clarifai.service
 
-scp -o StrictHostKeyChecking=no -r clarifai.service pi@$host:~/
+if [ "$1" == "faststart" ]; then
+	service=clarifai-faststart.service
+	scp -o StrictHostKeyChecking=no faststart.sh pi@$host:~/
+	ssh -t pi@$host -o StrictHostKeyChecking=no "chmod +x ~/faststart.sh"
+fi
+scp -o StrictHostKeyChecking=no -r $service pi@$host:~/clarifai.service
 ssh -t pi@$host -o StrictHostKeyChecking=no "sudo mv ~/clarifai.service /lib/systemd/system"
 ssh -t pi@$host -o StrictHostKeyChecking=no "sudo systemctl daemon-reload"
 ssh -t pi@$host -o StrictHostKeyChecking=no "sudo systemctl enable clarifai.service"
-ssh -t pi@$host -o StrictHostKeyChecking=no "sudo systemctl start clarifai.service"
\ No newline at end of file
+ssh -t pi@$host -o StrictHostKeyChecking=no "sudo systemctl start clarifai.service"
@@ -0,0 +1,86 @@
+#!/usr/bin/env bash
+# Compares the standard build with the fast-start build (mvn -P faststart package, started by
+# faststart.sh): milliseconds from launching java until the first request is answered, and how long
+# that first request took. Each run starts from an empty working directory, results are medians.
+# Run from the project root:
+#   scripts/startup-benchmark.sh [runs]
+# SKIP_BUILD=1 reuses the jars built by the previous run.
+runs=${1:-5}
+port=${PORT:-18082}
+work=${TMPDIR:-/tmp}/clarifai-startup-benchmark
+scripts=$(cd "$(dirname "$0")" && pwd)
+export CLARIFAI_JAR=$work/faststart/Clarifai-1.0.jar
+args=(
+	--server.port=$port
+	--basepath=$work/frames/
+	--ClarifaiPAT=benchmark
+	--ClarifaiAppId=benchmark
+	--ClarifaiUserId=benchmark
+	--modelId=people
+	--threshold=.75
+	--successThreshold=1
+	--notificationEmail=
+	--sendingEmailAccount=
+	--sendingEmailPassword=
+	--s3BucketName=benchmark
+	--s3Region=us-east-1
+	--logbackserver=127.0.0.1:1
+	--clarifaiWarmup=false
+)
+
+if [ "$SKIP_BUILD" != "1" ]; then
+	rm -rf "$work"
+	mkdir -p "$work/standard" "$work/faststart" "$work/frames"
+	# antrun is skipped so packaging doesn't deploy to the Pi
+	mvn -B -q clean package -DskipTests -Dmaven.antrun.skip=true || exit 1
+	cp target/Clarifai-1.0.jar "$work/standard/"
+	mvn -B -q -P faststart clean package -DskipTests -Dmaven.antrun.skip=true || exit 1
+	cp target/Clarifai-1.0.jar "$work/faststart/"
+	mkdir -p "$work/run"
+	(cd "$work/run" && "$scripts/faststart.sh" train "${args[@]}") >"$work/train.log" 2>&1
+fi
+
+# Prints the milliseconds until the first answered request and the milliseconds that request took
+measure() {
+	rm -rf "$work/run"
+	mkdir -p "$work/run"
+	local start=$(date +%s%N)
+	(cd "$work/run" && exec "$@" "${args[@]}") >"$work/app.log" 2>&1 &
+	local pid=$!
+	local result
+	while true; do
+		result=$(curl -s -o /dev/null -w '%{http_code} %{time_total}' "http://127.0.0.1:$port/isPaused")
+		if [ "${result%% *}" == "200" ]; then
+			break
+		fi
+		if ! kill -0 $pid 2>/dev/null; then
+			echo "Application exited, see $work/app.log" >&2
+			exit 1
+		fi
+		sleep .02
+	done
+	local end=$(date +%s%N)
+	kill $pid
+	wait $pid 2>/dev/null
+	echo "$(((end - start) / 1000000)) $(awk "BEGIN {print int(${result#* } * 1000)}")"
+}
+
+median() {
+	sort -n | awk '{ values[NR] = $1 } END { print values[int((NR + 1) / 2)] }'
+}
+
+printf "%-10s %12s %18s\n" build startup_ms first_request_ms
+for build in standard faststart; do
+	results=()
+	for ((i = 0; i < runs; i++)); do
+		if [ $build == standard ]; then
+			result=$(measure java -jar "$work/standard/Clarifai-1.0.jar") || exit 1
+		else
+			result=$(measure "$scripts/faststart.sh") || exit 1
+		fi
+		results+=("$result")
+	done
+	printf "%-10s %12s %18s\n" $build \
+		"$(printf "%s\n" "${results[@]}" | cut -d' ' -f1 | median)" \
+		"$(printf "%s\n" "${results[@]}" | cut -d' ' -f2 | median)"
+done
@@ -0,0 +1,152 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import com.clarifai.grpc.api.Data;
+import com.clarifai.grpc.api.Input;
+import com.clarifai.grpc.api.MultiOutputResponse;
+import com.clarifai.grpc.api.Output;
+import com.clarifai.grpc.api.PostModelOutputsRequest;
+import com.clarifai.grpc.api.status.Status;
+import com.clarifai.grpc.api.status.StatusCode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the clarifai request from frames on disk and evaluating its response. Run with {@code mvn -P benchmark test}, results (including the gc
+ * profiler's allocation rate) are written as JSON to {@code target/jmh-result.json}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+	/** Frames per request, 1 is an unbatched call */
+	@Param({"1", "5"})
+	public int frames;
+
+	/** Shrink frames before sending, as {@code imagePrepareEnabled} */
+	@Param({"true", "false"})
+	public boolean prepare;
+
+	private File directory;
+
+	private List<BatchedFrame> batch;
+
+	private MultiOutputResponse response;
+
+	private AnalysisManager manager;
+
+	private DecisionEngine engine;
+
+	private final DecisionEngine.Decision decision = new DecisionEngine.Decision();
+
+	private final Camera camera = new Camera(Camera.kDefault, "/var/lib/motion/", "people", .75, "", "", "", "", "Motion");
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("benchmark").toFile();
+		// Motion's default 1280x720 frame, with enough detail to be a realistic JPEG size
+		BufferedImage image = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, 1280, 720, Color.ORANGE));
+		graphics.fillRect(0, 0, 1280, 720);
+		for (int ai = 0; ai < 400; ai++) {
+			graphics.setColor(new Color(ai * 7919 & 0xFFFFFF));
+			graphics.fillOval(ai * 37 % 1280, ai * 53 % 720, 20 + ai % 40, 20 + ai % 30);
+		}
+		graphics.dispose();
+
+		batch = new ArrayList<>();
+		MultiOutputResponse.Builder aResponse =
+				MultiOutputResponse.newBuilder().setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS));
+		for (int ai = 0; ai < frames; ai++) {
+			File aFrame = new File(directory, "frame" + ai + ".jpg");
+			ImageIO.write(image, "jpg", aFrame);
+			batch.add(new BatchedFrame(aFrame, theFile -> {}, theFile -> {}));
+			aResponse.addOutputs(Output.newBuilder()
+					.setInput(Input.newBuilder().setId(String.valueOf(ai)))
+					.setData(Data.newBuilder()
+							.addConcepts(Concept.newBuilder().setName("people").setValue(ai % 2 == 0 ? .9f : .3f))
+							.addConcepts(Concept.newBuilder().setName("vehicle").setValue(.1f))));
+		}
+		response = aResponse.build();
+
+		PipelineMetrics aMetrics = new PipelineMetrics(new SimpleMeterRegistry());
+		CameraRegistry aCameras = new CameraRegistry(camera, Map.of());
+		engine = new DecisionEngine(aCameras, Map.of(), 5);
+		manager = new AnalysisManager(
+				null,
+				null,
+				null,
+				new ImagePreparer(new FrameBufferPool(1024 * 1024, 8), aMetrics, prepare, 640, .8f, false, 4),
+				null,
+				new WorkJournal(false, null, 0, 0),
+				new QuotaGovernor(List.of(Camera.kDefault), 5000, 100, 0, 1, 30, null, 0),
+				aMetrics,
+				new AnalysisHistory(false, null, 0, 5),
+				null,
+				null,
+				engine,
+				new MemoryBudget(0, 600, 5),
+				new EventCache(false, null, 0, 1, 0, "", 5));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] aFiles = directory.listFiles();
+		if (aFiles != null) {
+			for (File aFile : aFiles) {
+				aFile.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public PostModelOutputsRequest buildRequest() throws IOException {
+		List<FrameBuffer> aBuffers = new ArrayList<>(frames);
+		try {
+			return manager.buildRequest(camera, batch, aBuffers);
+		} finally {
+			aBuffers.forEach(FrameBuffer::close);
+		}
+	}
+
+	@Benchmark
+	public void evaluate() {
+		manager.handleResponse(camera, batch, response, 0);
+	}
+
+	/** Deciding one frame on its own, should show no allocation under the gc profiler */
+	@Benchmark
+	public DecisionEngine.Outcome decide() {
+		engine.decide(camera, response.getOutputs(0).getData().getConceptsList(), 0, decision);
+		return decision.getOutcome();
+	}
+}
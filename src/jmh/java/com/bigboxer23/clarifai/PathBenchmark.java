@@ -0,0 +1,68 @@
+package com.bigboxer23.clarifai;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Per request path handling: sanitizing the {@code file} parameter and building the S3 key prefix */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+	/** What motion sends, and a path with extra dots that needs rewriting */
+	@Param({"03-20240601123456-01.jpg", "03-20240601.123456.01.jpg"})
+	public String file;
+
+	private AnalysisController controller;
+
+	private AnalysisManager manager;
+
+	@Setup
+	public void setup() throws IOException {
+		PipelineMetrics aMetrics = new PipelineMetrics(new SimpleMeterRegistry());
+		CameraRegistry aCameras = new CameraRegistry(
+				new Camera(Camera.kDefault, "/var/lib/motion/", "people", .75, "", "", "", "", "Motion"), Map.of());
+		manager = new AnalysisManager(
+				null,
+				null,
+				null,
+				new ImagePreparer(new FrameBufferPool(1024, 1), aMetrics, false, 0, 1, false, 1),
+				null,
+				new WorkJournal(false, null, 0, 0),
+				new QuotaGovernor(List.of(Camera.kDefault), 5000, 100, 0, 1, 30, null, 0),
+				aMetrics,
+				new AnalysisHistory(false, null, 0, 5),
+				null,
+				null,
+				new DecisionEngine(aCameras, Map.of(), 5),
+				new MemoryBudget(0, 600, 5),
+				new EventCache(false, null, 0, 1, 0, "", 5));
+		controller = new AnalysisController(manager, null, null, null, null, aCameras, null, null);
+	}
+
+	@Benchmark
+	public String sanitizeFileInput() {
+		return controller.sanitizeFileInput(file);
+	}
+
+	@Benchmark
+	public String getDateString() {
+		return manager.getDateString();
+	}
+}
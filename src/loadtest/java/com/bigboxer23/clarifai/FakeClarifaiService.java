@@ -0,0 +1,99 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import com.clarifai.grpc.api.Data;
+import com.clarifai.grpc.api.Input;
+import com.clarifai.grpc.api.MultiOutputResponse;
+import com.clarifai.grpc.api.Output;
+import com.clarifai.grpc.api.PostModelOutputsRequest;
+import com.clarifai.grpc.api.V2Grpc;
+import com.clarifai.grpc.api.status.Status;
+import com.clarifai.grpc.api.status.StatusCode;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for clarifai's PostModelOutputs. Each call answers after {@code latency} plus up to
+ * {@code jitter} milliseconds without holding a thread, fails with UNAVAILABLE at {@code
+ * errorRate}, and scores each input as a person at {@code positiveRate}.
+ */
+public class FakeClarifaiService extends V2Grpc.V2ImplBase {
+	private final long myLatency;
+
+	private final long myJitter;
+
+	private final double myErrorRate;
+
+	private final double myPositiveRate;
+
+	private final ScheduledExecutorService myScheduler = Executors.newScheduledThreadPool(2, theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "fake-clarifai");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	private final AtomicLong myRequests = new AtomicLong();
+
+	private final AtomicLong myInputs = new AtomicLong();
+
+	private final AtomicLong myErrors = new AtomicLong();
+
+	public FakeClarifaiService(long theLatency, long theJitter, double theErrorRate, double thePositiveRate) {
+		myLatency = theLatency;
+		myJitter = theJitter;
+		myErrorRate = theErrorRate;
+		myPositiveRate = thePositiveRate;
+	}
+
+	@Override
+	public void postModelOutputs(
+			PostModelOutputsRequest theRequest, StreamObserver<MultiOutputResponse> theObserver) {
+		myRequests.incrementAndGet();
+		myInputs.addAndGet(theRequest.getInputsCount());
+		long aDelay = myLatency + (myJitter > 0 ? ThreadLocalRandom.current().nextLong(myJitter + 1) : 0);
+		myScheduler.schedule(() -> respond(theRequest, theObserver), aDelay, TimeUnit.MILLISECONDS);
+	}
+
+	private void respond(PostModelOutputsRequest theRequest, StreamObserver<MultiOutputResponse> theObserver) {
+		ThreadLocalRandom aRandom = ThreadLocalRandom.current();
+		if (aRandom.nextDouble() < myErrorRate) {
+			myErrors.incrementAndGet();
+			theObserver.onError(
+					io.grpc.Status.UNAVAILABLE.withDescription("injected").asRuntimeException());
+			return;
+		}
+		MultiOutputResponse.Builder aResponse =
+				MultiOutputResponse.newBuilder().setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS));
+		for (Input anInput : theRequest.getInputsList()) {
+			aResponse.addOutputs(Output.newBuilder()
+					.setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS))
+					.setInput(Input.newBuilder().setId(anInput.getId()))
+					.setData(Data.newBuilder()
+							.addConcepts(Concept.newBuilder()
+									.setName("people")
+									.setValue(aRandom.nextDouble() < myPositiveRate ? .95f : .05f))));
+		}
+		theObserver.onNext(aResponse.build());
+		theObserver.onCompleted();
+	}
+
+	public long getRequests() {
+		return myRequests.get();
+	}
+
+	public long getInputs() {
+		return myInputs.get();
+	}
+
+	public long getErrors() {
+		return myErrors.get();
+	}
+
+	public void shutdown() {
+		myScheduler.shutdownNow();
+	}
+}
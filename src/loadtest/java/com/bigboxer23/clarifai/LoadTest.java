@@ -0,0 +1,268 @@
+package com.bigboxer23.clarifai;
+
+import com.amazonaws.services.s3.AmazonS3;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Replays frames against {@code /analyze} of the real application, wired to an in-process fake of
+ * clarifai and a local S3 stand-in, then reports throughput, latency percentiles and how many
+ * frames were dropped or stored more than once.
+ *
+ * <p>Run with {@code mvn -P loadtest test -Dloadtest.args="rate=50 count=2000"}. Options are
+ * {@code name=value}:
+ *
+ * <ul>
+ *   <li>frames: directory of JPEGs to replay (default: synthetic 1280x720 frames)
+ *   <li>count: frames to send (default 500)
+ *   <li>rate: average frames per second (default 20)
+ *   <li>burst: frames sent together in each burst, spaced to keep the average rate (default 1)
+ *   <li>latency/jitter: fake clarifai response time in milliseconds (defaults 300/100)
+ *   <li>errorRate: fraction of clarifai calls failing with UNAVAILABLE (default 0)
+ *   <li>s3ErrorRate: fraction of S3 puts failing with SlowDown (default 0)
+ *   <li>positiveRate: fraction of frames clarifai scores as a person (default 0, positives send
+ *       real notifications and mail)
+ *   <li>drain: seconds to wait for the pipeline to empty after the last frame (default 60)
+ * </ul>
+ *
+ * Arguments starting with {@code --} are passed to the application, e.g. {@code
+ * --analysisQueueCapacity=10}.
+ */
+public class LoadTest {
+	private final Map<String, String> myOptions = new HashMap<>();
+
+	private final List<String> myApplicationArgs = new ArrayList<>();
+
+	private LoadTest(String[] theArgs) {
+		for (String anArg : theArgs) {
+			for (String aToken : anArg.trim().split("\\s+")) {
+				if (aToken.startsWith("--")) {
+					myApplicationArgs.add(aToken);
+				} else if (aToken.contains("=")) {
+					myOptions.put(aToken.substring(0, aToken.indexOf('=')), aToken.substring(aToken.indexOf('=') + 1));
+				}
+			}
+		}
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new LoadTest(theArgs).run();
+		System.exit(0);
+	}
+
+	private double option(String theName, double theDefault) {
+		return myOptions.containsKey(theName) ? Double.parseDouble(myOptions.get(theName)) : theDefault;
+	}
+
+	private void run() throws Exception {
+		int aCount = (int) option("count", 500);
+		double aRate = option("rate", 20);
+		int aBurst = Math.max(1, (int) option("burst", 1));
+		File aWorkDirectory = Files.createTempDirectory("loadtest").toFile();
+		List<File> aFrames = frames(aWorkDirectory);
+
+		FakeClarifaiService aClarifai = new FakeClarifaiService(
+				(long) option("latency", 300),
+				(long) option("jitter", 100),
+				option("errorRate", 0),
+				option("positiveRate", 0));
+		String aServerName = InProcessServerBuilder.generateName();
+		Server aServer = InProcessServerBuilder.forName(aServerName)
+				.addService(aClarifai)
+				.build()
+				.start();
+		ManagedChannel aChannel = InProcessChannelBuilder.forName(aServerName).build();
+		LocalS3 anS3 = new LocalS3(option("s3ErrorRate", 0));
+
+		ConfigurableApplicationContext aContext = start(aWorkDirectory, aChannel, anS3.client());
+		String aBaseUrl = "http://127.0.0.1:" + aContext.getEnvironment().getProperty("local.server.port");
+
+		HttpClient aHttp = HttpClient.newHttpClient();
+		Map<String, Long> aSent = new ConcurrentHashMap<>();
+		Map<Integer, AtomicLong> aStatuses = new ConcurrentHashMap<>();
+		List<Long> aRequestLatencies = new ArrayList<>();
+		List<CompletableFuture<?>> aResponses = new ArrayList<>();
+		long anInterval = (long) (TimeUnit.SECONDS.toNanos(1) * aBurst / aRate);
+		long aStart = System.nanoTime();
+		for (int ai = 0; ai < aCount; ai++) {
+			if (ai % aBurst == 0) {
+				long aWait = aStart + anInterval * (ai / aBurst) - System.nanoTime();
+				if (aWait > 0) {
+					TimeUnit.NANOSECONDS.sleep(aWait);
+				}
+			}
+			String aName = String.format("lt%06d.jpg", ai);
+			Files.copy(
+					aFrames.get(ai % aFrames.size()).toPath(),
+					new File(aWorkDirectory, aName).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			long aSentAt = System.nanoTime();
+			aSent.put(aName, aSentAt);
+			HttpRequest aRequest = HttpRequest.newBuilder(
+							URI.create(aBaseUrl + "/analyze?file=" + URLEncoder.encode(aName, StandardCharsets.UTF_8)))
+					.GET()
+					.build();
+			aResponses.add(aHttp.sendAsync(aRequest, HttpResponse.BodyHandlers.discarding())
+					.whenComplete((theResponse, theError) -> {
+						int aStatus = theError != null ? -1 : theResponse.statusCode();
+						aStatuses.computeIfAbsent(aStatus, theKey -> new AtomicLong()).incrementAndGet();
+						if (aStatus != 202) {
+							aSent.remove(aName);
+						}
+						synchronized (aRequestLatencies) {
+							aRequestLatencies.add(System.nanoTime() - aSentAt);
+						}
+					}));
+		}
+		CompletableFuture.allOf(aResponses.toArray(new CompletableFuture[0])).exceptionally(theE -> null).join();
+		long aSendingDone = System.nanoTime();
+
+		long aDrainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos((long) option("drain", 60));
+		while (System.nanoTime() < aDrainUntil
+				&& !anS3.getStored().keySet().containsAll(aSent.keySet())) {
+			Thread.sleep(100);
+		}
+
+		List<Long> anEndToEnd = new ArrayList<>();
+		long aLastStored = aStart;
+		for (Map.Entry<String, Long> aStored : anS3.getStored().entrySet()) {
+			Long aSentAt = aSent.get(aStored.getKey());
+			if (aSentAt != null) {
+				anEndToEnd.add(aStored.getValue() - aSentAt);
+				aLastStored = Math.max(aLastStored, aStored.getValue());
+			}
+		}
+		long aCompleted = anEndToEnd.size();
+		double aSeconds = (aLastStored - aStart) / 1e9;
+
+		System.out.println();
+		System.out.println("=== Load test: " + aCount + " frames at " + aRate + "/s in bursts of " + aBurst + " ===");
+		System.out.printf("sent in          %.1fs%n", (aSendingDone - aStart) / 1e9);
+		System.out.println("responses        " + aStatuses);
+		System.out.println("request latency  " + percentiles(aRequestLatencies));
+		System.out.println("accepted         " + aSent.size());
+		System.out.println("completed        " + aCompleted);
+		System.out.printf("throughput       %.1f frames/s%n", aSeconds > 0 ? aCompleted / aSeconds : 0);
+		System.out.println("end to end       " + percentiles(anEndToEnd));
+		System.out.println("dropped          " + (aSent.size() - aCompleted));
+		System.out.println("duplicated       " + anS3.getDuplicated());
+		System.out.println("clarifai         " + aClarifai.getRequests() + " requests, " + aClarifai.getInputs()
+				+ " inputs, " + aClarifai.getErrors() + " injected errors");
+		System.out.println("s3 errors        " + anS3.getErrors());
+
+		aContext.close();
+		aChannel.shutdownNow();
+		aServer.shutdownNow();
+		aClarifai.shutdown();
+		anS3.close();
+	}
+
+	/** Start the application with clarifai and S3 swapped for the fakes */
+	private ConfigurableApplicationContext start(File theWorkDirectory, ManagedChannel theChannel, AmazonS3 theS3) {
+		List<String> anArgs = new ArrayList<>(List.of(
+				"--server.port=0",
+				"--basepath=" + theWorkDirectory.getAbsolutePath() + "/",
+				"--ClarifaiPAT=loadtest",
+				"--ClarifaiAppId=loadtest",
+				"--ClarifaiUserId=loadtest",
+				"--modelId=people",
+				"--threshold=.75",
+				"--successThreshold=1",
+				"--notificationUrl=",
+				"--afterStoredCallback=",
+				"--notificationEmail=",
+				"--sendingEmailAccount=",
+				"--sendingEmailPassword=",
+				"--s3BucketName=loadtest",
+				"--s3Region=us-east-1",
+				"--clarifaiWarmup=false",
+				"--dedupEnabled=false",
+				"--clarifaiMonthlyLimit=1000000000",
+				"--quotaBurst=1000000",
+				"--journalPath=" + new File(theWorkDirectory, "journal/work.log").getAbsolutePath(),
+				"--historyPath=" + new File(theWorkDirectory, "history").getAbsolutePath(),
+				"--quotaStatePath=" + new File(theWorkDirectory, "quota.state").getAbsolutePath(),
+				"--s3SpoolPath=" + new File(theWorkDirectory, "spool").getAbsolutePath()));
+		anArgs.addAll(myApplicationArgs);
+		return new SpringApplicationBuilder(ClarifaiApplication.class)
+				.initializers(theContext -> theContext.addBeanFactoryPostProcessor(theFactory -> {
+					BeanDefinitionRegistry aRegistry = (BeanDefinitionRegistry) theFactory;
+					aRegistry.removeBeanDefinition("clarifaiChannel");
+					theFactory.registerSingleton("clarifaiChannel", theChannel);
+					aRegistry.removeBeanDefinition("s3Client");
+					theFactory.registerSingleton("s3Client", theS3);
+				}))
+				.run(anArgs.toArray(new String[0]));
+	}
+
+	private List<File> frames(File theWorkDirectory) throws IOException {
+		if (myOptions.containsKey("frames")) {
+			File[] aFrames = new File(myOptions.get("frames")).listFiles(theFile -> theFile.getName()
+					.toLowerCase()
+					.endsWith(".jpg"));
+			if (aFrames == null || aFrames.length == 0) {
+				throw new IllegalArgumentException("No .jpg frames in " + myOptions.get("frames"));
+			}
+			Arrays.sort(aFrames);
+			return Arrays.asList(aFrames);
+		}
+		File aSource = new File(theWorkDirectory, "source");
+		Files.createDirectories(aSource.toPath());
+		List<File> aFrames = new ArrayList<>();
+		for (int ai = 0; ai < 10; ai++) {
+			BufferedImage anImage = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+			Graphics2D aGraphics = anImage.createGraphics();
+			aGraphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, 1280, 720, Color.LIGHT_GRAY));
+			aGraphics.fillRect(0, 0, 1280, 720);
+			aGraphics.setColor(Color.ORANGE);
+			aGraphics.fillRect(100 + ai * 100, 200, 150, 300);
+			aGraphics.dispose();
+			File aFrame = new File(aSource, "frame" + ai + ".jpg");
+			ImageIO.write(anImage, "jpg", aFrame);
+			aFrames.add(aFrame);
+		}
+		return aFrames;
+	}
+
+	private static String percentiles(List<Long> theNanos) {
+		if (theNanos.isEmpty()) {
+			return "n/a";
+		}
+		long[] aSorted = theNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+		return String.format(
+				"p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms",
+				aSorted[(int) (aSorted.length * .50)] / 1e6,
+				aSorted[Math.min(aSorted.length - 1, (int) (aSorted.length * .95))] / 1e6,
+				aSorted[Math.min(aSorted.length - 1, (int) (aSorted.length * .99))] / 1e6,
+				aSorted[aSorted.length - 1] / 1e6);
+	}
+}
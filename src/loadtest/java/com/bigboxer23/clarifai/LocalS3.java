@@ -0,0 +1,131 @@
+package com.bigboxer23.clarifai;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal S3 compatible endpoint on localhost: PutObject is accepted (and answered with the MD5
+ * ETag the SDK checks), everything else is a no-op. Each put is counted by file name so files stored more
+ * than once (under any prefix) show up, and the first put of each file name is timestamped. Puts fail with SlowDown at
+ * {@code errorRate}.
+ */
+public class LocalS3 implements AutoCloseable {
+	private final HttpServer myServer;
+
+	private final ExecutorService myExecutor = Executors.newFixedThreadPool(8);
+
+	private final double myErrorRate;
+
+	private final Map<String, AtomicInteger> myPuts = new ConcurrentHashMap<>();
+
+	private final Map<String, Long> myStored = new ConcurrentHashMap<>();
+
+	private final AtomicLong myErrors = new AtomicLong();
+
+	public LocalS3(double theErrorRate) throws IOException {
+		myErrorRate = theErrorRate;
+		myServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		myServer.createContext("/", this::handle);
+		myServer.setExecutor(myExecutor);
+		myServer.start();
+	}
+
+	/**
+	 * @return client pointed at this endpoint
+	 */
+	public AmazonS3 client() {
+		return AmazonS3ClientBuilder.standard()
+				.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+						"http://127.0.0.1:" + myServer.getAddress().getPort(), "us-east-1"))
+				.withPathStyleAccessEnabled(true)
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("load", "test")))
+				.withClientConfiguration(new ClientConfiguration().withUseExpectContinue(false))
+				.disableChunkedEncoding()
+				.build();
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		try (theExchange) {
+			byte[] aBody;
+			try (InputStream anInput = theExchange.getRequestBody()) {
+				aBody = anInput.readAllBytes();
+			}
+			if (!"PUT".equals(theExchange.getRequestMethod())) {
+				theExchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			if (ThreadLocalRandom.current().nextDouble() < myErrorRate) {
+				myErrors.incrementAndGet();
+				byte[] anError = "<Error><Code>SlowDown</Code><Message>injected</Message></Error>"
+						.getBytes(StandardCharsets.UTF_8);
+				theExchange.getResponseHeaders().add("Content-Type", "application/xml");
+				theExchange.sendResponseHeaders(503, anError.length);
+				try (OutputStream anOutput = theExchange.getResponseBody()) {
+					anOutput.write(anError);
+				}
+				return;
+			}
+			// path style: /bucket/key
+			String aPath = theExchange.getRequestURI().getPath();
+			String aKey = aPath.substring(aPath.indexOf('/', 1) + 1);
+			String aName = aKey.substring(aKey.lastIndexOf('/') + 1);
+			myPuts.computeIfAbsent(aName, theName -> new AtomicInteger()).incrementAndGet();
+			myStored.putIfAbsent(aName, System.nanoTime());
+			theExchange.getResponseHeaders().add("ETag", "\"" + md5(aBody) + "\"");
+			theExchange.sendResponseHeaders(200, -1);
+		}
+	}
+
+	private static String md5(byte[] theBody) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(theBody));
+		} catch (NoSuchAlgorithmException theE) {
+			throw new IllegalStateException(theE);
+		}
+	}
+
+	/**
+	 * @return file name to System.nanoTime() of its first successful put
+	 */
+	public Map<String, Long> getStored() {
+		return myStored;
+	}
+
+	/**
+	 * @return number of files that were put more than once
+	 */
+	public long getDuplicated() {
+		return myPuts.values().stream().filter(theCount -> theCount.get() > 1).count();
+	}
+
+	public long getErrors() {
+		return myErrors.get();
+	}
+
+	@Override
+	public void close() {
+		myServer.stop(0);
+		myExecutor.shutdownNow();
+	}
+}
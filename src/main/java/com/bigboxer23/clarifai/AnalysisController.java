@@ -4,17 +4,18 @@ import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import java.io.File;
 import java.io.IOException;
-import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
 
 /** Controller to manage the HTTP requests coming in for analysis */
 @RestController
@@ -22,96 +23,309 @@ import org.springframework.web.bind.annotation.*;
 public class AnalysisController {
 	private static final Logger myLogger = LoggerFactory.getLogger(AnalysisController.class);
 
-	private ScheduledFuture myTask;
-
 	private AnalysisManager myAnalysisManager;
 
-	private List<File> myBatchedFiles = new ArrayList<>();
+	private AnalysisQueue myAnalysisQueue;
 
-	private ScheduledExecutorService myExecutorService = Executors.newSingleThreadScheduledExecutor();
+	private EventAggregator myEventAggregator;
 
-	// Don't allow reading files from anywhere on disk
-	@Value("${basepath}")
-	private String baseAnalysisPath;
+	private WorkJournal myWorkJournal;
 
-	/**
-	 * After a successful call, time until we'd immediately send another notification, otherwise
-	 * we'll start collecting images to batch into a single notification
-	 */
-	@Value("${successThreshold}")
-	private long mySuccessThreshhold;
+	private SuccessBatcher mySuccessBatcher;
+
+	// Don't allow reading files from anywhere on disk, only from camera directories
+	private CameraRegistry myCameraRegistry;
+
+	private FrameUploadStore myFrameUploadStore;
 
-	private long myLastSuccessfulCall = -1;
+	private MemoryBudget myMemoryBudget;
 
-	private long myIsPaused = -1;
+	private volatile long myIsPaused = -1;
 
-	public AnalysisController(AnalysisManager manager) {
+	public AnalysisController(
+			AnalysisManager manager,
+			AnalysisQueue queue,
+			EventAggregator aggregator,
+			WorkJournal journal,
+			SuccessBatcher successBatcher,
+			CameraRegistry cameraRegistry,
+			FrameUploadStore uploadStore,
+			MemoryBudget memoryBudget) {
 		myAnalysisManager = manager;
+		myAnalysisQueue = queue;
+		myEventAggregator = aggregator;
+		myWorkJournal = journal;
+		mySuccessBatcher = successBatcher;
+		myCameraRegistry = cameraRegistry;
+		myFrameUploadStore = uploadStore;
+		myMemoryBudget = memoryBudget;
 	}
 
-	private String sanitizeFileInput(String fileInput) {
+	String sanitizeFileInput(String fileInput) {
 		if (fileInput.split("\\.").length > 2) {
 			String start = fileInput.substring(0, fileInput.lastIndexOf(".")).replace(".", "");
 			String end = fileInput.substring(fileInput.lastIndexOf(".")).replace(".", "");
 			fileInput = start + "." + end;
 		}
-		if (baseAnalysisPath != null && !fileInput.startsWith(baseAnalysisPath)) {
-			fileInput = baseAnalysisPath + fileInput;
+		String aBasePath = myCameraRegistry.getDefault().path();
+		if (aBasePath != null && myCameraRegistry.resolve(fileInput) == null) {
+			fileInput = aBasePath + fileInput;
 		}
 		myLogger.info("sanitized " + fileInput);
 		return fileInput;
 	}
 
 	/**
-	 * Parse the file out of the request URL, send to clarifai to determine what we should do with
-	 * them
+	 * Parse the file out of the request URL and queue it to be sent to clarifai to determine what
+	 * we should do with it
 	 *
 	 * @param filePathToAnalyze
-	 * @throws InterruptedException
+	 * @return 202 if queued, 404 if the file doesn't exist, 503 if the queue or memory budget is
+	 *     full
 	 */
 	@GetMapping(path = "/analyze", produces = MediaType.APPLICATION_JSON_VALUE)
 	@Operation(
 			summary = "Triggers analysis of a file passed as part of the url as a `file` parameter",
-			description = "Analyzes image found as part of the file parameter with clarifai's API.  If"
-					+ " the image is determined to match the model, notification/email are"
-					+ " sent.  The file is uploaded to S3 and removed from the local file"
-					+ " system.")
-	public void analyzeImage(
+			description = "Queues the image found as part of the file parameter for analysis with"
+					+ " clarifai's API and returns immediately.  If the image is determined to"
+					+ " match the model, notification/email are sent.  The file is uploaded to"
+					+ " S3 and removed from the local file system.")
+	public ResponseEntity<Void> analyzeImage(
 			@Parameter(description = "Path to the local file motion saves.") @RequestParam(value = "file")
-					String filePathToAnalyze)
-			throws IOException {
-		if (myIsPaused > System.currentTimeMillis()) {
+					String filePathToAnalyze) {
+		if (isAnalysisPaused()) {
 			myLogger.info("Paused, not running" + filePathToAnalyze);
-			return;
+			return ResponseEntity.ok().build();
 		}
 		myLogger.info("Starting " + filePathToAnalyze);
 		filePathToAnalyze = sanitizeFileInput(filePathToAnalyze);
 		File fileToAnalyze = new File(filePathToAnalyze);
 		if (!fileToAnalyze.exists()) {
 			myLogger.error(filePathToAnalyze + " does not exist.");
+			return ResponseEntity.notFound().build();
+		}
+		if (!queue(fileToAnalyze)) {
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+		}
+		return ResponseEntity.accepted().build();
+	}
+
+	/**
+	 * Queue an image posted as the request body for analysis, it's held in the upload store rather
+	 * than written to the SD card
+	 *
+	 * @param cameraName
+	 * @param name
+	 * @param body
+	 * @return 202 if queued, 400 for an unknown camera, 409 if a frame with the same name is
+	 *     waiting, 413 if the image is too large, 503 if the queue or memory budget is full
+	 */
+	@PostMapping(
+			path = "/analyze",
+			consumes = {MediaType.IMAGE_JPEG_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+	@Operation(
+			summary = "Triggers analysis of an image posted as the request body",
+			description = "Same as the GET version, but the image's bytes are sent rather than a path to"
+					+ " them.  The image is held in memory backed storage until it's uploaded to S3.")
+	public ResponseEntity<Void> analyzeUpload(
+			@Parameter(description = "Camera the image came from, the default camera if not set")
+					@RequestParam(value = "camera", required = false)
+					String cameraName,
+			@Parameter(description = "File name to store the image as, generated if not set")
+					@RequestParam(value = "name", required = false)
+					String name,
+			InputStream body)
+			throws IOException {
+		return upload(cameraName, name, body);
+	}
+
+	@PostMapping(path = "/analyze", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+	@Operation(
+			summary = "Triggers analysis of an image posted as a multipart `image` part",
+			description = "Same as posting the image as the request body, the part's file name is used"
+					+ " if `name` isn't set.")
+	public ResponseEntity<Void> analyzeMultipartUpload(
+			@Parameter(description = "Camera the image came from, the default camera if not set")
+					@RequestParam(value = "camera", required = false)
+					String cameraName,
+			@Parameter(description = "File name to store the image as, the part's file name if not set")
+					@RequestParam(value = "name", required = false)
+					String name,
+			@RequestParam(value = "image") MultipartFile image)
+			throws IOException {
+		if (image.getSize() > myFrameUploadStore.getMaxBytes()) {
+			return ResponseEntity.status(HttpStatus.CONTENT_TOO_LARGE).build();
+		}
+		try (InputStream aBody = image.getInputStream()) {
+			return upload(cameraName, name != null ? name : image.getOriginalFilename(), aBody);
+		}
+	}
+
+	private ResponseEntity<Void> upload(String cameraName, String name, InputStream body) throws IOException {
+		if (isAnalysisPaused()) {
+			myLogger.info("Paused, not running upload " + name);
+			return ResponseEntity.ok().build();
+		}
+		Camera aCamera = cameraName != null ? myCameraRegistry.get(cameraName) : myCameraRegistry.getDefault();
+		if (aCamera == null) {
+			myLogger.error("Upload for unknown camera " + cameraName);
+			return ResponseEntity.badRequest().build();
+		}
+		File aFile;
+		try {
+			aFile = myFrameUploadStore.store(aCamera, name, body);
+		} catch (FrameUploadStore.TooLargeException theE) {
+			myLogger.error(theE.getMessage());
+			return ResponseEntity.status(HttpStatus.CONTENT_TOO_LARGE).build();
+		} catch (FileAlreadyExistsException theE) {
+			myLogger.error(name + " is already waiting for analysis");
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		if (!queue(aCamera, aFile)) {
+			// Nobody else holds on to a refused upload
+			myAnalysisManager.deleteFile(aFile);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+		}
+		return ResponseEntity.accepted().build();
+	}
+
+	/**
+	 * Journal an existing frame, charge it to the memory budget and queue it on its camera's analysis
+	 * queue
+	 *
+	 * @param fileToAnalyze
+	 * @return false if the memory budget or the camera's queue refused the frame
+	 */
+	public boolean queue(File fileToAnalyze) {
+		return queue(getCamera(fileToAnalyze), fileToAnalyze);
+	}
+
+	private boolean queue(Camera camera, File fileToAnalyze) {
+		myWorkJournal.recordAndWait(WorkJournal.Stage.RECEIVED, fileToAnalyze);
+		MemoryBudget.Admission anAdmission = myMemoryBudget.admit(camera, fileToAnalyze);
+		// Shed frames are only spared analysis, their footage is still stored
+		anAdmission.shed().forEach(theShed -> onSkipped(getCamera(theShed), theShed));
+		if (!anAdmission.admitted()) {
+			return false;
+		}
+		if (!myAnalysisQueue.submit(newJob(camera, fileToAnalyze))) {
+			myMemoryBudget.release(fileToAnalyze);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the camera whose upload store directory, or motion directory, holds the file. The
+	 *     default camera if none does
+	 */
+	private Camera getCamera(File theFile) {
+		String anUploadCamera = myFrameUploadStore != null ? myFrameUploadStore.getCameraName(theFile) : null;
+		Camera aCamera = anUploadCamera != null
+				? myCameraRegistry.get(anUploadCamera)
+				: myCameraRegistry.resolve(theFile.getPath());
+		return aCamera != null ? aCamera : myCameraRegistry.getDefault();
+	}
+
+	private AnalysisJob newJob(Camera theCamera, File theFile) {
+		return new AnalysisJob(
+				theCamera.name(),
+				theFile,
+				theJobFile -> analyze(theCamera, theJobFile),
+				theJobFile -> onDropped(theCamera, theJobFile));
+	}
+
+	/**
+	 * Run on an analysis worker thread, add the file to the camera's current motion event and handle
+	 * the result
+	 *
+	 * @param camera
+	 * @param fileToAnalyze
+	 */
+	private void analyze(Camera camera, File fileToAnalyze) {
+		if (!myMemoryBudget.start(fileToAnalyze)) {
+			myLogger.info("Skipping " + fileToAnalyze + ", it was shed to stay within the memory budget");
 			return;
 		}
-		myAnalysisManager.sendToClarifai(
+		myEventAggregator.submit(
+				camera,
 				fileToAnalyze,
-				theSuccessFile -> {
-					myBatchedFiles.add(theSuccessFile);
-					if (myLastSuccessfulCall + (mySuccessThreshhold * 60 * 1000) < System.currentTimeMillis()) {
-						myLastSuccessfulCall = System.currentTimeMillis();
-						getTask(true).run();
-						return;
-					}
-					myLogger.info("Adding " + theSuccessFile.getName() + " to batch notification.");
-					if (myTask != null) {
-						myTask.cancel(true);
-					}
-					myLastSuccessfulCall = System.currentTimeMillis();
-					myTask = myExecutorService.schedule(getTask(false), mySuccessThreshhold, TimeUnit.MINUTES);
-				},
-				theFailureFile -> {
-					myAnalysisManager.moveToS3(theFailureFile, "Failure/");
-					myAnalysisManager.deleteFile(theFailureFile);
-				});
-		myLogger.info("Done " + filePathToAnalyze);
+				theFile -> onSuccess(camera, theFile),
+				theFile -> onFailure(camera, theFile),
+				theFile -> onSkipped(camera, theFile),
+				(theFile, theVerdict) -> onArchive(camera, theFile, theVerdict));
+		myLogger.info("Queued " + fileToAnalyze + " for clarifai");
+	}
+
+	private void onSuccess(Camera theCamera, File theSuccessFile) {
+		myMemoryBudget.moveTo(theSuccessFile, MemoryBudget.Stage.UPLOAD);
+		myWorkJournal.record(WorkJournal.Stage.ANALYZED_SUCCESS, theSuccessFile);
+		myLogger.info("Adding " + theSuccessFile.getName() + " to batch notification.");
+		mySuccessBatcher.add(theCamera, theSuccessFile);
+	}
+
+	private void onFailure(Camera theCamera, File theFailureFile) {
+		myMemoryBudget.moveTo(theFailureFile, MemoryBudget.Stage.UPLOAD);
+		myWorkJournal.record(WorkJournal.Stage.ANALYZED_FAILURE, theFailureFile);
+		myAnalysisManager.moveToS3(theFailureFile, theCamera.s3Prefix() + "Failure/");
+	}
+
+	/**
+	 * Store a frame clarifai never judged (shed, dropped, out of quota or unanswered) under
+	 * Unanalyzed/, so it isn't taken for a verdict
+	 */
+	private void onSkipped(Camera theCamera, File theFile) {
+		myMemoryBudget.moveTo(theFile, MemoryBudget.Stage.UPLOAD);
+		myWorkJournal.record(WorkJournal.Stage.SKIPPED, theFile);
+		myAnalysisManager.recordSkipped(theCamera, theFile);
+		myAnalysisManager.moveToS3(theFile, theCamera.s3Prefix() + "Unanalyzed/");
+	}
+
+	/** A full queue dropped the frame's job, a frame shed from the memory budget is already gone */
+	private void onDropped(Camera theCamera, File theFile) {
+		if (myMemoryBudget.start(theFile)) {
+			onSkipped(theCamera, theFile);
+		}
+	}
+
+	/** Store a frame under its event's verdict, a noteworthy event has already notified */
+	private void onArchive(Camera theCamera, File theFile, boolean theVerdict) {
+		if (!theVerdict) {
+			onFailure(theCamera, theFile);
+			return;
+		}
+		myMemoryBudget.moveTo(theFile, MemoryBudget.Stage.UPLOAD);
+		myWorkJournal.record(WorkJournal.Stage.NOTIFIED, theFile);
+		myAnalysisManager.cache(theCamera, theFile);
+		myAnalysisManager.moveToS3(theFile, theCamera.s3Prefix() + "Success/");
+	}
+
+	/** Pick up frames the journal says were still in flight when the service last stopped */
+	@EventListener(ApplicationReadyEvent.class)
+	public void resumeUnfinishedWork() {
+		myWorkJournal.getRecovered().forEach((thePath, theStage) -> resume(new File(thePath), theStage));
+	}
+
+	void resume(File theFile, WorkJournal.Stage theStage) {
+		if (!theFile.exists()) {
+			myWorkJournal.record(WorkJournal.Stage.DELETED, theFile);
+			return;
+		}
+		myLogger.info("Resuming " + theFile + " after " + theStage);
+		Camera aCamera = getCamera(theFile);
+		switch (theStage) {
+			case RECEIVED -> {
+				if (!queue(aCamera, theFile)) {
+					onSkipped(aCamera, theFile);
+				}
+			}
+			case ANALYZED_SUCCESS -> onSuccess(aCamera, theFile);
+			case ANALYZED_FAILURE -> myAnalysisManager.moveToS3(theFile, aCamera.s3Prefix() + "Failure/");
+			case NOTIFIED -> myAnalysisManager.moveToS3(theFile, aCamera.s3Prefix() + "Success/");
+			case SKIPPED -> myAnalysisManager.moveToS3(theFile, aCamera.s3Prefix() + "Unanalyzed/");
+			case UPLOADED -> myAnalysisManager.deleteFile(theFile);
+			default -> {}
+		}
 	}
 
 	@PostMapping(path = "/pause/{delay}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -136,6 +350,13 @@ public class AnalysisController {
 		return Math.max(0, (myIsPaused - System.currentTimeMillis()) / 1000);
 	}
 
+	/**
+	 * @return true while frames should be ignored rather than analyzed
+	 */
+	public boolean isAnalysisPaused() {
+		return myIsPaused > System.currentTimeMillis();
+	}
+
 	@PostMapping(path = "/enable", produces = MediaType.APPLICATION_JSON_VALUE)
 	@Operation(
 			summary = "Enable the application, if paused",
@@ -144,13 +365,4 @@ public class AnalysisController {
 		myLogger.info("Enabling running again");
 		myIsPaused = -1;
 	}
-
-	private SuccessTask getTask(boolean theFireNotification) {
-		return new SuccessTask(
-				Collections.unmodifiableList(myBatchedFiles), theFireNotification, myAnalysisManager, this);
-	}
-
-	public void clearBatchedFiles() {
-		myBatchedFiles.clear();
-	}
 }
@@ -0,0 +1,484 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local record of how every frame was decided, so past verdicts can be looked up without listing
+ * S3. Entries are appended to one file per day under {@code historyPath} and held in memory in a
+ * time-ordered index. Day files older than {@code historyRetentionDays} are deleted along with
+ * their entries. A camera's entry more than {@code eventGap} seconds after its previous one starts
+ * a new motion event.
+ *
+ * <p>Each record is one tab separated line starting with its crc32: {@code E} lines are entries,
+ * {@code K} lines add the S3 key a frame was stored under. {@code A} lines, clarifai analyses from
+ * before entries had a source and event, are still read. Corrupt lines are skipped on replay.
+ */
+@Component
+public class AnalysisHistory {
+	private static final Logger logger = LoggerFactory.getLogger(AnalysisHistory.class);
+
+	/** Entry ids are milliseconds times this plus a sequence, so they sort by time */
+	private static final long kIdsPerMilli = 1000;
+
+	private static final String kSuffix = ".log";
+
+	/** How a frame's verdict was reached */
+	public enum Source {
+		/** Sent to clarifai */
+		API,
+		/** Decided from the concepts cached for a near identical frame */
+		CACHED,
+		/** Decided from the concepts of a near identical frame in the same batch */
+		FOLLOWER,
+		/** Rejected by the motion pre-screen */
+		PRESCREENED,
+		/** Not sent, it took its motion event's verdict */
+		EVENT,
+		/** Never judged, it was dropped, shed, out of quota or unanswered */
+		SKIPPED
+	}
+
+	/**
+	 * One decided frame
+	 *
+	 * @param time when the verdict was reached, epoch milliseconds
+	 * @param event time of the first entry of the frame's motion event, 0 if it isn't known
+	 * @param batch id of the multi-input request the frame's concepts came from, 0 if none did
+	 * @param rpcMillis how long the request took
+	 * @param s3Key where the frame was stored, null until it's been moved to S3
+	 * @param concepts concept name to score, empty without a clarifai answer
+	 */
+	public record Entry(
+			long id,
+			long time,
+			String camera,
+			String file,
+			Source source,
+			long event,
+			long batch,
+			long rpcMillis,
+			boolean noteworthy,
+			String s3Key,
+			Map<String, Float> concepts) {
+		/**
+		 * @return highest concept score, 0 without concepts
+		 */
+		public float score() {
+			float aScore = 0;
+			for (float aValue : concepts.values()) {
+				aScore = Math.max(aScore, aValue);
+			}
+			return aScore;
+		}
+
+		private Entry withKey(String theKey) {
+			return new Entry(id, time, camera, file, source, event, batch, rpcMillis, noteworthy, theKey, concepts);
+		}
+	}
+
+	/** A camera's current motion event */
+	private record Event(long id, long last) {}
+
+	/**
+	 * Criteria for {@link #query(Query)}, null or empty criteria match everything
+	 *
+	 * @param concept concept the score limits apply to, the highest score if empty
+	 */
+	public record Query(
+			long from,
+			long to,
+			String camera,
+			String concept,
+			Double minScore,
+			Double maxScore,
+			Boolean noteworthy,
+			int limit) {}
+
+	public record Stats(int entries, int files, Long oldest, Long newest) {}
+
+	private final boolean myEnabled;
+
+	private final Path myDirectory;
+
+	private final int myRetentionDays;
+
+	private final long myEventGap;
+
+	private final ConcurrentNavigableMap<Long, Entry> myEntries = new ConcurrentSkipListMap<>();
+
+	/** Entries whose frame hasn't been stored in S3 yet, by absolute path */
+	private final Map<String, Long> myUnstored = new ConcurrentHashMap<>();
+
+	/** Each camera's current event, guarded by this */
+	private final Map<String, Event> myEvents = new HashMap<>();
+
+	private long myLastId;
+
+	private LocalDate myDay;
+
+	private BufferedWriter myWriter;
+
+	public AnalysisHistory(
+			@Value("${historyEnabled:true}") boolean theEnabled,
+			@Value("${historyPath:history}") String thePath,
+			@Value("${historyRetentionDays:30}") int theRetentionDays,
+			@Value("${eventGap:5}") long theEventGap)
+			throws IOException {
+		myEnabled = theEnabled;
+		myDirectory = theEnabled ? Path.of(thePath) : null;
+		myRetentionDays = theRetentionDays;
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		if (!myEnabled) {
+			return;
+		}
+		Files.createDirectories(myDirectory);
+		prune(LocalDate.now());
+		replay();
+		logger.info("History has " + myEntries.size() + " entries");
+	}
+
+	/**
+	 * Add a frame decided without clarifai's concepts to the history
+	 *
+	 * @return the entry, null if the history is disabled
+	 */
+	public Entry record(Camera theCamera, File theFile, Source theSource, boolean theNoteworthy) {
+		return record(theCamera, theFile, theSource, 0, 0, theNoteworthy, Map.of());
+	}
+
+	/**
+	 * Add a decided frame to the history
+	 *
+	 * @param theBatch id of the request the concepts came from
+	 * @param theRpcMillis how long the request took
+	 * @return the entry, null if the history is disabled
+	 */
+	public Entry record(
+			Camera theCamera,
+			File theFile,
+			Source theSource,
+			long theBatch,
+			long theRpcMillis,
+			boolean theNoteworthy,
+			Map<String, Float> theConcepts) {
+		if (!myEnabled) {
+			return null;
+		}
+		String aPath = theFile.getAbsolutePath();
+		Entry anEntry;
+		synchronized (this) {
+			long aNow = System.currentTimeMillis();
+			myLastId = Math.max(aNow * kIdsPerMilli, myLastId + 1);
+			anEntry = new Entry(
+					myLastId,
+					aNow,
+					theCamera.name(),
+					aPath,
+					theSource,
+					joinEvent(theCamera.name(), aNow),
+					theBatch,
+					theRpcMillis,
+					theNoteworthy,
+					null,
+					theConcepts);
+			StringBuilder aLine = new StringBuilder("E\t")
+					.append(anEntry.id())
+					.append('\t')
+					.append(clean(anEntry.camera()))
+					.append('\t')
+					.append(clean(aPath))
+					.append('\t')
+					.append(theSource)
+					.append('\t')
+					.append(anEntry.event())
+					.append('\t')
+					.append(theBatch)
+					.append('\t')
+					.append(theRpcMillis)
+					.append('\t')
+					.append(theNoteworthy);
+			theConcepts.forEach((theName, theScore) ->
+					aLine.append('\t').append(clean(theName)).append(':').append(theScore));
+			append(aLine.toString());
+			myEntries.put(anEntry.id(), anEntry);
+		}
+		myUnstored.put(aPath, anEntry.id());
+		return anEntry;
+	}
+
+	/**
+	 * @return id of the camera's event the entry belongs to, a new one if the camera's last entry
+	 *     was more than the event gap before
+	 */
+	private long joinEvent(String theCamera, long theTime) {
+		Event anEvent = myEvents.get(theCamera);
+		long anId = anEvent != null && theTime - anEvent.last() <= myEventGap ? anEvent.id() : theTime;
+		myEvents.put(theCamera, new Event(anId, theTime));
+		return anId;
+	}
+
+	/** Note the S3 key a frame was stored under, ignored if the frame wasn't analyzed */
+	public void stored(File theFile, String theKey) {
+		if (!myEnabled) {
+			return;
+		}
+		Long anId = myUnstored.remove(theFile.getAbsolutePath());
+		if (anId == null) {
+			return;
+		}
+		synchronized (this) {
+			if (myEntries.computeIfPresent(anId, (theId, theEntry) -> theEntry.withKey(theKey)) != null) {
+				append("K\t" + anId + "\t" + clean(theKey));
+			}
+		}
+	}
+
+	/**
+	 * @return matching entries, oldest first
+	 */
+	public List<Entry> query(Query theQuery) {
+		List<Entry> aMatches = new ArrayList<>();
+		if (theQuery.to() < theQuery.from()) {
+			return aMatches;
+		}
+		for (Entry anEntry : myEntries
+				.subMap(theQuery.from() * kIdsPerMilli, true, theQuery.to() * kIdsPerMilli + kIdsPerMilli - 1, true)
+				.values()) {
+			if (aMatches.size() >= theQuery.limit()) {
+				break;
+			}
+			if (matches(anEntry, theQuery)) {
+				aMatches.add(anEntry);
+			}
+		}
+		return aMatches;
+	}
+
+	private boolean matches(Entry theEntry, Query theQuery) {
+		if (theQuery.camera() != null
+				&& !theQuery.camera().isEmpty()
+				&& !theQuery.camera().equals(theEntry.camera())) {
+			return false;
+		}
+		if (theQuery.noteworthy() != null && theQuery.noteworthy() != theEntry.noteworthy()) {
+			return false;
+		}
+		float aScore;
+		if (theQuery.concept() == null || theQuery.concept().isEmpty()) {
+			aScore = theEntry.score();
+		} else {
+			Float aValue = theEntry.concepts().get(theQuery.concept());
+			if (aValue == null) {
+				return false;
+			}
+			aScore = aValue;
+		}
+		return (theQuery.minScore() == null || aScore >= theQuery.minScore())
+				&& (theQuery.maxScore() == null || aScore <= theQuery.maxScore());
+	}
+
+	public Stats getStats() {
+		Map.Entry<Long, Entry> anOldest = myEntries.firstEntry();
+		Map.Entry<Long, Entry> aNewest = myEntries.lastEntry();
+		return new Stats(
+				myEntries.size(),
+				myEnabled ? listDays().size() : 0,
+				anOldest == null ? null : anOldest.getValue().time(),
+				aNewest == null ? null : aNewest.getValue().time());
+	}
+
+	/** Write a line to today's file, starting a new file (and pruning old ones) when the day changes */
+	private void append(String theBody) {
+		try {
+			LocalDate aToday = LocalDate.now();
+			if (!aToday.equals(myDay)) {
+				if (myWriter != null) {
+					myWriter.close();
+					prune(aToday);
+				}
+				myDay = aToday;
+				Path aFile = myDirectory.resolve(aToday + kSuffix);
+				myWriter = Files.newBufferedWriter(
+						aFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				if (endsTorn(aFile)) {
+					// Keep the torn line from a crash from swallowing the next record
+					myWriter.write("\n");
+				}
+			}
+			myWriter.write(checksum(theBody) + "\t" + theBody + "\n");
+			myWriter.flush();
+		} catch (IOException theE) {
+			logger.error("History write failed", theE);
+		}
+	}
+
+	/** Delete day files past retention and drop their entries from the index */
+	private void prune(LocalDate theToday) {
+		LocalDate aCutoff = theToday.minusDays(myRetentionDays);
+		for (LocalDate aDay : listDays().keySet()) {
+			if (!aDay.isBefore(aCutoff)) {
+				continue;
+			}
+			try {
+				Files.deleteIfExists(myDirectory.resolve(aDay + kSuffix));
+				logger.info("Deleted history for " + aDay);
+			} catch (IOException theE) {
+				logger.warn("Couldn't delete history for " + aDay, theE);
+			}
+		}
+		long aCutoffId = aCutoff.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() * kIdsPerMilli;
+		myEntries.headMap(aCutoffId).clear();
+		myUnstored.values().removeIf(theId -> theId < aCutoffId);
+	}
+
+	private void replay() throws IOException {
+		for (Path aFile : listDays().values()) {
+			int aCorrupt = 0;
+			for (String aLine : Files.readAllLines(aFile, StandardCharsets.UTF_8)) {
+				int aTab = aLine.indexOf('\t');
+				if (aTab < 0 || !aLine.substring(0, aTab).equals(checksum(aLine.substring(aTab + 1)))) {
+					aCorrupt++;
+					continue;
+				}
+				try {
+					apply(aLine.substring(aTab + 1).split("\t"));
+				} catch (RuntimeException theE) {
+					aCorrupt++;
+				}
+			}
+			if (aCorrupt > 0) {
+				logger.warn("Skipped " + aCorrupt + " corrupt history records in " + aFile);
+			}
+		}
+		if (!myEntries.isEmpty()) {
+			myLastId = myEntries.lastKey();
+		}
+	}
+
+	private void apply(String[] theFields) {
+		long anId = Long.parseLong(theFields[1]);
+		if ("K".equals(theFields[0])) {
+			Entry aStored = myEntries.computeIfPresent(anId, (theId, theEntry) -> theEntry.withKey(theFields[2]));
+			if (aStored != null) {
+				myUnstored.remove(aStored.file(), anId);
+			}
+			return;
+		}
+		// Analyses written before entries had a source and event were all clarifai's
+		boolean anAnalysis = "A".equals(theFields[0]);
+		int aField = anAnalysis ? 4 : 6;
+		Source aSource = anAnalysis ? Source.API : Source.valueOf(theFields[4]);
+		long anEvent = anAnalysis ? 0 : Long.parseLong(theFields[5]);
+		long aBatch = Long.parseLong(theFields[aField]);
+		long anRpcMillis = Long.parseLong(theFields[aField + 1]);
+		boolean aNoteworthy = Boolean.parseBoolean(theFields[aField + 2]);
+		Map<String, Float> aConcepts = new LinkedHashMap<>();
+		for (int ai = aField + 3; ai < theFields.length; ai++) {
+			int aColon = theFields[ai].lastIndexOf(':');
+			aConcepts.put(theFields[ai].substring(0, aColon), Float.parseFloat(theFields[ai].substring(aColon + 1)));
+		}
+		Entry anEntry = new Entry(
+				anId,
+				anId / kIdsPerMilli,
+				theFields[2],
+				theFields[3],
+				aSource,
+				anEvent,
+				aBatch,
+				anRpcMillis,
+				aNoteworthy,
+				null,
+				aConcepts);
+		myEntries.put(anId, anEntry);
+		myUnstored.put(anEntry.file(), anId);
+		if (anEvent != 0) {
+			// A restart within the gap carries on the camera's event
+			myEvents.put(anEntry.camera(), new Event(anEvent, anEntry.time()));
+		}
+	}
+
+	/**
+	 * @return day files, oldest first
+	 */
+	private Map<LocalDate, Path> listDays() {
+		Map<LocalDate, Path> aDays = new TreeMap<>();
+		try (Stream<Path> aFiles = Files.list(myDirectory)) {
+			aFiles.forEach(theFile -> {
+				String aName = theFile.getFileName().toString();
+				if (!aName.endsWith(kSuffix)) {
+					return;
+				}
+				try {
+					aDays.put(LocalDate.parse(aName.substring(0, aName.length() - kSuffix.length())), theFile);
+				} catch (RuntimeException theE) {
+					// Not one of ours
+				}
+			});
+		} catch (IOException theE) {
+			logger.warn("Couldn't list " + myDirectory, theE);
+		}
+		return aDays;
+	}
+
+	private static boolean endsTorn(Path theFile) throws IOException {
+		try (FileChannel aChannel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+			if (aChannel.size() == 0) {
+				return false;
+			}
+			ByteBuffer aLast = ByteBuffer.allocate(1);
+			aChannel.read(aLast, aChannel.size() - 1);
+			return aLast.get(0) != '\n';
+		}
+	}
+
+	private static String clean(String theValue) {
+		return theValue.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static String checksum(String theBody) {
+		CRC32 aCrc = new CRC32();
+		aCrc.update(theBody.getBytes(StandardCharsets.UTF_8));
+		return String.format("%08x", aCrc.getValue());
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (myWriter == null) {
+			return;
+		}
+		try {
+			myWriter.close();
+		} catch (IOException theE) {
+			logger.error("shutdown:", theE);
+		}
+		myWriter = null;
+		myDay = null;
+	}
+}
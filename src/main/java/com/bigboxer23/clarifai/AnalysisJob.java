@@ -0,0 +1,56 @@
+package com.bigboxer23.clarifai;
+
+import java.io.File;
+import java.util.function.Consumer;
+
+/** A single frame waiting in the analysis queue */
+public class AnalysisJob implements Runnable {
+	private final String myShard;
+
+	private final File myFile;
+
+	private final Consumer<File> myWork;
+
+	private final Consumer<File> myDropped;
+
+	public AnalysisJob(File theFile, Consumer<File> theWork) {
+		this(Camera.kDefault, theFile, theWork);
+	}
+
+	/**
+	 * @param theShard camera the frame came from, each camera has its own queue
+	 * @param theFile frame to analyze
+	 * @param theWork analysis to run on a worker thread
+	 */
+	public AnalysisJob(String theShard, File theFile, Consumer<File> theWork) {
+		this(theShard, theFile, theWork, theDroppedFile -> {});
+	}
+
+	/**
+	 * @param theDropped run if the queue drops the job to make room, instead of theWork
+	 */
+	public AnalysisJob(String theShard, File theFile, Consumer<File> theWork, Consumer<File> theDropped) {
+		myShard = theShard;
+		myFile = theFile;
+		myWork = theWork;
+		myDropped = theDropped;
+	}
+
+	public String getShard() {
+		return myShard;
+	}
+
+	public File getFile() {
+		return myFile;
+	}
+
+	/** The job won't be run, it was dropped from a full queue */
+	public void dropped() {
+		myDropped.accept(myFile);
+	}
+
+	@Override
+	public void run() {
+		myWork.accept(myFile);
+	}
+}
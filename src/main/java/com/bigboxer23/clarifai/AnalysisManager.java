@@ -1,58 +1,35 @@
 package com.bigboxer23.clarifai;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.bigboxer23.utils.file.FilePersistentIndex;
-import com.bigboxer23.utils.http.OkHttpCallback;
-import com.bigboxer23.utils.http.OkHttpUtil;
-import com.bigboxer23.utils.mail.MailSender;
 import com.clarifai.grpc.api.*;
 import com.clarifai.grpc.api.status.StatusCode;
-import com.google.protobuf.ByteString;
 import io.micrometer.common.util.StringUtils;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 /** Various actions reside here. */
 @Component
 @EnableAutoConfiguration
 public class AnalysisManager {
-	private static final int kMaxApiLimit = 5000;
-
 	private static final Logger logger = LoggerFactory.getLogger(AnalysisController.class);
 
-	@Value("${notificationEmail}")
-	private String myNotificationEmail;
-
-	@Value("${sendingEmailAccount}")
-	private String mySendingEmailAccount;
-
-	@Value("${sendingEmailPassword}")
-	private String mySendingEmailPassword;
-
-	@Value("${notificationUrl}")
-	private String myNotificationURL;
-
-	@Value("${afterStoredCallback}")
-	private String afterStoredCallback;
-
 	@Value("${s3BucketName}")
 	private String myS3BucketName;
 
@@ -62,112 +39,342 @@ public class AnalysisManager {
 	@Value("${ClarifaiUserId}")
 	private String clarifaiUserId = "";
 
-	@Value("${modelId}")
-	private String myModelId = "";
-
-	@Value("${threshold}")
-	private double myThreshold = .75;
-
 	private AmazonS3 s3Client;
 
 	private V2Grpc.V2BlockingStub clarifaiStub;
 
-	private FilePersistentIndex monthlyAPICount = new FilePersistentIndex("api");
+	private ClarifaiClient clarifaiClient;
+
+	private ImagePreparer imagePreparer;
+
+	private S3UploadService s3UploadService;
+
+	private WorkJournal workJournal;
+
+	private QuotaGovernor quotaGovernor;
+
+	private PipelineMetrics metrics;
+
+	private AnalysisHistory history;
+
+	private MailDispatcher mailDispatcher;
+
+	private WebhookDispatcher webhookDispatcher;
+
+	private DecisionEngine decisionEngine;
+
+	private MemoryBudget memoryBudget;
+
+	private EventCache eventCache;
+
+	/** Seeded with the start time so batch ids stay unique across restarts */
+	private final AtomicLong batchIds = new AtomicLong(System.currentTimeMillis());
 
 	@Autowired
-	public AnalysisManager(AmazonS3 s3Client, V2Grpc.V2BlockingStub clarifaiStub) {
+	public AnalysisManager(
+			AmazonS3 s3Client,
+			V2Grpc.V2BlockingStub clarifaiStub,
+			ClarifaiClient clarifaiClient,
+			ImagePreparer imagePreparer,
+			S3UploadService s3UploadService,
+			WorkJournal workJournal,
+			QuotaGovernor quotaGovernor,
+			PipelineMetrics metrics,
+			AnalysisHistory history,
+			MailDispatcher mailDispatcher,
+			WebhookDispatcher webhookDispatcher,
+			DecisionEngine decisionEngine,
+			MemoryBudget memoryBudget,
+			EventCache eventCache) {
 		this.s3Client = s3Client;
 		this.clarifaiStub = clarifaiStub;
+		this.clarifaiClient = clarifaiClient;
+		this.imagePreparer = imagePreparer;
+		this.s3UploadService = s3UploadService;
+		this.workJournal = workJournal;
+		this.quotaGovernor = quotaGovernor;
+		this.metrics = metrics;
+		this.history = history;
+		this.mailDispatcher = mailDispatcher;
+		this.webhookDispatcher = webhookDispatcher;
+		this.decisionEngine = decisionEngine;
+		this.memoryBudget = memoryBudget;
+		this.eventCache = eventCache;
 	}
 
-	@Scheduled(cron = "0 0 0 1 1/1 *") // Run first of month at 12am
-	private void resetMonthlyCounter() {
-		logger.info("Resetting monthly API count");
-		monthlyAPICount.set(0);
+	/**
+	 * send a batch of files to clarifai as a single multi-input request, each output is mapped back
+	 * to its frame by input id and the frame's own callbacks are run
+	 *
+	 * @param theCamera camera the frames came from, decides the model and threshold
+	 * @param theFrames frames to analyze
+	 * @return number of quota units the request used
+	 * @throws IOException
+	 */
+	public int sendToClarifai(Camera theCamera, List<BatchedFrame> theFrames) throws IOException {
+		List<FrameBuffer> aBuffers = new ArrayList<>();
+		try {
+			PostModelOutputsRequest aRequest = buildRequest(theCamera, theFrames, aBuffers);
+			long aStart = metrics.start();
+			MultiOutputResponse aResponse;
+			try {
+				aResponse = clarifaiStub.postModelOutputs(aRequest);
+			} catch (RuntimeException theE) {
+				metrics.record(PipelineMetrics.Stage.CLARIFAI_RPC, aStart, false);
+				throw theE;
+			}
+			metrics.record(PipelineMetrics.Stage.CLARIFAI_RPC, aStart, true);
+			handleResponse(theCamera, theFrames, aResponse, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - aStart));
+		} finally {
+			release(aBuffers);
+		}
+		return theFrames.size();
 	}
 
-	private int getMaxApiLimitByDayOfMonth(int theDayOfMonth) {
-		LocalDate aDate = LocalDate.now();
-		int aDayCount = aDate.withDayOfMonth(aDate.getMonth().length(aDate.isLeapYear()))
-				.getDayOfMonth();
-		return theDayOfMonth * (kMaxApiLimit / aDayCount);
+	/**
+	 * Non-blocking version of {@link #sendToClarifai(Camera, List)}, the request is sent through
+	 * the {@link ClarifaiClient} (deadline + retries) and callbacks run on a client thread when the
+	 * response arrives
+	 *
+	 * @param theCamera camera the frames came from, decides the model and threshold
+	 * @param theFrames frames to analyze
+	 * @return future completed with the number of quota units the request used
+	 */
+	public CompletableFuture<Integer> sendToClarifaiAsync(Camera theCamera, List<BatchedFrame> theFrames) {
+		List<FrameBuffer> aBuffers = new ArrayList<>();
+		PostModelOutputsRequest aRequest;
+		try {
+			aRequest = buildRequest(theCamera, theFrames, aBuffers);
+		} catch (IOException theE) {
+			release(aBuffers);
+			return CompletableFuture.failedFuture(theE);
+		}
+		// Retries re-serialize the request, so buffers are held until the last attempt is done
+		long aStart = metrics.start();
+		return clarifaiClient
+				.postModelOutputs(aRequest)
+				.whenComplete((theResponse, theError) -> {
+					metrics.record(PipelineMetrics.Stage.CLARIFAI_RPC, aStart, theError == null);
+					release(aBuffers);
+				})
+				.thenApply(theResponse -> {
+					long anRpcMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - aStart);
+					handleResponse(theCamera, theFrames, theResponse, anRpcMillis);
+					return theFrames.size();
+				});
 	}
 
 	/**
-	 * Since we have a finite number of free calls, limit ourselves by available number based on
-	 * number per day
-	 *
-	 * @return true if we've hit limit and shouldn't allow running
+	 * Build the request, image bytes are wrapped rather than copied so the buffers they live in are
+	 * added to theBuffers and must be released once the request is done with
 	 */
-	private boolean shouldLimitCall() {
-		return monthlyAPICount.get()
-				> getMaxApiLimitByDayOfMonth(LocalDate.now().getDayOfMonth());
+	PostModelOutputsRequest buildRequest(Camera theCamera, List<BatchedFrame> theFrames, List<FrameBuffer> theBuffers)
+			throws IOException {
+		long aStart = metrics.start();
+		metrics.recordBatch(theFrames.size());
+		PostModelOutputsRequest.Builder aRequest = PostModelOutputsRequest.newBuilder()
+				.setModelId(theCamera.modelId())
+				.setUserAppId(
+						UserAppIDSet.newBuilder().setUserId(clarifaiUserId).setAppId(clarifaiAppId));
+		for (int ai = 0; ai < theFrames.size(); ai++) {
+			memoryBudget.moveTo(theFrames.get(ai).getFile(), MemoryBudget.Stage.INFER);
+			FrameBuffer aBuffer = imagePreparer.prepare(theFrames.get(ai).getFile());
+			theBuffers.add(aBuffer);
+			aRequest.addInputs(Input.newBuilder()
+					.setId(String.valueOf(ai))
+					.setData(Data.newBuilder().setImage(Image.newBuilder().setBase64(aBuffer.getBytes()))));
+		}
+		PostModelOutputsRequest aBuilt = aRequest.build();
+		metrics.record(PipelineMetrics.Stage.REQUEST_BUILD, aStart, true);
+		return aBuilt;
+	}
+
+	private void release(List<FrameBuffer> theBuffers) {
+		theBuffers.forEach(FrameBuffer::close);
 	}
 
 	/**
-	 * send file to clarifai for analysis
+	 * Decide each frame and its followers from its output, add them to the history and run their
+	 * callbacks. Frames without a usable output are marked unanswered so none is left waiting.
 	 *
-	 * @param theFileToAnalyze the file to send
-	 * @param theSuccess method to call if clarifai says the image is noteworthy
-	 * @param theFailure method to call if clarifai says the image is not noteworthy
-	 * @throws InterruptedException
+	 * @param theRpcMillis how long the request took, for the history
 	 */
-	public void sendToClarifai(
-			File theFileToAnalyze, Consumer<? super File> theSuccess, Consumer<? super File> theFailure)
-			throws IOException {
-		if (shouldLimitCall()) {
-			logger.warn("Monthly Clarifai API limit has been hit " + monthlyAPICount.get());
-			return;
+	void handleResponse(
+			Camera theCamera, List<BatchedFrame> theFrames, MultiOutputResponse theResponse, long theRpcMillis) {
+		if (theResponse.getStatus().getCode() != StatusCode.SUCCESS
+				&& theResponse.getStatus().getCode() != StatusCode.MIXED_STATUS) {
+			theFrames.forEach(BatchedFrame::unanswered);
+			throw new RuntimeException("Request failed, status: " + theResponse.getStatus());
 		}
 
-		monthlyAPICount.increment();
-		MultiOutputResponse aResponse = clarifaiStub.postModelOutputs(PostModelOutputsRequest.newBuilder()
-				.setModelId(myModelId)
-				.setUserAppId(
-						UserAppIDSet.newBuilder().setUserId(clarifaiUserId).setAppId(clarifaiAppId))
-				.addInputs(Input.newBuilder()
-						.setData(Data.newBuilder()
-								.setImage(Image.newBuilder()
-										.setBase64(
-												ByteString.copyFrom(Files.readAllBytes(theFileToAnalyze.toPath()))))))
-				.build());
-
-		if (aResponse.getStatus().getCode() != StatusCode.SUCCESS) {
-			throw new RuntimeException("Request failed, status: " + aResponse.getStatus());
+		long aBatch = batchIds.incrementAndGet();
+		long aNow = System.currentTimeMillis();
+		DecisionEngine.Decision aDecision = new DecisionEngine.Decision();
+		for (int ai = 0; ai < theResponse.getOutputsCount(); ai++) {
+			Output anOutput = theResponse.getOutputs(ai);
+			BatchedFrame aFrame = findFrame(theFrames, anOutput.getInput().getId(), ai);
+			if (aFrame == null) {
+				logger.warn("Output " + ai + " doesn't match any frame, ignoring");
+				continue;
+			}
+			if (anOutput.hasStatus() && anOutput.getStatus().getCode() != StatusCode.SUCCESS) {
+				logger.error("Clarifai failed for " + aFrame.getFile() + ", status: " + anOutput.getStatus());
+				continue;
+			}
+			List<Concept> aConcepts = anOutput.getData().getConceptsList();
+			aFrame.answered(aConcepts);
+			decide(theCamera, aFrame, aConcepts, aNow, aDecision, AnalysisHistory.Source.API, aBatch, theRpcMillis);
+			for (BatchedFrame aFollower : aFrame.getFollowers()) {
+				decide(
+						theCamera,
+						aFollower,
+						aConcepts,
+						aNow,
+						aDecision,
+						AnalysisHistory.Source.FOLLOWER,
+						aBatch,
+						theRpcMillis);
+			}
 		}
+		for (BatchedFrame aFrame : theFrames) {
+			if (!aFrame.isDone()) {
+				logger.warn("No verdict for " + aFrame.getFile() + ", skipping it");
+				aFrame.unanswered();
+			}
+		}
+	}
+
+	/**
+	 * Decide a frame from the concepts clarifai gave a near identical frame and run its callbacks,
+	 * so its camera's rules apply to it as to a frame that was sent
+	 */
+	public void decide(Camera theCamera, BatchedFrame theFrame, List<Concept> theConcepts) {
+		decide(
+				theCamera,
+				theFrame,
+				theConcepts,
+				System.currentTimeMillis(),
+				new DecisionEngine.Decision(),
+				AnalysisHistory.Source.CACHED,
+				0,
+				0);
+	}
+
+	/**
+	 * @param theSource where theConcepts came from, for the history
+	 * @param theBatch id of the request theConcepts came from, 0 if they were cached
+	 */
+	private void decide(
+			Camera theCamera,
+			BatchedFrame theFrame,
+			List<Concept> theConcepts,
+			long theTime,
+			DecisionEngine.Decision theDecision,
+			AnalysisHistory.Source theSource,
+			long theBatch,
+			long theRpcMillis) {
+		long aStart = metrics.start();
+		decisionEngine.decide(theCamera, theConcepts, theTime, theDecision);
+		metrics.recordVerdict(theDecision.getOutcome());
+		metrics.record(PipelineMetrics.Stage.EVALUATE, aStart, true);
+		// Before the callbacks, which may store the frame and add its S3 key
+		record(theCamera, theFrame, theConcepts, theSource, theBatch, theRpcMillis, theDecision.isNoteworthy());
+		evaluate(theFrame, theDecision);
+	}
 
-		for (Concept aConcept : aResponse.getOutputs(0).getData().getConceptsList()) {
-			logger.info("Clarifai analysis: "
-					+ theFileToAnalyze
-					+ " "
-					+ (new DecimalFormat("##.00").format(aConcept.getValue() * 100))
-					+ "%");
-			if (aConcept.getValue() >= myThreshold) {
-				logger.info("Clarifai success " + theFileToAnalyze.getName());
-				theSuccess.accept(theFileToAnalyze);
-			} else {
-				logger.info("Clarifai failure " + theFileToAnalyze.getName());
-				theFailure.accept(theFileToAnalyze);
+	/**
+	 * Inputs are sent with their index as id, fall back to response order if the id wasn't echoed
+	 */
+	private BatchedFrame findFrame(List<BatchedFrame> theFrames, String theInputId, int theOutputIndex) {
+		int anIndex = theOutputIndex;
+		if (!theInputId.isEmpty()) {
+			try {
+				anIndex = Integer.parseInt(theInputId);
+			} catch (NumberFormatException theE) {
+				return null;
 			}
 		}
+		return anIndex >= 0 && anIndex < theFrames.size() ? theFrames.get(anIndex) : null;
+	}
+
+	private void evaluate(BatchedFrame theFrame, DecisionEngine.Decision theDecision) {
+		logger.info("Clarifai analysis: "
+				+ theFrame.getFile()
+				+ " "
+				+ theDecision.getConcept()
+				+ " "
+				+ String.format("%.2f", theDecision.getScore() * 100)
+				+ "% "
+				+ theDecision.getOutcome());
+		if (theDecision.isNoteworthy()) {
+			logger.info("Clarifai success " + theFrame.getFile().getName());
+			theFrame.success();
+		} else {
+			logger.info("Clarifai failure " + theFrame.getFile().getName());
+			theFrame.failure();
+		}
+	}
+
+	private void record(
+			Camera theCamera,
+			BatchedFrame theFrame,
+			List<Concept> theConcepts,
+			AnalysisHistory.Source theSource,
+			long theBatch,
+			long theRpcMillis,
+			boolean theNoteworthy) {
+		Map<String, Float> aConcepts = new LinkedHashMap<>();
+		for (Concept aConcept : theConcepts) {
+			aConcepts.put(aConcept.getName(), aConcept.getValue());
+		}
+		history.record(theCamera, theFrame.getFile(), theSource, theBatch, theRpcMillis, theNoteworthy, aConcepts);
+	}
+
+	/**
+	 * Add a frame clarifai never judged to the history, before it's stored
+	 *
+	 * @param theCamera
+	 * @param theFile
+	 */
+	public void recordSkipped(Camera theCamera, File theFile) {
+		history.record(theCamera, theFile, AnalysisHistory.Source.SKIPPED, false);
 	}
 
 	/**
-	 * Send the file to S3 for storage
+	 * Send the file to S3 for storage, the local file is removed once S3 confirms the upload (or
+	 * moved to the spool if S3 can't be reached) and its memory budget is freed
 	 *
 	 * @param theFile
 	 * @param theDirectory
+	 * @return future completed with the S3 key, empty if the file couldn't be stored yet
 	 */
-	public Optional<URL> moveToS3(File theFile, String theDirectory) {
+	public CompletableFuture<Optional<String>> moveToS3(File theFile, String theDirectory) {
 		logger.info("Moving " + theFile + " to S3.");
 		String key = theDirectory + getDateString() + theFile.getName();
-		try {
-			s3Client.putObject(new PutObjectRequest(myS3BucketName, key, theFile));
-			return Optional.ofNullable(s3Client.getUrl(myS3BucketName, key));
-		} catch (Exception e) {
-			logger.error("Problem sending to S3", e);
-		}
-		return Optional.empty();
+		history.stored(theFile, key);
+		return s3UploadService
+				.upload(theFile, key)
+				.thenApply(theStored -> {
+					if (theStored) {
+						workJournal.record(WorkJournal.Stage.UPLOADED, theFile);
+					}
+					if (!theFile.exists()) {
+						// Either uploaded or moved to the spool, which takes it from here
+						workJournal.record(WorkJournal.Stage.DELETED, theFile);
+					}
+					return theStored ? Optional.of(key) : Optional.<String>empty();
+				})
+				.whenComplete((theKey, theError) -> memoryBudget.release(theFile));
+	}
+
+	/**
+	 * Note the progress of a frame in the work journal
+	 *
+	 * @param theStage
+	 * @param theFile
+	 */
+	public void recordStage(WorkJournal.Stage theStage, File theFile) {
+		workJournal.record(theStage, theFile);
 	}
 
 	/**
@@ -177,64 +384,90 @@ public class AnalysisManager {
 	 */
 	public void deleteFile(File theFile) {
 		try {
+			memoryBudget.release(theFile);
 			Files.delete(theFile.toPath());
+			workJournal.record(WorkJournal.Stage.DELETED, theFile);
 		} catch (IOException theE) {
 			logger.error("deleteFile:", theE);
 		}
 	}
 
 	/**
-	 * Notify a webhook of a "good" file
+	 * Queue a call to the camera's webhook for a "good" file
 	 *
-	 * @param theFileName
+	 * @param theCamera
 	 */
-	public void sendNotification() {
-		if (myNotificationURL == null) {
+	public void sendNotification(Camera theCamera) {
+		if (StringUtils.isEmpty(theCamera.notificationUrl())) {
 			logger.info("Notification null, not sending.");
 			return;
 		}
-		logger.info("Sending notification... ");
-		OkHttpUtil.get(myNotificationURL, new OkHttpCallback());
-		logger.info("Notification Sent ");
+		logger.info("Queueing notification for " + theCamera.name() + "... ");
+		webhookDispatcher.get(theCamera.notificationUrl());
 	}
 
-	public void sendAfterStored(Optional<URL> url) {
-		if (StringUtils.isEmpty(afterStoredCallback) || !url.isPresent()) {
+	/**
+	 * Keep a local copy of a noteworthy frame, must be called before its upload deletes it
+	 *
+	 * @param theCamera
+	 * @param theFile
+	 */
+	public void cache(Camera theCamera, File theFile) {
+		eventCache.put(theCamera, theFile);
+	}
+
+	/**
+	 * Queue a call to the camera's after stored callback with a link to the stored file, the local
+	 * cached copy if there is one, otherwise a presigned S3 URL
+	 *
+	 * @param theCamera
+	 * @param theFile the file that was stored
+	 * @param theKey S3 key the file was stored under
+	 */
+	public void sendAfterStored(Camera theCamera, File theFile, Optional<String> theKey) {
+		if (StringUtils.isEmpty(theCamera.afterStoredCallback())) {
 			logger.info("no after stored callback, returning");
 			return;
 		}
-		String urlString = url.get().toString();
-		String bucketURL = myS3BucketName + ".s3.amazonaws.com/";
-		urlString = urlString.substring(urlString.indexOf(bucketURL) + bucketURL.length());
-		URL preSignedUrl = s3Client.generatePresignedUrl(
-				myS3BucketName, urlString, Date.from(Instant.now().plus(5, ChronoUnit.MINUTES)));
-		OkHttpUtil.post(
-				String.format(afterStoredCallback, URLEncoder.encode(preSignedUrl.toString())), new OkHttpCallback());
+		String aUrl = eventCache.getUrl(theCamera, theFile);
+		if (aUrl == null) {
+			if (theKey.isEmpty()) {
+				logger.info(theFile + " isn't cached or stored yet, not calling after stored callback");
+				return;
+			}
+			long aStart = metrics.start();
+			URL preSignedUrl = s3Client.generatePresignedUrl(
+					myS3BucketName, theKey.get(), Date.from(Instant.now().plus(5, ChronoUnit.MINUTES)));
+			metrics.record(PipelineMetrics.Stage.PRESIGN, aStart, true);
+			aUrl = preSignedUrl.toString();
+		}
+		webhookDispatcher.post(
+				String.format(theCamera.afterStoredCallback(), URLEncoder.encode(aUrl, StandardCharsets.UTF_8)));
 	}
 
 	/**
-	 * Send a email with the attached file list
+	 * Queue a mail with thumbnails of the file list to the camera's notification address, the files
+	 * are read before this returns
 	 *
+	 * @param theCamera
 	 * @param theFiles
 	 */
-	public void sendGmail(List<File> theFiles) {
-		if (theFiles == null || theFiles.isEmpty()) {
+	public void sendGmail(Camera theCamera, List<File> theFiles) {
+		if (theFiles == null || theFiles.isEmpty() || StringUtils.isEmpty(theCamera.notificationEmail())) {
 			return;
 		}
-		logger.info("Sending mail... " + theFiles.get(0));
-		MailSender.sendGmail(
-				myNotificationEmail,
-				mySendingEmailAccount,
-				mySendingEmailPassword,
-				"Front Door Motion " + monthlyAPICount.get(),
-				null,
+		logger.info("Queueing mail... " + theFiles.get(0));
+		mailDispatcher.submit(
+				theCamera,
+				theCamera.notificationEmail(),
+				theCamera.subject() + " " + quotaGovernor.getUsed(),
 				theFiles);
 	}
 
 	/**
 	 * @return yyyy/MM/ folder, for path sorting
 	 */
-	private String getDateString() {
+	String getDateString() {
 		return new SimpleDateFormat("yyyy").format(new Date())
 				+ "/"
 				+ new SimpleDateFormat("MM").format(new Date())
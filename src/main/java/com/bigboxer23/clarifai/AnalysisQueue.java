@@ -0,0 +1,227 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded queues of frames waiting for analysis, one per camera. A fixed pool of worker threads
+ * drains the queues so HTTP request threads can return as soon as a job is accepted. Workers take
+ * from the cameras' queues in turn, so a busy camera can't hold up another camera's frames, and
+ * each camera's queue is bounded on its own.
+ */
+@Component
+public class AnalysisQueue {
+	private static final Logger logger = LoggerFactory.getLogger(AnalysisQueue.class);
+
+	/** What to do when a job arrives and the queue is full */
+	public enum DropPolicy {
+		/** Refuse the incoming job */
+		REJECT_NEWEST,
+		/** Evict the oldest waiting job to make room for the incoming one */
+		DROP_OLDEST,
+		/** Make the caller wait up to the offer timeout for room, then refuse */
+		BLOCK
+	}
+
+	public record Status(
+			int depth, int capacity, int active, long processed, long dropped, Map<String, Integer> shards) {}
+
+	private final ReentrantLock myLock = new ReentrantLock();
+
+	private final Condition myNotEmpty = myLock.newCondition();
+
+	private final Condition myNotFull = myLock.newCondition();
+
+	private final Map<String, ArrayDeque<AnalysisJob>> myShards = new LinkedHashMap<>();
+
+	private final List<ArrayDeque<AnalysisJob>> myRotation = new ArrayList<>();
+
+	/**
+	 * Index of the shard a job was last taken from. Kept rather than the next index, which wraps to 0
+	 * when there's one shard and so would skip a shard added after it
+	 */
+	private int myLast = -1;
+
+	private int myDepth;
+
+	private final int myCapacity;
+
+	private final DropPolicy myDropPolicy;
+
+	private final long myOfferTimeout;
+
+	private final ExecutorService myWorkers;
+
+	private final AtomicInteger myActive = new AtomicInteger();
+
+	private final AtomicLong myProcessed = new AtomicLong();
+
+	private final AtomicLong myDropped = new AtomicLong();
+
+	private volatile boolean myRunning = true;
+
+	public AnalysisQueue(
+			@Value("${analysisQueueCapacity:50}") int theCapacity,
+			@Value("${analysisWorkers:2}") int theWorkers,
+			@Value("${analysisDropPolicy:DROP_OLDEST}") DropPolicy theDropPolicy,
+			@Value("${analysisOfferTimeout:2000}") long theOfferTimeout) {
+		myCapacity = Math.max(1, theCapacity);
+		myDropPolicy = theDropPolicy;
+		myOfferTimeout = theOfferTimeout;
+		AtomicInteger aThreadCount = new AtomicInteger();
+		myWorkers = Executors.newFixedThreadPool(theWorkers, theRunnable -> {
+			Thread aThread = new Thread(theRunnable, "analysis-worker-" + aThreadCount.incrementAndGet());
+			aThread.setDaemon(true);
+			return aThread;
+		});
+		for (int ai = 0; ai < theWorkers; ai++) {
+			myWorkers.execute(this::drain);
+		}
+		logger.info("Analysis queue started, capacity " + theCapacity + " per camera, " + theWorkers + " workers, "
+				+ theDropPolicy);
+	}
+
+	/**
+	 * Queue a job for analysis on its camera's queue, applying the configured drop policy if that
+	 * queue is full
+	 *
+	 * @param theJob job to run
+	 * @return true if the job was accepted
+	 */
+	public boolean submit(AnalysisJob theJob) {
+		AnalysisJob anEvicted = null;
+		myLock.lock();
+		try {
+			ArrayDeque<AnalysisJob> aShard = myShards.computeIfAbsent(theJob.getShard(), theShard -> {
+				ArrayDeque<AnalysisJob> aNew = new ArrayDeque<>();
+				myRotation.add(aNew);
+				return aNew;
+			});
+			if (aShard.size() >= myCapacity) {
+				switch (myDropPolicy) {
+					case BLOCK:
+						long aRemaining = TimeUnit.MILLISECONDS.toNanos(myOfferTimeout);
+						try {
+							while (aShard.size() >= myCapacity && aRemaining > 0) {
+								aRemaining = myNotFull.awaitNanos(aRemaining);
+							}
+						} catch (InterruptedException theE) {
+							Thread.currentThread().interrupt();
+						}
+						if (aShard.size() >= myCapacity) {
+							return reject(theJob);
+						}
+						break;
+					case DROP_OLDEST:
+						anEvicted = aShard.pollFirst();
+						myDepth--;
+						myDropped.incrementAndGet();
+						logger.warn("Queue full, dropping " + anEvicted.getFile());
+						break;
+					default:
+						return reject(theJob);
+				}
+			}
+			aShard.addLast(theJob);
+			myDepth++;
+			myNotEmpty.signal();
+			return true;
+		} finally {
+			myLock.unlock();
+			// Storing the dropped frame does I/O, other producers and the workers mustn't wait on it
+			if (anEvicted != null) {
+				anEvicted.dropped();
+			}
+		}
+	}
+
+	private boolean reject(AnalysisJob theJob) {
+		myDropped.incrementAndGet();
+		logger.warn("Queue full, rejecting " + theJob.getFile());
+		return false;
+	}
+
+	public int getDepth() {
+		myLock.lock();
+		try {
+			return myDepth;
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public Status getStatus() {
+		myLock.lock();
+		try {
+			Map<String, Integer> aShards = new LinkedHashMap<>();
+			myShards.forEach((theShard, theJobs) -> aShards.put(theShard, theJobs.size()));
+			return new Status(myDepth, myCapacity, myActive.get(), myProcessed.get(), myDropped.get(), aShards);
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/** Take the next job, visiting the cameras' queues round robin */
+	private AnalysisJob take() throws InterruptedException {
+		myLock.lockInterruptibly();
+		try {
+			while (myDepth == 0) {
+				myNotEmpty.await();
+			}
+			for (int ai = 1; ai <= myRotation.size(); ai++) {
+				int anIndex = (myLast + ai) % myRotation.size();
+				ArrayDeque<AnalysisJob> aShard = myRotation.get(anIndex);
+				if (!aShard.isEmpty()) {
+					myLast = anIndex;
+					myDepth--;
+					myNotFull.signalAll();
+					return aShard.pollFirst();
+				}
+			}
+			throw new IllegalStateException("Queue depth " + myDepth + " but every camera's queue is empty");
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	private void drain() {
+		while (myRunning) {
+			AnalysisJob aJob;
+			try {
+				aJob = take();
+			} catch (InterruptedException theE) {
+				return;
+			}
+			myActive.incrementAndGet();
+			try {
+				aJob.run();
+			} catch (Exception theE) {
+				logger.error("Analysis of " + aJob.getFile() + " failed", theE);
+			} finally {
+				myActive.decrementAndGet();
+				myProcessed.incrementAndGet();
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		myRunning = false;
+		myWorkers.shutdownNow();
+	}
+}
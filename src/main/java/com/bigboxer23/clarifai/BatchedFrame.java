@@ -0,0 +1,111 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A frame waiting to be sent to clarifai as part of a multi-input request, with its callbacks. Only
+ * the first callback to run counts, so a frame is never both stored and failed.
+ */
+public class BatchedFrame {
+	private final File myFile;
+
+	private final Consumer<? super File> mySuccess;
+
+	private final Consumer<? super File> myFailure;
+
+	/** Run when clarifai never answered for the frame */
+	private final Consumer<? super File> myUnanswered;
+
+	/** Given the concepts clarifai answered with, before the frame is decided */
+	private final Consumer<List<Concept>> myAnswered;
+
+	private Long myHash;
+
+	private final AtomicBoolean myDone = new AtomicBoolean();
+
+	/** Near identical frames decided from this frame's concepts instead of being sent themselves */
+	private final List<BatchedFrame> myFollowers = new ArrayList<>();
+
+	public BatchedFrame(File theFile, Consumer<? super File> theSuccess, Consumer<? super File> theFailure) {
+		this(theFile, theSuccess, theFailure, theFailure, null);
+	}
+
+	public BatchedFrame(
+			File theFile,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theUnanswered,
+			Long theHash) {
+		this(theFile, theSuccess, theFailure, theUnanswered, theHash, theConcepts -> {});
+	}
+
+	public BatchedFrame(
+			File theFile,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theUnanswered,
+			Long theHash,
+			Consumer<List<Concept>> theAnswered) {
+		myFile = theFile;
+		mySuccess = theSuccess;
+		myFailure = theFailure;
+		myUnanswered = theUnanswered;
+		myHash = theHash;
+		myAnswered = theAnswered;
+	}
+
+	public File getFile() {
+		return myFile;
+	}
+
+	/**
+	 * @return perceptual hash of the frame, null if it couldn't be computed
+	 */
+	public Long getHash() {
+		return myHash;
+	}
+
+	/**
+	 * @return whether one of the frame's callbacks has run
+	 */
+	public boolean isDone() {
+		return myDone.get();
+	}
+
+	public synchronized void addFollower(BatchedFrame theFrame) {
+		myFollowers.add(theFrame);
+	}
+
+	public void answered(List<Concept> theConcepts) {
+		myAnswered.accept(theConcepts);
+	}
+
+	public void success() {
+		if (myDone.compareAndSet(false, true)) {
+			mySuccess.accept(myFile);
+		}
+	}
+
+	public void failure() {
+		if (myDone.compareAndSet(false, true)) {
+			myFailure.accept(myFile);
+		}
+	}
+
+	/** The request failed or had no usable output for the frame, nor for followers still undecided */
+	public void unanswered() {
+		if (myDone.compareAndSet(false, true)) {
+			myUnanswered.accept(myFile);
+		}
+		getFollowers().forEach(BatchedFrame::unanswered);
+	}
+
+	public synchronized List<BatchedFrame> getFollowers() {
+		return new ArrayList<>(myFollowers);
+	}
+}
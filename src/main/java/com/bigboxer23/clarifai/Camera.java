@@ -0,0 +1,27 @@
+package com.bigboxer23.clarifai;
+
+/**
+ * Settings for one motion camera. Frames are matched to a camera by {@code path} prefix.
+ *
+ * @param name identifies the camera in queues, quota and logs
+ * @param path directory the camera's motion instance saves frames to
+ * @param modelId clarifai model frames are analyzed with
+ * @param threshold concept value at or above which a frame is noteworthy
+ * @param s3Prefix prepended to the Success/ and Failure/ S3 keys
+ * @param notificationUrl webhook called on success, may be empty
+ * @param notificationEmail address success mail is sent to
+ * @param afterStoredCallback called with a link to a success once it's stored, may be empty
+ * @param subject subject line of success mail
+ */
+public record Camera(
+		String name,
+		String path,
+		String modelId,
+		double threshold,
+		String s3Prefix,
+		String notificationUrl,
+		String notificationEmail,
+		String afterStoredCallback,
+		String subject) {
+	public static final String kDefault = "default";
+}
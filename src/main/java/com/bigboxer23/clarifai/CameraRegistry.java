@@ -0,0 +1,151 @@
+package com.bigboxer23.clarifai;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cameras frames can come from. The top level properties ({@code basepath}, {@code modelId},
+ * {@code threshold}, ...) describe the {@code default} camera, more are added with {@code
+ * cameras.<name>.<setting>} properties where any setting left out is taken from the default
+ * camera. Each camera needs its own {@code path}, and {@code default} can't be used as a name:
+ *
+ * <pre>
+ * cameras.driveway.path=/var/lib/motion/driveway/
+ * cameras.driveway.threshold=.85
+ * cameras.driveway.s3Prefix=Driveway/
+ * cameras.driveway.subject=Driveway Motion
+ * </pre>
+ */
+@Component
+public class CameraRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(CameraRegistry.class);
+
+	/** Per camera overrides as bound from properties, null settings fall back to the default camera */
+	public record Settings(
+			String path,
+			String modelId,
+			Double threshold,
+			String s3Prefix,
+			String notificationUrl,
+			String notificationEmail,
+			String afterStoredCallback,
+			String subject) {}
+
+	private final Camera myDefault;
+
+	private final Map<String, Camera> myCameras = new LinkedHashMap<>();
+
+	/** Longest path first, so nested camera directories resolve to the most specific camera */
+	private final List<Camera> myByPath = new ArrayList<>();
+
+	@Autowired
+	public CameraRegistry(
+			Environment theEnvironment,
+			@Value("${basepath}") String theBasePath,
+			@Value("${modelId}") String theModelId,
+			@Value("${threshold}") double theThreshold,
+			@Value("${notificationUrl:}") String theNotificationUrl,
+			@Value("${notificationEmail}") String theNotificationEmail,
+			@Value("${afterStoredCallback:}") String theAfterStoredCallback,
+			@Value("${mailSubject:Front Door Motion}") String theSubject) {
+		this(
+				new Camera(
+						Camera.kDefault,
+						theBasePath,
+						theModelId,
+						theThreshold,
+						"",
+						theNotificationUrl,
+						theNotificationEmail,
+						theAfterStoredCallback,
+						theSubject),
+				Binder.get(theEnvironment)
+						.bind("cameras", Bindable.mapOf(String.class, Settings.class))
+						.orElse(Collections.emptyMap()));
+	}
+
+	public CameraRegistry(Camera theDefault, Map<String, Settings> theCameras) {
+		myDefault = theDefault;
+		myCameras.put(theDefault.name(), theDefault);
+		theCameras.forEach((theName, theSettings) -> {
+			if (Camera.kDefault.equals(theName)) {
+				throw new IllegalArgumentException("cameras." + theName + " clashes with the default camera, which is"
+						+ " set by the top level properties, give it another name");
+			}
+			if (theSettings.path() == null || theSettings.path().isEmpty()) {
+				throw new IllegalArgumentException("cameras." + theName + ".path isn't set, each camera needs its own"
+						+ " directory");
+			}
+			Camera aCamera = new Camera(
+					theName,
+					theSettings.path(),
+					theSettings.modelId() != null ? theSettings.modelId() : theDefault.modelId(),
+					theSettings.threshold() != null ? theSettings.threshold() : theDefault.threshold(),
+					theSettings.s3Prefix() != null ? theSettings.s3Prefix() : theDefault.s3Prefix(),
+					theSettings.notificationUrl() != null ? theSettings.notificationUrl() : theDefault.notificationUrl(),
+					theSettings.notificationEmail() != null
+							? theSettings.notificationEmail()
+							: theDefault.notificationEmail(),
+					theSettings.afterStoredCallback() != null
+							? theSettings.afterStoredCallback()
+							: theDefault.afterStoredCallback(),
+					theSettings.subject() != null ? theSettings.subject() : theName + " Motion");
+			for (Camera anOther : myCameras.values()) {
+				if (aCamera.path().equals(anOther.path())) {
+					throw new IllegalArgumentException(
+							"Cameras " + anOther.name() + " and " + theName + " both watch " + aCamera.path());
+				}
+			}
+			myCameras.put(theName, aCamera);
+			logger.info("Camera " + theName + " watching " + aCamera.path());
+		});
+		myCameras.values().stream()
+				.filter(theCamera -> theCamera.path() != null)
+				.sorted(Comparator.comparingInt((Camera theCamera) -> theCamera.path().length())
+						.reversed())
+				.forEach(myByPath::add);
+	}
+
+	public Camera getDefault() {
+		return myDefault;
+	}
+
+	/**
+	 * @return the camera with the name, null if there isn't one
+	 */
+	public Camera get(String theName) {
+		return myCameras.get(theName);
+	}
+
+	/**
+	 * @return every camera, default first
+	 */
+	public List<Camera> getCameras() {
+		return List.copyOf(myCameras.values());
+	}
+
+	/**
+	 * @param thePath path of a frame
+	 * @return the camera whose directory holds the frame, null if it's not under any camera's path
+	 */
+	public Camera resolve(String thePath) {
+		for (Camera aCamera : myByPath) {
+			if (thePath.startsWith(aCamera.path())) {
+				return aCamera;
+			}
+		}
+		return null;
+	}
+}
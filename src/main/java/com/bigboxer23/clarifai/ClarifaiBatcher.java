@@ -0,0 +1,284 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects frames for a short window (or until the batch is full) so a burst of motion frames is
+ * sent to clarifai as one multi-input request instead of one round trip per frame. Each camera is
+ * batched separately since a request is made against a single model.
+ */
+@Component
+public class ClarifaiBatcher {
+	private static final Logger logger = LoggerFactory.getLogger(ClarifaiBatcher.class);
+
+	public record Stats(long batches, long frames, long quotaUnits, int lastBatchUnits) {}
+
+	private final AnalysisManager myAnalysisManager;
+
+	private final VerdictCache myVerdictCache;
+
+	private final QuotaGovernor myQuotaGovernor;
+
+	private final int myBatchSize;
+
+	private final long myBatchWindow;
+
+	private final boolean myAsync;
+
+	private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "clarifai-batcher");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	/** A camera's batch in the making, guarded by the batcher's lock */
+	private static class Pending {
+		private final Camera myCamera;
+
+		private final List<BatchedFrame> myFrames = new ArrayList<>();
+
+		private ScheduledFuture<?> myFlush;
+
+		private Pending(Camera theCamera) {
+			myCamera = theCamera;
+		}
+	}
+
+	private final Map<String, Pending> myPending = new HashMap<>();
+
+	private final AtomicLong myBatches = new AtomicLong();
+
+	private final AtomicLong myFrames = new AtomicLong();
+
+	private final AtomicLong myQuotaUnits = new AtomicLong();
+
+	private volatile int myLastBatchUnits;
+
+	public ClarifaiBatcher(
+			AnalysisManager theAnalysisManager,
+			VerdictCache theVerdictCache,
+			QuotaGovernor theQuotaGovernor,
+			@Value("${clarifaiBatchSize:5}") int theBatchSize,
+			@Value("${clarifaiBatchWindow:250}") long theBatchWindow,
+			@Value("${clarifaiAsync:true}") boolean theAsync) {
+		myAnalysisManager = theAnalysisManager;
+		myVerdictCache = theVerdictCache;
+		myQuotaGovernor = theQuotaGovernor;
+		myBatchSize = Math.max(1, theBatchSize);
+		myBatchWindow = theBatchWindow;
+		myAsync = theAsync;
+	}
+
+	/**
+	 * Add a frame to the current batch. The batch is sent once it holds {@code clarifaiBatchSize}
+	 * frames or {@code clarifaiBatchWindow} milliseconds after its first frame arrived, whichever is
+	 * first. Frames nearly identical to a recently analyzed frame, or to one already waiting in the
+	 * batch, aren't sent and are decided from that frame's concepts. Frames the {@link QuotaGovernor} won't
+	 * admit, or clarifai never answers for, are skipped rather than judged.
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theFile the file to send
+	 * @param theSuccess method to call if clarifai says the image is noteworthy
+	 * @param theFailure method to call if clarifai says the image is not noteworthy
+	 * @param theSkipped method to call if the image wasn't analyzed
+	 */
+	public void submit(
+			Camera theCamera,
+			File theFile,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theSkipped) {
+		submit(theCamera, theFile, null, theSuccess, theFailure, theSkipped);
+	}
+
+	/**
+	 * @param theLuma the frame's small grayscale copy if it's already been decoded, null to decode it
+	 *     here when it needs hashing
+	 */
+	public void submit(
+			Camera theCamera,
+			File theFile,
+			FrameScorer.Luma theLuma,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theSkipped) {
+		Long aHash = getHash(theFile, theLuma);
+		if (aHash != null) {
+			Optional<List<Concept>> aCached = myVerdictCache.lookup(theCamera.name(), aHash);
+			if (aCached.isPresent()) {
+				logger.info("Reusing cached concepts for " + theFile.getName());
+				myVerdictCache.recordSavedCall();
+				myAnalysisManager.decide(
+						theCamera, new BatchedFrame(theFile, theSuccess, theFailure, theSkipped, null), aCached.get());
+				return;
+			}
+		}
+		List<BatchedFrame> aFullBatch = null;
+		boolean anAdmitted;
+		synchronized (this) {
+			Pending aPending = myPending.computeIfAbsent(theCamera.name(), theName -> new Pending(theCamera));
+			if (aHash != null) {
+				for (BatchedFrame aFrame : aPending.myFrames) {
+					if (aFrame.getHash() != null && myVerdictCache.isNear(aHash, aFrame.getHash())) {
+						logger.info(theFile.getName() + " follows " + aFrame.getFile().getName());
+						myVerdictCache.recordSavedCall();
+						aFrame.addFollower(new BatchedFrame(theFile, theSuccess, theFailure, theSkipped, null));
+						return;
+					}
+				}
+			}
+			anAdmitted = myQuotaGovernor.tryAcquire(theCamera.name());
+			if (!anAdmitted) {
+				logger.warn("Quota low, not analyzing " + theFile.getName());
+			} else {
+				addPending(aPending, theFile, theSuccess, theFailure, theSkipped, aHash);
+			}
+			if (aPending.myFrames.size() >= myBatchSize) {
+				aFullBatch = takePending(aPending);
+			} else if (aPending.myFlush == null && !aPending.myFrames.isEmpty()) {
+				aPending.myFlush =
+						myScheduler.schedule(() -> flush(theCamera.name()), myBatchWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (!anAdmitted) {
+			theSkipped.accept(theFile);
+		}
+		if (aFullBatch != null) {
+			send(theCamera, aFullBatch);
+		}
+	}
+
+	private void addPending(
+			Pending thePending,
+			File theFile,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theSkipped,
+			Long theHash) {
+		String aCamera = thePending.myCamera.name();
+		thePending.myFrames.add(new BatchedFrame(
+				theFile,
+				theSuccess,
+				theFailure,
+				theSkippedFile -> {
+					// Clarifai never answered, the call wasn't used
+					myQuotaGovernor.refund(aCamera);
+					theSkipped.accept(theSkippedFile);
+				},
+				theHash,
+				theConcepts -> remember(aCamera, theHash, theConcepts)));
+	}
+
+	private Long getHash(File theFile, FrameScorer.Luma theLuma) {
+		if (!myVerdictCache.isEnabled()) {
+			return null;
+		}
+		try {
+			return PerceptualHash.dHash(theLuma != null ? theLuma : FrameScorer.decode(theFile));
+		} catch (IOException | RuntimeException theE) {
+			logger.warn("Couldn't hash " + theFile + ", sending without dedup", theE);
+			return null;
+		}
+	}
+
+	private void remember(String theCamera, Long theHash, List<Concept> theConcepts) {
+		if (theHash != null) {
+			myVerdictCache.put(theCamera, theHash, theConcepts);
+		}
+	}
+
+	/** Send whatever is waiting for every camera, regardless of batch size */
+	public void flush() {
+		List<String> aCameras;
+		synchronized (this) {
+			aCameras = new ArrayList<>(myPending.keySet());
+		}
+		aCameras.forEach(this::flush);
+	}
+
+	private void flush(String theCamera) {
+		Camera aCamera;
+		List<BatchedFrame> aBatch;
+		synchronized (this) {
+			Pending aPending = myPending.get(theCamera);
+			if (aPending == null) {
+				return;
+			}
+			aCamera = aPending.myCamera;
+			aBatch = takePending(aPending);
+		}
+		if (!aBatch.isEmpty()) {
+			send(aCamera, aBatch);
+		}
+	}
+
+	public Stats getStats() {
+		return new Stats(myBatches.get(), myFrames.get(), myQuotaUnits.get(), myLastBatchUnits);
+	}
+
+	private List<BatchedFrame> takePending(Pending thePending) {
+		if (thePending.myFlush != null) {
+			thePending.myFlush.cancel(false);
+			thePending.myFlush = null;
+		}
+		List<BatchedFrame> aBatch = new ArrayList<>(thePending.myFrames);
+		thePending.myFrames.clear();
+		return aBatch;
+	}
+
+	private void send(Camera theCamera, List<BatchedFrame> theBatch) {
+		if (myAsync) {
+			myAnalysisManager.sendToClarifaiAsync(theCamera, theBatch).whenComplete((theUnits, theError) -> {
+				if (theError != null) {
+					failed(theBatch, theError);
+					return;
+				}
+				recordBatch(theBatch.size(), theUnits);
+			});
+			return;
+		}
+		try {
+			recordBatch(theBatch.size(), myAnalysisManager.sendToClarifai(theCamera, theBatch));
+		} catch (Exception theE) {
+			failed(theBatch, theE);
+		}
+	}
+
+	/** Fail the frames of a batch that didn't get a verdict before the request failed */
+	private void failed(List<BatchedFrame> theBatch, Throwable theError) {
+		logger.error("Batch of " + theBatch.size() + " frames failed", theError);
+		theBatch.forEach(BatchedFrame::unanswered);
+	}
+
+	private void recordBatch(int theFrames, int theUnits) {
+		myBatches.incrementAndGet();
+		myFrames.addAndGet(theFrames);
+		myQuotaUnits.addAndGet(theUnits);
+		myLastBatchUnits = theUnits;
+		logger.info("Batch of " + theFrames + " frames used " + theUnits + " quota units");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flush();
+		myScheduler.shutdownNow();
+	}
+}
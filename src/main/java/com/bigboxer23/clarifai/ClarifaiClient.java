@@ -0,0 +1,128 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.MultiOutputResponse;
+import com.clarifai.grpc.api.PostModelOutputsRequest;
+import com.clarifai.grpc.api.V2Grpc;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import io.grpc.Status;
+import jakarta.annotation.PreDestroy;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Non-blocking clarifai client built on the future stub. Calls that fail with a retryable gRPC
+ * status are retried with jittered exponential backoff, and the number of requests in flight is
+ * capped so a slow API pushes back on the analysis workers instead of piling up requests.
+ */
+@Component
+public class ClarifaiClient {
+	private static final Logger logger = LoggerFactory.getLogger(ClarifaiClient.class);
+
+	private static final Set<Status.Code> kRetryable = EnumSet.of(
+			Status.Code.UNAVAILABLE,
+			Status.Code.DEADLINE_EXCEEDED,
+			Status.Code.RESOURCE_EXHAUSTED,
+			Status.Code.ABORTED);
+
+	private final V2Grpc.V2FutureStub myStub;
+
+	private final int myMaxAttempts;
+
+	private final long myBackoffBase;
+
+	private final long myBackoffMax;
+
+	private final Semaphore myInFlight;
+
+	private final ScheduledExecutorService myExecutor;
+
+	public ClarifaiClient(
+			V2Grpc.V2FutureStub theStub,
+			@Value("${clarifaiMaxAttempts:3}") int theMaxAttempts,
+			@Value("${clarifaiBackoffBase:250}") long theBackoffBase,
+			@Value("${clarifaiBackoffMax:5000}") long theBackoffMax,
+			@Value("${clarifaiMaxInFlight:4}") int theMaxInFlight) {
+		myStub = theStub;
+		myMaxAttempts = Math.max(1, theMaxAttempts);
+		myBackoffBase = theBackoffBase;
+		myBackoffMax = theBackoffMax;
+		myInFlight = new Semaphore(theMaxInFlight);
+		AtomicInteger aThreadCount = new AtomicInteger();
+		myExecutor = Executors.newScheduledThreadPool(2, theRunnable -> {
+			Thread aThread = new Thread(theRunnable, "clarifai-client-" + aThreadCount.incrementAndGet());
+			aThread.setDaemon(true);
+			return aThread;
+		});
+	}
+
+	/**
+	 * Send the request, blocking only while the maximum number of requests are already in flight
+	 *
+	 * @param theRequest request to send
+	 * @return future completed with the response, on a client thread, or the last failure once
+	 *     retries are exhausted
+	 */
+	public CompletableFuture<MultiOutputResponse> postModelOutputs(PostModelOutputsRequest theRequest) {
+		CompletableFuture<MultiOutputResponse> aResult = new CompletableFuture<>();
+		try {
+			myInFlight.acquire();
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+			aResult.completeExceptionally(theE);
+			return aResult;
+		}
+		aResult.whenComplete((theResponse, theError) -> myInFlight.release());
+		attempt(theRequest, 1, aResult);
+		return aResult;
+	}
+
+	private void attempt(
+			PostModelOutputsRequest theRequest, int theAttempt, CompletableFuture<MultiOutputResponse> theResult) {
+		Futures.addCallback(
+				myStub.postModelOutputs(theRequest),
+				new FutureCallback<>() {
+					@Override
+					public void onSuccess(MultiOutputResponse theResponse) {
+						theResult.complete(theResponse);
+					}
+
+					@Override
+					public void onFailure(Throwable theError) {
+						Status.Code aCode = Status.fromThrowable(theError).getCode();
+						if (!kRetryable.contains(aCode) || theAttempt >= myMaxAttempts) {
+							logger.error("Clarifai call failed after " + theAttempt + " attempt(s): " + aCode);
+							theResult.completeExceptionally(theError);
+							return;
+						}
+						long aDelay = getBackoff(theAttempt);
+						logger.warn("Clarifai call failed (" + aCode + "), retrying in " + aDelay + "ms");
+						myExecutor.schedule(
+								() -> attempt(theRequest, theAttempt + 1, theResult), aDelay, TimeUnit.MILLISECONDS);
+					}
+				},
+				myExecutor);
+	}
+
+	/** "Full jitter" backoff, a random delay up to the exponential ceiling for this attempt */
+	private long getBackoff(int theAttempt) {
+		long aCeiling = Math.min(myBackoffMax, myBackoffBase << Math.min(theAttempt - 1, 20));
+		return ThreadLocalRandom.current().nextLong(aCeiling + 1);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+}
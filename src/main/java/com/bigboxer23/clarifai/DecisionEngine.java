@@ -0,0 +1,286 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides once per frame whether clarifai's concepts make it noteworthy. Each camera's rules are
+ * set with {@code rules.<camera>.<setting>} properties, any setting left out is taken from {@code
+ * rules.default}. With no rules a frame is noteworthy when any concept reaches the camera's
+ * threshold.
+ *
+ * <pre>
+ * rules.default.thresholds.people=.8
+ * rules.default.exclude=no person
+ * rules.driveway.include=car,truck
+ * rules.driveway.hours=22:00-06:00
+ * rules.driveway.consecutive=2
+ * </pre>
+ *
+ * Concepts without their own threshold use the camera's. When {@code include} is set only those
+ * concepts count, an {@code exclude} concept at or above its threshold makes the frame a failure.
+ * Outside the {@code hours} windows (local time) nothing is noteworthy, and with {@code
+ * consecutive} a frame is only noteworthy once that many positive frames from the camera came in a
+ * row, no more than {@code eventGap} seconds apart. Rules are compiled up front so deciding a frame
+ * doesn't allocate.
+ */
+@Component
+public class DecisionEngine {
+	private static final Logger logger = LoggerFactory.getLogger(DecisionEngine.class);
+
+	private static final int kMinutesPerDay = 24 * 60;
+
+	/** Rules as bound from properties, null settings fall back to {@code rules.default} */
+	public record Settings(
+			Map<String, Double> thresholds,
+			List<String> include,
+			List<String> exclude,
+			List<String> hours,
+			Integer consecutive) {}
+
+	public enum Outcome {
+		NOTEWORTHY,
+		BELOW_THRESHOLD,
+		EXCLUDED,
+		OUTSIDE_HOURS,
+		AWAITING_STREAK
+	}
+
+	/** Verdict for one frame, reused across frames so deciding doesn't allocate */
+	public static final class Decision {
+		private Outcome myOutcome;
+
+		private String myConcept;
+
+		private float myScore;
+
+		public Outcome getOutcome() {
+			return myOutcome;
+		}
+
+		public boolean isNoteworthy() {
+			return myOutcome == Outcome.NOTEWORTHY;
+		}
+
+		/**
+		 * @return concept that decided the frame, null if clarifai returned none that count
+		 */
+		public String getConcept() {
+			return myConcept;
+		}
+
+		public float getScore() {
+			return myScore;
+		}
+
+		private void set(Outcome theOutcome, String theConcept, float theScore) {
+			myOutcome = theOutcome;
+			myConcept = theConcept;
+			myScore = theScore;
+		}
+	}
+
+	private record ConceptRule(float threshold, boolean excluded) {}
+
+	/** A camera's settings resolved into lookups */
+	private static final class Rule {
+		private final Map<String, ConceptRule> myConcepts = new HashMap<>();
+
+		/** Threshold of concepts without a rule, infinite when only included concepts count */
+		private final float myDefaultThreshold;
+
+		/** Start and end minute of day of each window, empty for all day */
+		private final int[] myHours;
+
+		private final int myConsecutive;
+
+		/** Positive frames in a row and when the last came in, guarded by the rule's lock */
+		private int myStreak;
+
+		private long myLastPositive;
+
+		private Rule(Camera theCamera, Settings theSettings, Settings theDefault) {
+			float aThreshold = (float) theCamera.threshold();
+			Map<String, Double> aThresholds = pick(theSettings.thresholds(), theDefault.thresholds());
+			List<String> anInclude = pick(theSettings.include(), theDefault.include());
+			List<String> anExclude = pick(theSettings.exclude(), theDefault.exclude());
+			List<String> aHours = pick(theSettings.hours(), theDefault.hours());
+			Integer aConsecutive = pick(theSettings.consecutive(), theDefault.consecutive());
+			for (String aConcept : anInclude) {
+				myConcepts.put(aConcept, new ConceptRule(aThreshold, false));
+			}
+			aThresholds.forEach((theConcept, theThreshold) ->
+					myConcepts.put(theConcept, new ConceptRule(theThreshold.floatValue(), false)));
+			for (String aConcept : anExclude) {
+				myConcepts.put(
+						aConcept,
+						new ConceptRule(aThresholds.getOrDefault(aConcept, theCamera.threshold()).floatValue(), true));
+			}
+			myDefaultThreshold = anInclude.isEmpty() ? aThreshold : Float.POSITIVE_INFINITY;
+			myHours = new int[aHours.size() * 2];
+			for (int ai = 0; ai < aHours.size(); ai++) {
+				String[] aWindow = aHours.get(ai).trim().split("-");
+				if (aWindow.length != 2) {
+					throw new IllegalArgumentException("Expected hours as HH:mm-HH:mm, got " + aHours.get(ai));
+				}
+				myHours[ai * 2] = minuteOfDay(aWindow[0]);
+				myHours[ai * 2 + 1] = minuteOfDay(aWindow[1]);
+			}
+			myConsecutive = aConsecutive != null ? Math.max(1, aConsecutive) : 1;
+		}
+
+		private static <T> T pick(T theValue, T theDefault) {
+			return theValue != null ? theValue : theDefault;
+		}
+
+		private static int minuteOfDay(String theTime) {
+			String[] aParts = theTime.trim().split(":");
+			int aMinute = Integer.parseInt(aParts[0]) * 60 + (aParts.length > 1 ? Integer.parseInt(aParts[1]) : 0);
+			if (aMinute < 0 || aMinute > kMinutesPerDay) {
+				throw new IllegalArgumentException("Not a time of day: " + theTime);
+			}
+			return aMinute;
+		}
+
+		/** Count a positive frame, one coming more than theEventGap after the last starts a new streak */
+		private synchronized int countPositive(long theTime, long theEventGap) {
+			if (theTime - myLastPositive > theEventGap) {
+				myStreak = 0;
+			}
+			myLastPositive = theTime;
+			return ++myStreak;
+		}
+
+		private synchronized void resetStreak() {
+			myStreak = 0;
+		}
+
+		private boolean inHours(int theMinute) {
+			if (myHours.length == 0) {
+				return true;
+			}
+			for (int ai = 0; ai < myHours.length; ai += 2) {
+				int aStart = myHours[ai];
+				int anEnd = myHours[ai + 1];
+				// A window ending before it starts wraps past midnight
+				if (aStart <= anEnd
+						? theMinute >= aStart && theMinute < anEnd
+						: theMinute >= aStart || theMinute < anEnd) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final Settings kNoSettings = new Settings(Map.of(), List.of(), List.of(), List.of(), null);
+
+	private final Settings myDefault;
+
+	private final Map<String, Settings> mySettings;
+
+	private final Map<String, Rule> myRules = new ConcurrentHashMap<>();
+
+	private final TimeZone myZone = TimeZone.getDefault();
+
+	private final long myEventGap;
+
+	@Autowired
+	public DecisionEngine(
+			Environment theEnvironment, CameraRegistry theCameras, @Value("${eventGap:5}") long theEventGap) {
+		this(
+				theCameras,
+				Binder.get(theEnvironment)
+						.bind("rules", Bindable.mapOf(String.class, Settings.class))
+						.orElse(Collections.emptyMap()),
+				theEventGap);
+	}
+
+	public DecisionEngine(CameraRegistry theCameras, Map<String, Settings> theSettings, long theEventGap) {
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		Settings aDefault = theSettings.getOrDefault(Camera.kDefault, kNoSettings);
+		myDefault = new Settings(
+				Rule.pick(aDefault.thresholds(), kNoSettings.thresholds()),
+				Rule.pick(aDefault.include(), kNoSettings.include()),
+				Rule.pick(aDefault.exclude(), kNoSettings.exclude()),
+				Rule.pick(aDefault.hours(), kNoSettings.hours()),
+				aDefault.consecutive());
+		mySettings = theSettings;
+		for (Camera aCamera : theCameras.getCameras()) {
+			myRules.put(aCamera.name(), compile(aCamera));
+		}
+	}
+
+	private Rule compile(Camera theCamera) {
+		Settings aSettings = mySettings.getOrDefault(theCamera.name(), myDefault);
+		if (aSettings != myDefault) {
+			logger.info("Rules for " + theCamera.name() + ": " + aSettings);
+		}
+		return new Rule(theCamera, aSettings, myDefault);
+	}
+
+	/**
+	 * Decide a frame from clarifai's concepts. The deciding concept is the one furthest above its
+	 * threshold, or the strongest excluded concept when one vetoes the frame.
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theConcepts concepts clarifai returned for the frame
+	 * @param theTime when the frame was analyzed, epoch millis
+	 * @param theDecision filled in with the verdict
+	 */
+	public void decide(Camera theCamera, List<Concept> theConcepts, long theTime, Decision theDecision) {
+		Rule aRule = myRules.get(theCamera.name());
+		if (aRule == null) {
+			aRule = myRules.computeIfAbsent(theCamera.name(), theName -> compile(theCamera));
+		}
+		String aBest = null;
+		float aBestScore = 0;
+		float aBestMargin = Float.NEGATIVE_INFINITY;
+		String anExcluded = null;
+		float anExcludedScore = 0;
+		for (int ai = 0; ai < theConcepts.size(); ai++) {
+			Concept aConcept = theConcepts.get(ai);
+			ConceptRule aConceptRule = aRule.myConcepts.get(aConcept.getName());
+			float aThreshold = aConceptRule != null ? aConceptRule.threshold() : aRule.myDefaultThreshold;
+			float aScore = aConcept.getValue();
+			if (aConceptRule != null && aConceptRule.excluded()) {
+				if (aScore >= aThreshold && (anExcluded == null || aScore > anExcludedScore)) {
+					anExcluded = aConcept.getName();
+					anExcludedScore = aScore;
+				}
+			} else if (aThreshold != Float.POSITIVE_INFINITY && aScore - aThreshold > aBestMargin) {
+				aBest = aConcept.getName();
+				aBestScore = aScore;
+				aBestMargin = aScore - aThreshold;
+			}
+		}
+		if (anExcluded != null) {
+			aRule.resetStreak();
+			theDecision.set(Outcome.EXCLUDED, anExcluded, anExcludedScore);
+		} else if (aBestMargin < 0) {
+			aRule.resetStreak();
+			theDecision.set(Outcome.BELOW_THRESHOLD, aBest, aBestScore);
+		} else if (!aRule.inHours(Math.floorMod((theTime + myZone.getOffset(theTime)) / 60000, kMinutesPerDay))) {
+			aRule.resetStreak();
+			theDecision.set(Outcome.OUTSIDE_HOURS, aBest, aBestScore);
+		} else if (aRule.countPositive(theTime, myEventGap) < aRule.myConsecutive) {
+			theDecision.set(Outcome.AWAITING_STREAK, aBest, aBestScore);
+		} else {
+			theDecision.set(Outcome.NOTEWORTHY, aBest, aBestScore);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.bigboxer23.clarifai;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Optional alternative to motion calling {@code /analyze} for every frame: watches each camera's
+ * directory and queues new JPEGs directly. The JDK's watch service has no close-write event, so a
+ * frame is considered complete once it has had no events for {@code watchSettle} milliseconds and
+ * its size hasn't changed since the last event. Symbolic links, like motion's {@code lastsnap.jpg},
+ * and names matching {@code watchExclude} are ignored.
+ */
+@Component
+public class DirectoryWatcher {
+	private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+	public record Stats(int directories, int pending, long ingested, long overflows) {}
+
+	/** A frame still being written, size as of its last event */
+	private record Pending(long size, long lastEvent) {}
+
+	private final Consumer<File> mySink;
+
+	private final long mySettle;
+
+	/** Frame names to ignore, null to take every JPEG */
+	private final Pattern myExclude;
+
+	private final WatchService myWatchService;
+
+	private final Thread myThread;
+
+	/** Only touched by the watcher thread */
+	private final Map<Path, Pending> myPending = new HashMap<>();
+
+	private final AtomicLong myIngested = new AtomicLong();
+
+	private final AtomicLong myOverflows = new AtomicLong();
+
+	private volatile int myPendingCount;
+
+	private int myDirectories;
+
+	@Autowired
+	public DirectoryWatcher(
+			CameraRegistry theCameras,
+			AnalysisController theController,
+			@Value("${watchEnabled:false}") boolean theEnabled,
+			@Value("${watchSettle:500}") long theSettle,
+			@Value("${watchExclude:lastsnap.*}") String theExclude)
+			throws IOException {
+		this(
+				theEnabled
+						? theCameras.getCameras().stream().map(Camera::path).toList()
+						: List.of(),
+				theFile -> {
+					if (theController.isAnalysisPaused()) {
+						logger.info("Paused, not running " + theFile);
+						return;
+					}
+					if (!theController.queue(theFile)) {
+						logger.warn("Analysis queue full, not running " + theFile);
+					}
+				},
+				theSettle,
+				theExclude);
+	}
+
+	/**
+	 * @param theDirectories directories to watch, nothing is started if empty
+	 * @param theSink receives each completed frame
+	 * @param theSettle milliseconds without events before a frame is considered complete
+	 * @param theExclude regular expression for frame names to ignore, empty to take every JPEG
+	 */
+	DirectoryWatcher(Collection<String> theDirectories, Consumer<File> theSink, long theSettle, String theExclude)
+			throws IOException {
+		mySink = theSink;
+		mySettle = theSettle;
+		myExclude = theExclude == null || theExclude.isEmpty() ? null : Pattern.compile(theExclude);
+		if (theDirectories.isEmpty()) {
+			myWatchService = null;
+			myThread = null;
+			return;
+		}
+		myWatchService = FileSystems.getDefault().newWatchService();
+		Set<Path> aDirectories = new LinkedHashSet<>();
+		theDirectories.forEach(theDirectory -> aDirectories.add(Paths.get(theDirectory).toAbsolutePath()));
+		for (Path aDirectory : aDirectories) {
+			aDirectory.register(myWatchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			logger.info("Watching " + aDirectory + " for frames");
+		}
+		myDirectories = aDirectories.size();
+		myThread = new Thread(this::watch, "directory-watcher");
+		myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	private void watch() {
+		long aPoll = Math.max(10, mySettle / 2);
+		while (true) {
+			WatchKey aKey;
+			try {
+				aKey = myWatchService.poll(aPoll, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException | ClosedWatchServiceException theE) {
+				return;
+			}
+			long aNow = System.currentTimeMillis();
+			if (aKey != null) {
+				Path aDirectory = (Path) aKey.watchable();
+				for (WatchEvent<?> anEvent : aKey.pollEvents()) {
+					if (anEvent.kind() == OVERFLOW) {
+						myOverflows.incrementAndGet();
+						logger.warn("Too many events in " + aDirectory + ", some frames may be missed");
+						continue;
+					}
+					Path aPath = aDirectory.resolve((Path) anEvent.context());
+					if (anEvent.kind() == ENTRY_DELETE) {
+						myPending.remove(aPath);
+					} else if (isFrame(aPath)) {
+						myPending.put(aPath, new Pending(size(aPath), aNow));
+					}
+				}
+				if (!aKey.reset()) {
+					logger.warn(aDirectory + " can no longer be watched");
+				}
+			}
+			settle(aNow);
+		}
+	}
+
+	/** Hand on every frame that's been quiet for the settle time and didn't change size */
+	private void settle(long theNow) {
+		Iterator<Map.Entry<Path, Pending>> anIterator = myPending.entrySet().iterator();
+		while (anIterator.hasNext()) {
+			Map.Entry<Path, Pending> anEntry = anIterator.next();
+			if (theNow - anEntry.getValue().lastEvent() < mySettle) {
+				continue;
+			}
+			long aSize = size(anEntry.getKey());
+			if (aSize < 0) {
+				anIterator.remove();
+			} else if (aSize == 0 || aSize != anEntry.getValue().size()) {
+				anEntry.setValue(new Pending(aSize, theNow));
+			} else {
+				anIterator.remove();
+				myIngested.incrementAndGet();
+				try {
+					mySink.accept(anEntry.getKey().toFile());
+				} catch (RuntimeException theE) {
+					logger.error("Couldn't queue " + anEntry.getKey(), theE);
+				}
+			}
+		}
+		myPendingCount = myPending.size();
+	}
+
+	/** Links are skipped, uploading and deleting one would leave motion's link dangling */
+	private boolean isFrame(Path thePath) {
+		String aName = thePath.getFileName().toString();
+		String aLower = aName.toLowerCase();
+		return (aLower.endsWith(".jpg") || aLower.endsWith(".jpeg"))
+				&& (myExclude == null || !myExclude.matcher(aName).matches())
+				&& !Files.isSymbolicLink(thePath);
+	}
+
+	/**
+	 * @return size of the file, -1 if it's gone
+	 */
+	private long size(Path thePath) {
+		try {
+			return Files.size(thePath);
+		} catch (IOException theE) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Watching starts when the watcher is created. Nothing else depends on it, so with lazy
+	 * initialization (the {@code faststart} profile) this listener is what creates it, once the
+	 * application is up.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void onReady() {
+		logger.info("Watching " + myDirectories + " directories");
+	}
+
+	public Stats getStats() {
+		return new Stats(myDirectories, myPendingCount, myIngested.get(), myOverflows.get());
+	}
+
+	@PreDestroy
+	public void shutdown() throws IOException {
+		if (myWatchService != null) {
+			myWatchService.close();
+			myThread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Groups a camera's frames into motion events and only sends the most promising frames of each to
+ * clarifai. A frame more than {@code eventGap} seconds after the previous one starts a new event.
+ * Frames are collected into segments of {@code eventSegmentFrames} frames (or {@code
+ * eventSegmentWindow} milliseconds), each frame is scored locally on sharpness, changed area and
+ * exposure, and the top {@code eventTopK} of the segment are sent.
+ *
+ * <p>If any sent frame is noteworthy the event is: noteworthy frames go down the success path and
+ * the rest of the segment is archived as a success without a notification of its own. Once an
+ * event is noteworthy its later frames are archived straight away without calling clarifai.
+ * Frames decided here, by the pre-screen or their event's verdict, are added to the {@link
+ * AnalysisHistory}.
+ */
+@Component
+public class EventAggregator {
+	private static final Logger logger = LoggerFactory.getLogger(EventAggregator.class);
+
+	public record Stats(long events, long frames, long analyzed, long archived) {}
+
+	/** A scored frame waiting for its segment to be sent, its luma is reused to hash it */
+	private record Candidate(
+			File file,
+			FrameScorer.Luma luma,
+			double score,
+			Consumer<? super File> success,
+			Consumer<? super File> failure,
+			Consumer<? super File> skipped,
+			BiConsumer<? super File, Boolean> archive) {}
+
+	/** Frames of an event taken to be sent together */
+	private record Segment(Event event, List<Candidate> candidates) {}
+
+	/** A camera's current event, guarded by the aggregator's lock */
+	private static class Event {
+		private final Camera myCamera;
+
+		private long myLastFrame;
+
+		private FrameScorer.Luma myPrevious;
+
+		private boolean myNoteworthy;
+
+		private List<Candidate> mySegment = new ArrayList<>();
+
+		private ScheduledFuture<?> myFlush;
+
+		private Event(Camera theCamera) {
+			myCamera = theCamera;
+		}
+	}
+
+	private final ClarifaiBatcher myClarifaiBatcher;
+
+	private final MotionPreScreen myPreScreen;
+
+	private final AnalysisHistory myHistory;
+
+	private final int myTopK;
+
+	private final long myEventGap;
+
+	private final int mySegmentFrames;
+
+	private final long mySegmentWindow;
+
+	private final long myVerdictTimeout;
+
+	private final double mySharpnessWeight;
+
+	private final double myMotionWeight;
+
+	private final double myExposureWeight;
+
+	private final Map<String, Event> myEvents = new HashMap<>();
+
+	private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "event-aggregator");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	private final AtomicLong myEventCount = new AtomicLong();
+
+	private final AtomicLong myFrames = new AtomicLong();
+
+	private final AtomicLong myAnalyzed = new AtomicLong();
+
+	private final AtomicLong myArchived = new AtomicLong();
+
+	@Autowired
+	public EventAggregator(
+			ClarifaiBatcher theClarifaiBatcher,
+			MotionPreScreen thePreScreen,
+			AnalysisHistory theHistory,
+			@Value("${eventTopK:2}") int theTopK,
+			@Value("${eventGap:5}") long theEventGap,
+			@Value("${eventSegmentFrames:10}") int theSegmentFrames,
+			@Value("${eventSegmentWindow:1000}") long theSegmentWindow,
+			@Value("${eventVerdictTimeout:60}") long theVerdictTimeout,
+			@Value("${eventSharpnessWeight:1}") double theSharpnessWeight,
+			@Value("${eventMotionWeight:1}") double theMotionWeight,
+			@Value("${eventExposureWeight:.5}") double theExposureWeight) {
+		myClarifaiBatcher = theClarifaiBatcher;
+		myPreScreen = thePreScreen;
+		myHistory = theHistory;
+		myTopK = theTopK;
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		mySegmentFrames = Math.max(1, theSegmentFrames);
+		mySegmentWindow = theSegmentWindow;
+		myVerdictTimeout = TimeUnit.SECONDS.toMillis(theVerdictTimeout);
+		mySharpnessWeight = theSharpnessWeight;
+		myMotionWeight = theMotionWeight;
+		myExposureWeight = theExposureWeight;
+	}
+
+	/**
+	 * Add a frame to its camera's current event. Frames of an event that's already noteworthy are
+	 * archived without screening, otherwise frames the {@link MotionPreScreen} rejects are failures
+	 * straight away. With {@code eventTopK} of 0 or less frames are sent to clarifai one by
+	 * one as before.
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theFile the frame
+	 * @param theSuccess called if clarifai says the frame is noteworthy
+	 * @param theFailure called if the frame's event isn't noteworthy
+	 * @param theSkipped called if clarifai judged neither the frame nor the rest of its segment
+	 * @param theArchive called with the event's verdict for frames that weren't noteworthy themselves
+	 *     but belong to a noteworthy event
+	 */
+	public void submit(
+			Camera theCamera,
+			File theFile,
+			Consumer<? super File> theSuccess,
+			Consumer<? super File> theFailure,
+			Consumer<? super File> theSkipped,
+			BiConsumer<? super File, Boolean> theArchive) {
+		myFrames.incrementAndGet();
+		long aNow = System.currentTimeMillis();
+		if (myTopK > 0 && joinNoteworthy(theCamera, aNow)) {
+			archiveNoteworthy(theCamera, theFile, theArchive);
+			return;
+		}
+		FrameScorer.Luma aLuma = null;
+		if (myTopK > 0 || myPreScreen.isEnabled()) {
+			try {
+				aLuma = FrameScorer.decode(theFile);
+			} catch (IOException | RuntimeException theE) {
+				logger.warn("Couldn't score " + theFile + ", ranking it last", theE);
+			}
+		}
+		if (aLuma != null && myPreScreen.screen(theCamera.name(), aLuma) != MotionPreScreen.Verdict.PASSED) {
+			myHistory.record(theCamera, theFile, AnalysisHistory.Source.PRESCREENED, false);
+			theFailure.accept(theFile);
+			return;
+		}
+		if (myTopK <= 0) {
+			myAnalyzed.incrementAndGet();
+			myClarifaiBatcher.submit(theCamera, theFile, aLuma, theSuccess, theFailure, theSkipped);
+			return;
+		}
+		List<Segment> aFull = new ArrayList<>(2);
+		boolean aNoteworthy;
+		synchronized (this) {
+			Event anEvent = myEvents.get(theCamera.name());
+			if (anEvent == null || aNow - anEvent.myLastFrame > myEventGap) {
+				if (anEvent != null && !anEvent.mySegment.isEmpty()) {
+					aFull.add(takeSegment(anEvent));
+				}
+				anEvent = new Event(theCamera);
+				myEvents.put(theCamera.name(), anEvent);
+				myEventCount.incrementAndGet();
+			}
+			anEvent.myLastFrame = aNow;
+			aNoteworthy = anEvent.myNoteworthy;
+			if (!aNoteworthy) {
+				double aScore = score(aLuma, anEvent.myPrevious);
+				if (aLuma != null) {
+					anEvent.myPrevious = aLuma;
+				}
+				anEvent.mySegment.add(
+						new Candidate(theFile, aLuma, aScore, theSuccess, theFailure, theSkipped, theArchive));
+				if (anEvent.mySegment.size() >= mySegmentFrames) {
+					aFull.add(takeSegment(anEvent));
+				} else if (anEvent.myFlush == null) {
+					Event aFlushing = anEvent;
+					anEvent.myFlush =
+							myScheduler.schedule(() -> flush(aFlushing), mySegmentWindow, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (aNoteworthy) {
+			archiveNoteworthy(theCamera, theFile, theArchive);
+		}
+		aFull.forEach(this::send);
+	}
+
+	/**
+	 * @return whether the frame belongs to its camera's current event and that event is already
+	 *     noteworthy, the frame keeps the event open if it does
+	 */
+	private synchronized boolean joinNoteworthy(Camera theCamera, long theNow) {
+		Event anEvent = myEvents.get(theCamera.name());
+		if (anEvent == null || !anEvent.myNoteworthy || theNow - anEvent.myLastFrame > myEventGap) {
+			return false;
+		}
+		anEvent.myLastFrame = theNow;
+		return true;
+	}
+
+	private void archiveNoteworthy(Camera theCamera, File theFile, BiConsumer<? super File, Boolean> theArchive) {
+		logger.info(theFile.getName() + " is part of a noteworthy event, archiving");
+		myArchived.incrementAndGet();
+		myHistory.record(theCamera, theFile, AnalysisHistory.Source.EVENT, true);
+		theArchive.accept(theFile, true);
+	}
+
+	private double score(FrameScorer.Luma theLuma, FrameScorer.Luma thePrevious) {
+		if (theLuma == null) {
+			return -1;
+		}
+		return mySharpnessWeight * FrameScorer.sharpness(theLuma)
+				+ myMotionWeight * FrameScorer.changedArea(theLuma, thePrevious)
+				+ myExposureWeight * FrameScorer.exposure(theLuma);
+	}
+
+	private Segment takeSegment(Event theEvent) {
+		if (theEvent.myFlush != null) {
+			theEvent.myFlush.cancel(false);
+			theEvent.myFlush = null;
+		}
+		Segment aSegment = new Segment(theEvent, theEvent.mySegment);
+		theEvent.mySegment = new ArrayList<>();
+		return aSegment;
+	}
+
+	private void flush(Event theEvent) {
+		Segment aSegment;
+		synchronized (this) {
+			aSegment = takeSegment(theEvent);
+		}
+		send(aSegment);
+	}
+
+	/** Send every camera's open segment now */
+	public void flush() {
+		List<Event> anEvents;
+		synchronized (this) {
+			anEvents = new ArrayList<>(myEvents.values());
+		}
+		anEvents.forEach(this::flush);
+	}
+
+	public Stats getStats() {
+		return new Stats(myEventCount.get(), myFrames.get(), myAnalyzed.get(), myArchived.get());
+	}
+
+	/** Send the segment's best frames, the rest wait for their verdict */
+	private void send(Segment theSegment) {
+		if (theSegment.candidates().isEmpty()) {
+			return;
+		}
+		List<Candidate> aRanked = new ArrayList<>(theSegment.candidates());
+		aRanked.sort(Comparator.comparingDouble(Candidate::score).reversed());
+		int aSelected = Math.min(myTopK, aRanked.size());
+		Verdict aVerdict = new Verdict(theSegment.event(), aSelected, aRanked.subList(aSelected, aRanked.size()));
+		myScheduler.schedule(aVerdict::resolve, myVerdictTimeout, TimeUnit.MILLISECONDS);
+		myAnalyzed.addAndGet(aSelected);
+		for (Candidate aCandidate : aRanked.subList(0, aSelected)) {
+			logger.info("Sending " + aCandidate.file().getName() + " for its event, score " + aCandidate.score());
+			myClarifaiBatcher.submit(
+					theSegment.event().myCamera,
+					aCandidate.file(),
+					aCandidate.luma(),
+					theFile -> aVerdict.noteworthy(aCandidate),
+					theFile -> aVerdict.notNoteworthy(aCandidate),
+					theFile -> aVerdict.skipped(aCandidate));
+		}
+	}
+
+	/**
+	 * Collects the verdicts of a segment's sent frames. Once they're all in (or the timeout passes)
+	 * the frames that weren't noteworthy themselves are archived under the segment's verdict, or
+	 * skipped if clarifai judged none of them.
+	 */
+	private class Verdict {
+		private final Event myEvent;
+
+		private final List<Candidate> myHeld;
+
+		/** Sent frames clarifai gave an answer for, they're already in the history */
+		private final Set<Candidate> myAnswered = new HashSet<>();
+
+		private int myRemaining;
+
+		private boolean myNoteworthy;
+
+		private boolean myJudged;
+
+		private boolean myResolved;
+
+		private Verdict(Event theEvent, int theSent, List<Candidate> theRest) {
+			myEvent = theEvent;
+			myRemaining = theSent;
+			myHeld = new ArrayList<>(theRest);
+		}
+
+		private void noteworthy(Candidate theCandidate) {
+			synchronized (EventAggregator.this) {
+				myEvent.myNoteworthy = true;
+			}
+			boolean aDone;
+			synchronized (this) {
+				myNoteworthy = true;
+				myJudged = true;
+				myAnswered.add(theCandidate);
+				aDone = --myRemaining == 0;
+			}
+			theCandidate.success().accept(theCandidate.file());
+			if (aDone) {
+				resolve();
+			}
+		}
+
+		private void notNoteworthy(Candidate theCandidate) {
+			held(theCandidate, true);
+		}
+
+		/** Quota or a failed request kept the frame from clarifai, it takes the segment's verdict */
+		private void skipped(Candidate theCandidate) {
+			held(theCandidate, false);
+		}
+
+		private void held(Candidate theCandidate, boolean theJudged) {
+			boolean aLate;
+			boolean aDone;
+			boolean aNoteworthy;
+			boolean aJudged;
+			synchronized (this) {
+				myJudged |= theJudged;
+				if (theJudged) {
+					myAnswered.add(theCandidate);
+				}
+				aLate = myResolved;
+				if (!aLate) {
+					myHeld.add(theCandidate);
+				}
+				aDone = --myRemaining == 0;
+				aNoteworthy = myNoteworthy;
+				aJudged = myJudged;
+			}
+			if (aLate) {
+				archive(theCandidate, aNoteworthy, aJudged);
+			} else if (aDone) {
+				resolve();
+			}
+		}
+
+		private void resolve() {
+			List<Candidate> aHeld;
+			boolean aNoteworthy;
+			boolean aJudged;
+			synchronized (this) {
+				if (myResolved) {
+					return;
+				}
+				myResolved = true;
+				aHeld = new ArrayList<>(myHeld);
+				myHeld.clear();
+				aNoteworthy = myNoteworthy;
+				aJudged = myJudged;
+			}
+			aHeld.forEach(theCandidate -> archive(theCandidate, aNoteworthy, aJudged));
+		}
+
+		private void archive(Candidate theCandidate, boolean theNoteworthy, boolean theJudged) {
+			boolean anAnswered;
+			synchronized (this) {
+				anAnswered = myAnswered.contains(theCandidate);
+			}
+			if (!anAnswered && (theNoteworthy || theJudged)) {
+				myHistory.record(myEvent.myCamera, theCandidate.file(), AnalysisHistory.Source.EVENT, theNoteworthy);
+			}
+			if (theNoteworthy) {
+				myArchived.incrementAndGet();
+				theCandidate.archive().accept(theCandidate.file(), true);
+			} else if (theJudged) {
+				theCandidate.failure().accept(theCandidate.file());
+			} else {
+				theCandidate.skipped().accept(theCandidate.file());
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flush();
+		myScheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,334 @@
+package com.bigboxer23.clarifai;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+
+/**
+ * Local copies of the frames of the most recent noteworthy events, so they can be served without a
+ * round trip to S3. Frames are copied under {@code eventCachePath/<camera>/<event>/} before their
+ * upload deletes them, and a frame more than {@code eventGap} seconds after the camera's last one
+ * starts a new event. Thumbnails {@code eventCacheThumbnailWidth} wide are made the first time
+ * they're asked for and kept with the event.
+ *
+ * <p>Off unless {@code eventCacheEnabled} is set. At most {@code eventCacheEvents} events taking
+ * {@code eventCacheMaxBytes} are kept, the least recently used event is evicted first. With
+ * {@code eventCacheUrl} set (how the callback's target reaches this service, e.g.
+ * {@code http://pi:8080}) the after stored callback links to the cached copy instead of presigning
+ * an S3 URL.
+ */
+@Component
+public class EventCache {
+	private static final Logger logger = LoggerFactory.getLogger(EventCache.class);
+
+	private static final String kThumbnails = "thumbnails";
+
+	/**
+	 * A cached event
+	 *
+	 * @param id when the event's first frame was cached, epoch milliseconds
+	 * @param frames names of the event's frames, in the order they were cached
+	 */
+	public record Event(String camera, String id, List<String> frames) {}
+
+	public record Stats(int events, int frames, long bytes, long maxBytes, long hits, long misses, long evicted) {}
+
+	private static class CachedEvent {
+		private final String myCamera;
+
+		private final String myId;
+
+		private final Path myDirectory;
+
+		private final Map<String, Path> myFrames = new LinkedHashMap<>();
+
+		private long myBytes;
+
+		private long myLast;
+
+		private CachedEvent(String theCamera, String theId, Path theDirectory) {
+			myCamera = theCamera;
+			myId = theId;
+			myDirectory = theDirectory;
+		}
+
+		private String key() {
+			return myCamera + "/" + myId;
+		}
+	}
+
+	private final boolean myEnabled;
+
+	private final Path myDirectory;
+
+	private final long myMaxBytes;
+
+	private final int myMaxEvents;
+
+	private final int myThumbnailWidth;
+
+	private final String myUrl;
+
+	private final long myEventGap;
+
+	/** Access ordered, the eldest event is the least recently used */
+	private final LinkedHashMap<String, CachedEvent> myEvents = new LinkedHashMap<>(16, .75f, true);
+
+	/** Each camera's newest event, new frames join it until there's a gap */
+	private final Map<String, CachedEvent> myCurrent = new HashMap<>();
+
+	private long myBytes;
+
+	private long myHits;
+
+	private long myMisses;
+
+	private long myEvicted;
+
+	@Autowired
+	public EventCache(
+			@Value("${eventCacheEnabled:false}") boolean theEnabled,
+			@Value("${eventCachePath:cache}") String thePath,
+			@Value("${eventCacheMaxBytes:268435456}") long theMaxBytes,
+			@Value("${eventCacheEvents:20}") int theMaxEvents,
+			@Value("${eventCacheThumbnailWidth:320}") int theThumbnailWidth,
+			@Value("${eventCacheUrl:}") String theUrl,
+			@Value("${eventGap:5}") long theEventGap)
+			throws IOException {
+		myEnabled = theEnabled;
+		myDirectory = theEnabled ? Path.of(thePath) : null;
+		myMaxBytes = theMaxBytes;
+		myMaxEvents = Math.max(1, theMaxEvents);
+		myThumbnailWidth = theThumbnailWidth;
+		myUrl = theUrl.endsWith("/") ? theUrl.substring(0, theUrl.length() - 1) : theUrl;
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		if (!myEnabled) {
+			return;
+		}
+		Files.createDirectories(myDirectory);
+		load();
+		logger.info("Event cache has " + myEvents.size() + " events, " + myBytes + " bytes");
+	}
+
+	/** Pick up events cached before a restart, oldest first so the newest are kept */
+	private synchronized void load() throws IOException {
+		List<CachedEvent> anEvents = new ArrayList<>();
+		try (Stream<Path> aCameras = Files.list(myDirectory)) {
+			for (Path aCamera : aCameras.filter(Files::isDirectory).toList()) {
+				try (Stream<Path> anIds = Files.list(aCamera)) {
+					for (Path anId : anIds.filter(Files::isDirectory).toList()) {
+						CachedEvent anEvent = new CachedEvent(
+								aCamera.getFileName().toString(), anId.getFileName().toString(), anId);
+						anEvent.myLast = Files.getLastModifiedTime(anId).toMillis();
+						try (Stream<Path> aFiles = Files.walk(anId)) {
+							for (Path aFile : aFiles.filter(Files::isRegularFile).toList()) {
+								anEvent.myBytes += Files.size(aFile);
+								if (aFile.getParent().equals(anId)) {
+									anEvent.myFrames.put(aFile.getFileName().toString(), aFile);
+								}
+							}
+						}
+						anEvents.add(anEvent);
+					}
+				}
+			}
+		}
+		anEvents.sort(Comparator.comparingLong(theEvent -> theEvent.myLast));
+		for (CachedEvent anEvent : anEvents) {
+			myEvents.put(anEvent.key(), anEvent);
+			myBytes += anEvent.myBytes;
+		}
+		evict();
+	}
+
+	/**
+	 * Copy a frame into its camera's current event, the frame itself is left alone
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theFile frame to cache
+	 */
+	public void put(Camera theCamera, File theFile) {
+		if (!myEnabled) {
+			return;
+		}
+		long aNow = System.currentTimeMillis();
+		synchronized (this) {
+			CachedEvent anEvent = myCurrent.get(theCamera.name());
+			if (anEvent == null || aNow - anEvent.myLast > myEventGap || !myEvents.containsKey(anEvent.key())) {
+				String anId = String.valueOf(aNow);
+				anEvent = new CachedEvent(theCamera.name(), anId, myDirectory.resolve(theCamera.name()).resolve(anId));
+				myEvents.put(anEvent.key(), anEvent);
+				myCurrent.put(theCamera.name(), anEvent);
+			}
+			try {
+				Files.createDirectories(anEvent.myDirectory);
+				Path aCopy = anEvent.myDirectory.resolve(theFile.getName());
+				if (anEvent.myFrames.remove(theFile.getName()) != null) {
+					logger.warn(theFile.getName() + " was already cached, replacing it");
+					long anOldSize = Files.size(aCopy);
+					anEvent.myBytes -= anOldSize;
+					myBytes -= anOldSize;
+				}
+				Files.copy(theFile.toPath(), aCopy, StandardCopyOption.REPLACE_EXISTING);
+				long aSize = Files.size(aCopy);
+				anEvent.myFrames.put(theFile.getName(), aCopy);
+				anEvent.myBytes += aSize;
+				myBytes += aSize;
+			} catch (IOException theE) {
+				logger.warn("Couldn't cache " + theFile, theE);
+			}
+			anEvent.myLast = aNow;
+			evict();
+		}
+	}
+
+	/**
+	 * @return the cached copy of an event's frame or its thumbnail, made if it isn't there yet. Null
+	 *     if the frame isn't cached
+	 */
+	public File get(String theCamera, String theId, String theName, boolean theThumbnail) {
+		if (!myEnabled) {
+			return null;
+		}
+		Path anOriginal;
+		CachedEvent anEvent;
+		synchronized (this) {
+			anEvent = myEvents.get(theCamera + "/" + theId);
+			anOriginal = anEvent != null ? anEvent.myFrames.get(theName) : null;
+			if (anOriginal == null) {
+				myMisses++;
+				return null;
+			}
+			myHits++;
+		}
+		if (!theThumbnail) {
+			return anOriginal.toFile();
+		}
+		Path aThumbnail = anEvent.myDirectory.resolve(kThumbnails).resolve(theName);
+		if (!Files.exists(aThumbnail)) {
+			try {
+				thumbnail(anEvent, anOriginal, aThumbnail);
+			} catch (IOException theE) {
+				// Most likely evicted while the thumbnail was made
+				logger.warn("Couldn't make a thumbnail of " + anOriginal, theE);
+				return null;
+			}
+		}
+		return aThumbnail.toFile();
+	}
+
+	/**
+	 * Written next to its final name and moved into place, so it's never served half written. When
+	 * two requests make the same thumbnail only the first to finish is kept and counted
+	 */
+	private void thumbnail(CachedEvent theEvent, Path theOriginal, Path theThumbnail) throws IOException {
+		Files.createDirectories(theThumbnail.getParent());
+		Path aTemporary =
+				Files.createTempFile(theThumbnail.getParent(), theThumbnail.getFileName().toString(), ".tmp");
+		try {
+			if (!ImageIO.write(
+					MailDispatcher.thumbnail(theOriginal.toFile(), myThumbnailWidth), "jpeg", aTemporary.toFile())) {
+				throw new IOException("No jpeg writer");
+			}
+			synchronized (this) {
+				if (myEvents.get(theEvent.key()) != theEvent || Files.exists(theThumbnail)) {
+					return;
+				}
+				Files.move(aTemporary, theThumbnail, StandardCopyOption.ATOMIC_MOVE);
+				long aSize = Files.size(theThumbnail);
+				theEvent.myBytes += aSize;
+				myBytes += aSize;
+				evict();
+			}
+		} finally {
+			Files.deleteIfExists(aTemporary);
+		}
+	}
+
+	/**
+	 * @return URL of the cached copy of a frame, null if it isn't cached or {@code eventCacheUrl}
+	 *     isn't set
+	 */
+	public synchronized String getUrl(Camera theCamera, File theFile) {
+		if (!myEnabled || myUrl.isEmpty()) {
+			return null;
+		}
+		// Newest events last, the frame is most likely in the camera's latest
+		List<CachedEvent> anEvents = new ArrayList<>(myEvents.values());
+		for (int ai = anEvents.size() - 1; ai >= 0; ai--) {
+			CachedEvent anEvent = anEvents.get(ai);
+			if (anEvent.myCamera.equals(theCamera.name()) && anEvent.myFrames.containsKey(theFile.getName())) {
+				return myUrl
+						+ "/cache/"
+						+ UriUtils.encodePathSegment(anEvent.myCamera, "UTF-8")
+						+ "/"
+						+ anEvent.myId
+						+ "/"
+						+ UriUtils.encodePathSegment(theFile.getName(), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return cached events, most recently used first
+	 */
+	public synchronized List<Event> getEvents() {
+		List<Event> anEvents = new ArrayList<>();
+		for (CachedEvent anEvent : myEvents.values()) {
+			anEvents.add(new Event(anEvent.myCamera, anEvent.myId, List.copyOf(anEvent.myFrames.keySet())));
+		}
+		Collections.reverse(anEvents);
+		return anEvents;
+	}
+
+	/** Drop least recently used events until the cache is back within its limits */
+	private void evict() {
+		Iterator<CachedEvent> anIterator = myEvents.values().iterator();
+		while ((myEvents.size() > myMaxEvents || myBytes > myMaxBytes) && anIterator.hasNext()) {
+			CachedEvent anEvent = anIterator.next();
+			anIterator.remove();
+			myCurrent.remove(anEvent.myCamera, anEvent);
+			myBytes -= anEvent.myBytes;
+			myEvicted++;
+			delete(anEvent.myDirectory);
+		}
+	}
+
+	private static void delete(Path theDirectory) {
+		try (Stream<Path> aFiles = Files.walk(theDirectory)) {
+			for (Path aFile : aFiles.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(aFile);
+			}
+		} catch (IOException theE) {
+			logger.warn("Couldn't delete " + theDirectory, theE);
+		}
+	}
+
+	public synchronized Stats getStats() {
+		int aFrames = 0;
+		for (CachedEvent anEvent : myEvents.values()) {
+			aFrames += anEvent.myFrames.size();
+		}
+		return new Stats(myEvents.size(), aFrames, myBytes, myMaxBytes, myHits, myMisses, myEvicted);
+	}
+}
@@ -0,0 +1,72 @@
+package com.bigboxer23.clarifai;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Serves the frames held in the {@link EventCache}. Cached files never change, so responses carry
+ * an ETag and Last-Modified for conditional requests, and Range requests are answered with just
+ * the part asked for.
+ */
+@RestController
+public class EventCacheController {
+	private final EventCache myEventCache;
+
+	public EventCacheController(EventCache theEventCache) {
+		myEventCache = theEventCache;
+	}
+
+	@GetMapping(path = "/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Cached events",
+			description = "Returns the events held in the local cache, most recently used first, with the"
+					+ " names of their frames")
+	public List<EventCache.Event> getEvents() {
+		return myEventCache.getEvents();
+	}
+
+	@GetMapping(path = "/cache/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Event cache statistics",
+			description = "Returns the number of cached events and frames, bytes used and allowed, frames"
+					+ " served from the cache, requests for frames no longer cached and events evicted")
+	public EventCache.Stats getStats() {
+		return myEventCache.getStats();
+	}
+
+	@GetMapping(path = "/cache/{camera}/{event}/{name}", produces = MediaType.IMAGE_JPEG_VALUE)
+	@Operation(
+			summary = "A cached frame",
+			description = "Returns a frame of a cached event, or its thumbnail.  404 once the event has"
+					+ " been evicted, the frame is still available from S3")
+	public ResponseEntity<Resource> getFrame(
+			@Parameter(description = "Camera the event came from") @PathVariable(value = "camera") String camera,
+			@Parameter(description = "Id of the event") @PathVariable(value = "event") String event,
+			@Parameter(description = "File name of the frame") @PathVariable(value = "name") String name,
+			@Parameter(description = "Return a thumbnail rather than the original")
+					@RequestParam(value = "thumbnail", defaultValue = "false")
+					boolean thumbnail) {
+		File aFile = myEventCache.get(camera, event, name, thumbnail);
+		if (aFile == null || !aFile.exists()) {
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok()
+				.eTag(Long.toHexString(aFile.lastModified()) + "-" + Long.toHexString(aFile.length()))
+				.lastModified(aFile.lastModified())
+				.cacheControl(CacheControl.maxAge(1, TimeUnit.DAYS))
+				.contentType(MediaType.IMAGE_JPEG)
+				.body(new FileSystemResource(aFile));
+	}
+}
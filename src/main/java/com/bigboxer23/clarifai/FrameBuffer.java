@@ -0,0 +1,38 @@
+package com.bigboxer23.clarifai;
+
+import com.google.protobuf.ByteString;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Frame bytes wrapped, without copying, as a {@link ByteString} for the clarifai request. The
+ * backing memory belongs to a pool: whoever holds the buffer must {@link #close()} it once the
+ * request using it has completed, after which the bytes may be overwritten.
+ */
+public class FrameBuffer implements AutoCloseable {
+	private final ByteString myBytes;
+
+	private final Runnable myRelease;
+
+	private final AtomicBoolean myReleased = new AtomicBoolean();
+
+	public FrameBuffer(ByteString theBytes, Runnable theRelease) {
+		myBytes = theBytes;
+		myRelease = theRelease;
+	}
+
+	public ByteString getBytes() {
+		return myBytes;
+	}
+
+	public int size() {
+		return myBytes.size();
+	}
+
+	/** Return the backing memory to its pool, safe to call more than once */
+	@Override
+	public void close() {
+		if (myReleased.compareAndSet(false, true)) {
+			myRelease.run();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.bigboxer23.clarifai;
+
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reads frames with NIO into reusable direct buffers so ingest doesn't allocate two heap copies of
+ * every image (readAllBytes + ByteString.copyFrom). Frames too big for the pooled buffers are
+ * memory mapped instead. The pool never blocks: if every buffer is in use a new one is allocated,
+ * and it's only kept on release while the pool is below {@code frameBufferCount}.
+ */
+@Component
+public class FrameBufferPool {
+	private final int myBufferSize;
+
+	private final int myMaxPooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> myPool = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger myPooled = new AtomicInteger();
+
+	public FrameBufferPool(
+			@Value("${frameBufferSize:1048576}") int theBufferSize,
+			@Value("${frameBufferCount:8}") int theMaxPooled) {
+		myBufferSize = theBufferSize;
+		myMaxPooled = theMaxPooled;
+	}
+
+	/**
+	 * Read the whole file into a pooled buffer (or map it if it's bigger than the pooled buffers)
+	 *
+	 * @param theFile frame to read
+	 * @return buffer the caller owns and must close when the bytes are no longer needed
+	 * @throws IOException
+	 */
+	public FrameBuffer read(File theFile) throws IOException {
+		try (FileChannel aChannel = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+			long aSize = aChannel.size();
+			if (aSize > myBufferSize) {
+				// Unmapped when the buffer is collected, nothing to give back to the pool
+				return new FrameBuffer(
+						UnsafeByteOperations.unsafeWrap(aChannel.map(FileChannel.MapMode.READ_ONLY, 0, aSize)), () -> {});
+			}
+			ByteBuffer aBuffer = acquire();
+			try {
+				while (aBuffer.position() < aSize) {
+					if (aChannel.read(aBuffer) < 0) {
+						throw new EOFException(theFile + " truncated while reading");
+					}
+				}
+			} catch (IOException theE) {
+				release(aBuffer);
+				throw theE;
+			}
+			aBuffer.flip();
+			return new FrameBuffer(UnsafeByteOperations.unsafeWrap(aBuffer.asReadOnlyBuffer()), () -> release(aBuffer));
+		}
+	}
+
+	/**
+	 * @return number of idle buffers waiting in the pool
+	 */
+	public int getPooled() {
+		return myPooled.get();
+	}
+
+	private ByteBuffer acquire() {
+		ByteBuffer aBuffer = myPool.poll();
+		if (aBuffer == null) {
+			return ByteBuffer.allocateDirect(myBufferSize);
+		}
+		myPooled.decrementAndGet();
+		return aBuffer;
+	}
+
+	private void release(ByteBuffer theBuffer) {
+		if (myPooled.incrementAndGet() > myMaxPooled) {
+			myPooled.decrementAndGet();
+			return;
+		}
+		theBuffer.clear();
+		myPool.offer(theBuffer);
+	}
+}
@@ -0,0 +1,133 @@
+package com.bigboxer23.clarifai;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Cheap local measures of a frame, computed on a small subsampled grayscale copy: sharpness
+ * (variance of the Laplacian), how much of the frame changed since the previous frame, and
+ * brightness.
+ */
+public final class FrameScorer {
+	/** Frames are decoded subsampled to roughly this width */
+	private static final int kWidth = 160;
+
+	/** Brightness difference at which a pixel counts as changed */
+	private static final int kChangedPixel = 25;
+
+	/** Laplacian variance at which a frame scores half marks for sharpness */
+	private static final double kSharpnessScale = 200;
+
+	/** Grayscale pixels, 0-255, row by row */
+	public record Luma(int width, int height, int[] pixels) {}
+
+	private FrameScorer() {}
+
+	public static Luma decode(File theFile) throws IOException {
+		try (ImageInputStream anInput = ImageIO.createImageInputStream(theFile)) {
+			if (anInput == null) {
+				throw new IOException("Can't read " + theFile);
+			}
+			Iterator<ImageReader> aReaders = ImageIO.getImageReaders(anInput);
+			if (!aReaders.hasNext()) {
+				throw new IOException("No image reader for " + theFile);
+			}
+			ImageReader aReader = aReaders.next();
+			try {
+				aReader.setInput(anInput, true, true);
+				int aSubsampling = Math.max(1, aReader.getWidth(0) / kWidth);
+				ImageReadParam aParam = aReader.getDefaultReadParam();
+				aParam.setSourceSubsampling(aSubsampling, aSubsampling, 0, 0);
+				return luma(aReader.read(0, aParam));
+			} finally {
+				aReader.dispose();
+			}
+		}
+	}
+
+	public static Luma luma(BufferedImage theImage) {
+		int aWidth = theImage.getWidth();
+		int aHeight = theImage.getHeight();
+		Raster aRaster = theImage.getRaster();
+		int aBands = aRaster.getNumBands();
+		int[] aPixel = new int[aBands];
+		int[] aPixels = new int[aWidth * aHeight];
+		for (int y = 0; y < aHeight; y++) {
+			for (int x = 0; x < aWidth; x++) {
+				aRaster.getPixel(x, y, aPixel);
+				aPixels[y * aWidth + x] =
+						aBands >= 3 ? (aPixel[0] * 299 + aPixel[1] * 587 + aPixel[2] * 114) / 1000 : aPixel[0];
+			}
+		}
+		return new Luma(aWidth, aHeight, aPixels);
+	}
+
+	/**
+	 * @return 0-1, higher for frames with more fine detail (less motion blur)
+	 */
+	public static double sharpness(Luma theLuma) {
+		int aWidth = theLuma.width();
+		int[] aPixels = theLuma.pixels();
+		long aCount = 0;
+		double aSum = 0;
+		double aSumSquares = 0;
+		for (int y = 1; y < theLuma.height() - 1; y++) {
+			for (int x = 1; x < aWidth - 1; x++) {
+				int anIndex = y * aWidth + x;
+				int aLaplacian = 4 * aPixels[anIndex]
+						- aPixels[anIndex - 1]
+						- aPixels[anIndex + 1]
+						- aPixels[anIndex - aWidth]
+						- aPixels[anIndex + aWidth];
+				aSum += aLaplacian;
+				aSumSquares += (double) aLaplacian * aLaplacian;
+				aCount++;
+			}
+		}
+		if (aCount == 0) {
+			return 0;
+		}
+		double aMean = aSum / aCount;
+		double aVariance = aSumSquares / aCount - aMean * aMean;
+		return aVariance / (aVariance + kSharpnessScale);
+	}
+
+	/**
+	 * @return 0-1, fraction of pixels that changed since the previous frame, 0 without one
+	 */
+	public static double changedArea(Luma theLuma, Luma thePrevious) {
+		if (thePrevious == null
+				|| thePrevious.width() != theLuma.width()
+				|| thePrevious.height() != theLuma.height()) {
+			return 0;
+		}
+		int[] aPixels = theLuma.pixels();
+		int[] aPrevious = thePrevious.pixels();
+		int aChanged = 0;
+		for (int ai = 0; ai < aPixels.length; ai++) {
+			if (Math.abs(aPixels[ai] - aPrevious[ai]) > kChangedPixel) {
+				aChanged++;
+			}
+		}
+		return aPixels.length == 0 ? 0 : (double) aChanged / aPixels.length;
+	}
+
+	/**
+	 * @return 0-1, highest for frames of middling brightness, lowest for black or blown out frames
+	 */
+	public static double exposure(Luma theLuma) {
+		long aSum = 0;
+		for (int aPixel : theLuma.pixels()) {
+			aSum += aPixel;
+		}
+		double aMean = theLuma.pixels().length == 0 ? 0 : (double) aSum / theLuma.pixels().length / 255;
+		return 1 - Math.abs(aMean - .5) * 2;
+	}
+}
@@ -0,0 +1,99 @@
+package com.bigboxer23.clarifai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds frames posted straight to {@code /analyze} until the pipeline is done with them. Frames are
+ * streamed into {@code uploadPath}, a tmpfs mount by default, so they never touch the SD card. Each
+ * camera's frames go in a directory named after it so a frame can be matched back to its camera
+ * when resumed from the journal.
+ */
+@Component
+public class FrameUploadStore {
+	private static final Logger logger = LoggerFactory.getLogger(FrameUploadStore.class);
+
+	/** The posted frame was larger than {@code uploadMaxBytes} */
+	public static class TooLargeException extends IOException {
+		public TooLargeException(String theMessage) {
+			super(theMessage);
+		}
+	}
+
+	private final Path myRoot;
+
+	private final long myMaxBytes;
+
+	private final AtomicLong myCounter = new AtomicLong();
+
+	public FrameUploadStore(
+			@Value("${uploadPath:/dev/shm/clarifai}") String theRoot,
+			@Value("${uploadMaxBytes:5242880}") long theMaxBytes) {
+		myRoot = Path.of(theRoot).toAbsolutePath().normalize();
+		myMaxBytes = theMaxBytes;
+	}
+
+	public long getMaxBytes() {
+		return myMaxBytes;
+	}
+
+	/**
+	 * Stream a posted frame into the store
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theName file name to store the frame as, one is generated if empty
+	 * @param theBody frame's bytes
+	 * @return the stored frame
+	 * @throws TooLargeException if the frame is larger than the limit, nothing is kept
+	 * @throws java.nio.file.FileAlreadyExistsException if a frame with the same name is waiting
+	 */
+	public File store(Camera theCamera, String theName, InputStream theBody) throws IOException {
+		Path aDirectory = myRoot.resolve(theCamera.name());
+		Files.createDirectories(aDirectory);
+		// Only the name is kept so the frame can't be written outside the store
+		String aName = theName == null ? "" : new File(theName).getName();
+		if (aName.isBlank() || aName.startsWith(".")) {
+			aName = System.currentTimeMillis() + "-" + myCounter.incrementAndGet() + ".jpg";
+		}
+		Path aFile = aDirectory.resolve(aName);
+		long aSize = 0;
+		OutputStream anOutput = Files.newOutputStream(aFile, StandardOpenOption.CREATE_NEW);
+		try (anOutput) {
+			byte[] aBuffer = new byte[64 * 1024];
+			int aRead;
+			while ((aRead = theBody.read(aBuffer)) != -1) {
+				aSize += aRead;
+				if (aSize > myMaxBytes) {
+					throw new TooLargeException(aName + " is larger than " + myMaxBytes + " bytes");
+				}
+				anOutput.write(aBuffer, 0, aRead);
+			}
+		} catch (IOException theE) {
+			Files.deleteIfExists(aFile);
+			throw theE;
+		}
+		logger.info("Stored upload " + aFile + ", " + aSize + " bytes");
+		return aFile.toFile();
+	}
+
+	/**
+	 * @return name of the camera a stored frame came from, null if the file isn't in the store
+	 */
+	public String getCameraName(File theFile) {
+		Path aParent = theFile.toPath().toAbsolutePath().normalize().getParent();
+		if (aParent == null || !myRoot.equals(aParent.getParent())) {
+			return null;
+		}
+		return aParent.getFileName().toString();
+	}
+}
@@ -0,0 +1,72 @@
+package com.bigboxer23.clarifai;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/** Queries over the local {@link AnalysisHistory}, answered without touching S3 */
+@RestController
+public class HistoryController {
+	private static final int kMaxLimit = 1000;
+
+	private final AnalysisHistory myHistory;
+
+	public HistoryController(AnalysisHistory theHistory) {
+		myHistory = theHistory;
+	}
+
+	@GetMapping(path = "/history", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Past verdicts",
+			description = "Returns verdicts between from and to, oldest first, optionally only those from a"
+					+ " camera, noteworthy or not, or with a score in a range")
+	public List<AnalysisHistory.Entry> getHistory(
+			@Parameter(description = "ISO-8601 start of the range, a day before to if not set")
+					@RequestParam(value = "from", required = false)
+					Instant from,
+			@Parameter(description = "ISO-8601 end of the range, now if not set")
+					@RequestParam(value = "to", required = false)
+					Instant to,
+			@Parameter(description = "Only verdicts of this camera") @RequestParam(value = "camera", required = false)
+					String camera,
+			@Parameter(description = "Concept minScore and maxScore apply to, the highest scoring concept if not set")
+					@RequestParam(value = "concept", required = false)
+					String concept,
+			@Parameter(description = "Lowest score to include") @RequestParam(value = "minScore", required = false)
+					Double minScore,
+			@Parameter(description = "Highest score to include") @RequestParam(value = "maxScore", required = false)
+					Double maxScore,
+			@Parameter(description = "Only noteworthy (true) or not noteworthy (false) verdicts")
+					@RequestParam(value = "noteworthy", required = false)
+					Boolean noteworthy,
+			@Parameter(description = "Most verdicts to return, up to " + kMaxLimit)
+					@RequestParam(value = "limit", defaultValue = "100")
+					int limit) {
+		Instant aTo = to == null ? Instant.now() : to;
+		Instant aFrom = from == null ? aTo.minus(1, ChronoUnit.DAYS) : from;
+		return myHistory.query(new AnalysisHistory.Query(
+				aFrom.toEpochMilli(),
+				aTo.toEpochMilli(),
+				camera,
+				concept,
+				minScore,
+				maxScore,
+				noteworthy,
+				Math.max(0, Math.min(limit, kMaxLimit))));
+	}
+
+	@GetMapping(path = "/history/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Analysis history statistics",
+			description = "Returns the number of verdicts held, day files on disk and the times of the oldest"
+					+ " and newest verdicts")
+	public AnalysisHistory.Stats getHistoryStats() {
+		return myHistory.getStats();
+	}
+}
@@ -0,0 +1,227 @@
+package com.bigboxer23.clarifai;
+
+import com.google.protobuf.UnsafeByteOperations;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shrinks frames before they're sent to clarifai: resize so the longest edge fits {@code
+ * clarifaiMaxEdge}, optionally convert to grayscale, and re-encode at {@code clarifaiJpegQuality}.
+ * Only the bytes sent to the API change, the file on disk (which goes to S3 and email) is left
+ * alone. A color frame that already fits is sent as read, without a copy.
+ */
+@Component
+public class ImagePreparer {
+	private static final Logger logger = LoggerFactory.getLogger(ImagePreparer.class);
+
+	private final FrameBufferPool myFrameBufferPool;
+
+	private final PipelineMetrics myMetrics;
+
+	private final boolean myEnabled;
+
+	private final int myMaxEdge;
+
+	private final float myQuality;
+
+	private final boolean myGrayscale;
+
+	/** Writers and scaled images are reused rather than allocated per frame */
+	private final BlockingQueue<Scaler> myScalers;
+
+	/**
+	 * Encoded output stays referenced by the request until clarifai answers, so output buffers are
+	 * pooled separately from the scalers and handed out without blocking
+	 */
+	private final ConcurrentLinkedQueue<ExposedByteArrayOutputStream> myOutputs = new ConcurrentLinkedQueue<>();
+
+	public ImagePreparer(
+			FrameBufferPool theFrameBufferPool,
+			PipelineMetrics theMetrics,
+			@Value("${imagePrepareEnabled:true}") boolean theEnabled,
+			@Value("${clarifaiMaxEdge:640}") int theMaxEdge,
+			@Value("${clarifaiJpegQuality:.8}") float theQuality,
+			@Value("${clarifaiGrayscale:false}") boolean theGrayscale,
+			@Value("${imagePreparePoolSize:4}") int thePoolSize) {
+		myFrameBufferPool = theFrameBufferPool;
+		myMetrics = theMetrics;
+		myEnabled = theEnabled;
+		myMaxEdge = theMaxEdge;
+		myQuality = theQuality;
+		myGrayscale = theGrayscale;
+		myScalers = new ArrayBlockingQueue<>(Math.max(1, thePoolSize));
+		if (myEnabled) {
+			for (int ai = 0; ai < Math.max(1, thePoolSize); ai++) {
+				myScalers.add(new Scaler());
+			}
+		}
+	}
+
+	/**
+	 * @param theFile frame to send
+	 * @return bytes to put in the clarifai {@code Image} proto, to be closed once the request has
+	 *     completed
+	 * @throws IOException
+	 */
+	public FrameBuffer prepare(File theFile) throws IOException {
+		long aRead = myMetrics.start();
+		FrameBuffer anOriginal;
+		try {
+			anOriginal = myFrameBufferPool.read(theFile);
+		} catch (IOException theE) {
+			myMetrics.record(PipelineMetrics.Stage.FILE_READ, aRead, false);
+			throw theE;
+		}
+		myMetrics.record(PipelineMetrics.Stage.FILE_READ, aRead, true);
+		if (!myEnabled) {
+			return anOriginal;
+		}
+		long aStart = System.nanoTime();
+		Scaler aScaler;
+		try {
+			aScaler = myScalers.take();
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+			anOriginal.close();
+			throw new IOException("Interrupted waiting for a scaler", theE);
+		}
+		ExposedByteArrayOutputStream anOutput = getOutput();
+		boolean aPrepared = false;
+		try {
+			aPrepared = aScaler.prepare(anOriginal, anOutput);
+		} catch (IOException | RuntimeException theE) {
+			logger.warn("Couldn't prepare " + theFile.getName(), theE);
+		} finally {
+			myScalers.add(aScaler);
+		}
+		if (!aPrepared || anOutput.size() >= anOriginal.size()) {
+			logger.info("Sending " + theFile.getName() + " as is, " + anOriginal.size() + " bytes");
+			myOutputs.offer(anOutput);
+			return anOriginal;
+		}
+		logger.info("Prepared "
+				+ theFile.getName()
+				+ " "
+				+ anOriginal.size()
+				+ " -> "
+				+ anOutput.size()
+				+ " bytes, saved "
+				+ (anOriginal.size() - anOutput.size())
+				+ " in "
+				+ (System.nanoTime() - aStart) / 1000000
+				+ "ms");
+		anOriginal.close();
+		return new FrameBuffer(
+				UnsafeByteOperations.unsafeWrap(anOutput.getBuffer(), 0, anOutput.size()),
+				() -> myOutputs.offer(anOutput));
+	}
+
+	private ExposedByteArrayOutputStream getOutput() {
+		ExposedByteArrayOutputStream anOutput = myOutputs.poll();
+		if (anOutput == null) {
+			return new ExposedByteArrayOutputStream(64 * 1024);
+		}
+		anOutput.reset();
+		return anOutput;
+	}
+
+	/** ByteArrayOutputStream that allows reading the backing array without a copy */
+	static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		ExposedByteArrayOutputStream(int theSize) {
+			super(theSize);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private class Scaler {
+		private final ImageWriter myWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+
+		private BufferedImage myTarget;
+
+		/**
+		 * Decode straight from the (possibly direct) frame buffer and encode into the output buffer
+		 *
+		 * @return false if the image couldn't be decoded, or needs neither resizing nor converting to
+		 *     grayscale so the original should be sent
+		 */
+		boolean prepare(FrameBuffer theImage, ExposedByteArrayOutputStream theOutput) throws IOException {
+			BufferedImage aDecoded;
+			int aWidth;
+			int aHeight;
+			try (ImageInputStream anInput =
+					new MemoryCacheImageInputStream(theImage.getBytes().newInput())) {
+				Iterator<ImageReader> aReaders = ImageIO.getImageReaders(anInput);
+				if (!aReaders.hasNext()) {
+					return false;
+				}
+				ImageReader aReader = aReaders.next();
+				try {
+					aReader.setInput(anInput, true, true);
+					int aLongEdge = Math.max(aReader.getWidth(0), aReader.getHeight(0));
+					double aScale = myMaxEdge > 0 ? Math.min(1, (double) myMaxEdge / aLongEdge) : 1;
+					if (aScale >= 1 && !myGrayscale) {
+						return false;
+					}
+					aWidth = Math.max(1, (int) Math.round(aReader.getWidth(0) * aScale));
+					aHeight = Math.max(1, (int) Math.round(aReader.getHeight(0) * aScale));
+					ImageReadParam aParam = aReader.getDefaultReadParam();
+					// Let the decoder skip pixels, but keep 2x the target so the final scale stays smooth
+					int aSubsampling = Math.max(1, (int) (1 / aScale) / 2);
+					aParam.setSourceSubsampling(aSubsampling, aSubsampling, 0, 0);
+					aDecoded = aReader.read(0, aParam);
+				} finally {
+					aReader.dispose();
+				}
+			}
+			BufferedImage aTarget = getTarget(aWidth, aHeight);
+			Graphics2D aGraphics = aTarget.createGraphics();
+			aGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			aGraphics.drawImage(aDecoded, 0, 0, aWidth, aHeight, null);
+			aGraphics.dispose();
+
+			ImageWriteParam aParam = myWriter.getDefaultWriteParam();
+			aParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			aParam.setCompressionQuality(myQuality);
+			try (ImageOutputStream anOutput = new MemoryCacheImageOutputStream(theOutput)) {
+				myWriter.setOutput(anOutput);
+				myWriter.write(null, new IIOImage(aTarget, null, null), aParam);
+			} finally {
+				myWriter.setOutput(null);
+			}
+			return true;
+		}
+
+		private BufferedImage getTarget(int theWidth, int theHeight) {
+			if (myTarget == null || myTarget.getWidth() != theWidth || myTarget.getHeight() != theHeight) {
+				myTarget = new BufferedImage(
+						theWidth, theHeight, myGrayscale ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+			}
+			return myTarget;
+		}
+	}
+}
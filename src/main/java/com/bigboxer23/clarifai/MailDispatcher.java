@@ -0,0 +1,448 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.activation.DataHandler;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends notification mail off the success path. Frames are read when they're submitted (so the
+ * originals can be uploaded and deleted straight away), then shrunk to JPEG thumbnails and sent
+ * from a single dispatcher thread over an SMTP connection that's kept open between mails. Mail for
+ * the same camera and address submitted within {@code mailCoalesceWindow} milliseconds goes out as
+ * one message. A failed send is retried with exponential backoff.
+ *
+ * <p>utils' {@code MailSender} opens a new Gmail session per mail and attaches the files it's
+ * given, so it can't keep the connection open, send to another host or attach thumbnails.
+ */
+@Component
+public class MailDispatcher {
+	private static final Logger logger = LoggerFactory.getLogger(MailDispatcher.class);
+
+	public record Stats(int pending, long sent, long coalesced, long retries, long failed, long connections) {}
+
+	/** A submitted frame's name and file contents, waiting for the dispatcher to shrink it */
+	private record Frame(String name, byte[] bytes) {}
+
+	/** A JPEG thumbnail and the name of the frame it came from */
+	private record Thumbnail(String name, byte[] jpeg) {}
+
+	/** A mail waiting to go out, only changed on the dispatcher thread */
+	private static class Mail {
+		private final String myTo;
+
+		private final String myCamera;
+
+		private String mySubject;
+
+		private final List<Thumbnail> myThumbnails = new ArrayList<>();
+
+		private int myDropped;
+
+		/** Made on the first attempt to send the mail and kept for retries */
+		private byte[] myContactSheet;
+
+		private int myAttempts;
+
+		private Mail(String theTo, String theCamera) {
+			myTo = theTo;
+			myCamera = theCamera;
+		}
+	}
+
+	private final PipelineMetrics myMetrics;
+
+	private final String myAccount;
+
+	private final String myPassword;
+
+	private final String myHost;
+
+	private final int myPort;
+
+	private final Session mySession;
+
+	private final int myThumbnailWidth;
+
+	private final boolean myContactSheet;
+
+	private final int myMaxImages;
+
+	private final long myCoalesceWindow;
+
+	private final int myAttempts;
+
+	private final long myBackoff;
+
+	private final long myIdleTimeout;
+
+	/** Mail being coalesced, by camera and address, only added to and removed from on the dispatcher thread */
+	private final Map<String, Mail> myPending = new HashMap<>();
+
+	private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "mail-dispatcher");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	/** Only touched by the dispatcher thread */
+	private Transport myTransport;
+
+	private long myLastUsed;
+
+	private final AtomicLong mySent = new AtomicLong();
+
+	private final AtomicLong myCoalesced = new AtomicLong();
+
+	private final AtomicLong myRetries = new AtomicLong();
+
+	private final AtomicLong myFailed = new AtomicLong();
+
+	private final AtomicLong myConnections = new AtomicLong();
+
+	@Autowired
+	public MailDispatcher(
+			PipelineMetrics theMetrics,
+			@Value("${sendingEmailAccount}") String theAccount,
+			@Value("${sendingEmailPassword}") String thePassword,
+			@Value("${mailHost:smtp.gmail.com}") String theHost,
+			@Value("${mailPort:587}") int thePort,
+			@Value("${mailStartTls:true}") boolean theStartTls,
+			@Value("${mailThumbnailWidth:640}") int theThumbnailWidth,
+			@Value("${mailContactSheet:true}") boolean theContactSheet,
+			@Value("${mailMaxImages:12}") int theMaxImages,
+			@Value("${mailCoalesceWindow:2000}") long theCoalesceWindow,
+			@Value("${mailAttempts:3}") int theAttempts,
+			@Value("${mailBackoff:5000}") long theBackoff,
+			@Value("${mailIdleTimeout:60}") long theIdleTimeout) {
+		myMetrics = theMetrics;
+		myAccount = theAccount;
+		myPassword = thePassword;
+		myHost = theHost;
+		myPort = thePort;
+		myThumbnailWidth = theThumbnailWidth;
+		myContactSheet = theContactSheet;
+		myMaxImages = Math.max(1, theMaxImages);
+		myCoalesceWindow = theCoalesceWindow;
+		myAttempts = Math.max(1, theAttempts);
+		myBackoff = theBackoff;
+		myIdleTimeout = TimeUnit.SECONDS.toMillis(theIdleTimeout);
+		Properties aProperties = new Properties();
+		aProperties.put("mail.smtp.host", theHost);
+		aProperties.put("mail.smtp.port", String.valueOf(thePort));
+		aProperties.put("mail.smtp.auth", String.valueOf(!theAccount.isEmpty()));
+		aProperties.put("mail.smtp.starttls.enable", String.valueOf(theStartTls));
+		aProperties.put("mail.smtp.connectiontimeout", "10000");
+		aProperties.put("mail.smtp.timeout", "30000");
+		mySession = Session.getInstance(aProperties);
+		if (myIdleTimeout > 0) {
+			myScheduler.scheduleWithFixedDelay(
+					this::closeIfIdle, myIdleTimeout, Math.max(1000, myIdleTimeout / 2), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Queue a mail of thumbnails of the frames. The frames are read before this returns, so they can
+	 * be deleted afterwards, and shrunk on the dispatcher thread.
+	 *
+	 * @param theCamera camera the frames came from
+	 * @param theTo address to send to
+	 * @param theSubject subject, if mail is coalesced the latest subject is used
+	 * @param theFiles frames to send
+	 */
+	public void submit(Camera theCamera, String theTo, String theSubject, List<File> theFiles) {
+		List<Frame> aFrames = new ArrayList<>();
+		for (File aFile : theFiles) {
+			try {
+				aFrames.add(new Frame(aFile.getName(), Files.readAllBytes(aFile.toPath())));
+			} catch (IOException theE) {
+				logger.warn("Couldn't read " + aFile + ", leaving it out of the mail", theE);
+			}
+		}
+		try {
+			myScheduler.execute(() -> add(theCamera.name(), theTo, theSubject, aFrames));
+		} catch (RejectedExecutionException theE) {
+			logger.warn("Mail dispatcher is shut down, not sending mail for " + theCamera.name());
+		}
+	}
+
+	/** Add thumbnails of the frames to the camera and address' mail, starting one if there isn't one */
+	private void add(String theCamera, String theTo, String theSubject, List<Frame> theFrames) {
+		String aKey = theCamera + " " + theTo;
+		Mail aMail;
+		synchronized (myPending) {
+			aMail = myPending.get(aKey);
+			if (aMail == null) {
+				aMail = new Mail(theTo, theCamera);
+				myPending.put(aKey, aMail);
+				try {
+					myScheduler.schedule(() -> dispatch(aKey), myCoalesceWindow, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException theE) {
+					// Shutting down, the mail goes out with the rest of the pending mail
+				}
+			} else {
+				myCoalesced.incrementAndGet();
+			}
+		}
+		aMail.mySubject = theSubject;
+		for (Frame aFrame : theFrames) {
+			if (aMail.myThumbnails.size() >= myMaxImages) {
+				aMail.myDropped++;
+				continue;
+			}
+			try {
+				aMail.myThumbnails.add(new Thumbnail(aFrame.name(), jpeg(thumbnail(aFrame, myThumbnailWidth))));
+			} catch (IOException | RuntimeException theE) {
+				logger.warn("Couldn't make a thumbnail of " + aFrame.name() + ", leaving it out of the mail", theE);
+			}
+		}
+	}
+
+	private void dispatch(String theKey) {
+		Mail aMail;
+		synchronized (myPending) {
+			aMail = myPending.remove(theKey);
+		}
+		if (aMail != null) {
+			send(aMail);
+		}
+	}
+
+	private void send(Mail theMail) {
+		long aStart = myMetrics.start();
+		try {
+			getTransport().sendMessage(build(theMail), InternetAddress.parse(theMail.myTo));
+			myLastUsed = System.currentTimeMillis();
+			myMetrics.record(PipelineMetrics.Stage.MAIL, aStart, true);
+			mySent.incrementAndGet();
+			logger.info("Sent mail for " + theMail.myCamera + " with " + theMail.myThumbnails.size() + " frames");
+		} catch (MessagingException | IOException | RuntimeException theE) {
+			myMetrics.record(PipelineMetrics.Stage.MAIL, aStart, false);
+			// The connection may be what failed, the retry starts a new one
+			close();
+			if (++theMail.myAttempts >= myAttempts) {
+				myFailed.incrementAndGet();
+				logger.error(
+						"Giving up on mail for " + theMail.myCamera + " after " + theMail.myAttempts + " attempts",
+						theE);
+				return;
+			}
+			myRetries.incrementAndGet();
+			long aDelay = myBackoff << (theMail.myAttempts - 1);
+			logger.warn("Mail for " + theMail.myCamera + " failed, retrying in " + aDelay + "ms", theE);
+			myScheduler.schedule(() -> send(theMail), aDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private Transport getTransport() throws MessagingException {
+		if (myTransport != null && myTransport.isConnected()) {
+			return myTransport;
+		}
+		close();
+		myTransport = mySession.getTransport("smtp");
+		myTransport.connect(
+				myHost, myPort, myAccount.isEmpty() ? null : myAccount, myPassword.isEmpty() ? null : myPassword);
+		myConnections.incrementAndGet();
+		return myTransport;
+	}
+
+	private void closeIfIdle() {
+		if (myTransport != null && System.currentTimeMillis() - myLastUsed > myIdleTimeout) {
+			close();
+		}
+	}
+
+	private void close() {
+		if (myTransport == null) {
+			return;
+		}
+		try {
+			myTransport.close();
+		} catch (MessagingException theE) {
+			logger.debug("Closing SMTP connection", theE);
+		}
+		myTransport = null;
+	}
+
+	private MimeMessage build(Mail theMail) throws MessagingException, IOException {
+		MimeMessage aMessage = new MimeMessage(mySession);
+		aMessage.setFrom(new InternetAddress(myAccount.isEmpty() ? "clarifai@localhost" : myAccount));
+		aMessage.setRecipients(Message.RecipientType.TO, InternetAddress.parse(theMail.myTo));
+		aMessage.setSubject(theMail.mySubject);
+		MimeMultipart aContent = new MimeMultipart();
+		StringBuilder aText = new StringBuilder();
+		theMail.myThumbnails.forEach(theThumbnail -> aText.append(theThumbnail.name()).append('\n'));
+		if (theMail.myDropped > 0) {
+			aText.append(theMail.myDropped).append(" more frames not shown\n");
+		}
+		MimeBodyPart aTextPart = new MimeBodyPart();
+		aTextPart.setText(aText.toString());
+		aContent.addBodyPart(aTextPart);
+		if (myContactSheet && theMail.myThumbnails.size() > 1) {
+			if (theMail.myContactSheet == null) {
+				theMail.myContactSheet = jpeg(contactSheet(theMail.myThumbnails));
+			}
+			aContent.addBodyPart(attachment("contact-sheet.jpg", theMail.myContactSheet));
+		} else {
+			for (Thumbnail aThumbnail : theMail.myThumbnails) {
+				aContent.addBodyPart(attachment(aThumbnail.name(), aThumbnail.jpeg()));
+			}
+		}
+		aMessage.setContent(aContent);
+		return aMessage;
+	}
+
+	private static MimeBodyPart attachment(String theName, byte[] theJpeg) throws MessagingException {
+		MimeBodyPart aPart = new MimeBodyPart();
+		aPart.setDataHandler(new DataHandler(new ByteArrayDataSource(theJpeg, "image/jpeg")));
+		aPart.setFileName(theName);
+		return aPart;
+	}
+
+	private static byte[] jpeg(BufferedImage theImage) throws IOException {
+		ByteArrayOutputStream anOutput = new ByteArrayOutputStream();
+		if (!ImageIO.write(theImage, "jpeg", anOutput)) {
+			throw new IOException("No jpeg writer");
+		}
+		return anOutput.toByteArray();
+	}
+
+	/** Thumbnails in a grid, as close to square as the count allows */
+	private static BufferedImage contactSheet(List<Thumbnail> theThumbnails) throws IOException {
+		List<BufferedImage> anImages = new ArrayList<>();
+		for (Thumbnail aThumbnail : theThumbnails) {
+			BufferedImage anImage = ImageIO.read(new ByteArrayInputStream(aThumbnail.jpeg()));
+			if (anImage == null) {
+				throw new IOException("Can't read thumbnail of " + aThumbnail.name());
+			}
+			anImages.add(anImage);
+		}
+		int aColumns = (int) Math.ceil(Math.sqrt(anImages.size()));
+		int aRows = (anImages.size() + aColumns - 1) / aColumns;
+		int aWidth = 0;
+		int aHeight = 0;
+		for (BufferedImage anImage : anImages) {
+			aWidth = Math.max(aWidth, anImage.getWidth());
+			aHeight = Math.max(aHeight, anImage.getHeight());
+		}
+		BufferedImage aSheet = new BufferedImage(aWidth * aColumns, aHeight * aRows, BufferedImage.TYPE_INT_RGB);
+		Graphics2D aGraphics = aSheet.createGraphics();
+		aGraphics.setColor(Color.BLACK);
+		aGraphics.fillRect(0, 0, aSheet.getWidth(), aSheet.getHeight());
+		for (int ai = 0; ai < anImages.size(); ai++) {
+			aGraphics.drawImage(anImages.get(ai), ai % aColumns * aWidth, ai / aColumns * aHeight, null);
+		}
+		aGraphics.dispose();
+		return aSheet;
+	}
+
+	static BufferedImage thumbnail(File theFile, int theWidth) throws IOException {
+		return thumbnail(ImageIO.createImageInputStream(theFile), theFile.toString(), theWidth);
+	}
+
+	private static BufferedImage thumbnail(Frame theFrame, int theWidth) throws IOException {
+		return thumbnail(
+				ImageIO.createImageInputStream(new ByteArrayInputStream(theFrame.bytes())), theFrame.name(), theWidth);
+	}
+
+	/** Decode subsampled to about twice the thumbnail width, then scale smoothly */
+	private static BufferedImage thumbnail(ImageInputStream theInput, String theName, int theWidth)
+			throws IOException {
+		try (ImageInputStream anInput = theInput) {
+			if (anInput == null) {
+				throw new IOException("Can't read " + theName);
+			}
+			Iterator<ImageReader> aReaders = ImageIO.getImageReaders(anInput);
+			if (!aReaders.hasNext()) {
+				throw new IOException("No image reader for " + theName);
+			}
+			ImageReader aReader = aReaders.next();
+			try {
+				aReader.setInput(anInput, true, true);
+				double aScale = Math.min(1, (double) theWidth / aReader.getWidth(0));
+				int aWidth = Math.max(1, (int) Math.round(aReader.getWidth(0) * aScale));
+				int aHeight = Math.max(1, (int) Math.round(aReader.getHeight(0) * aScale));
+				ImageReadParam aParam = aReader.getDefaultReadParam();
+				int aSubsampling = Math.max(1, (int) (1 / aScale) / 2);
+				aParam.setSourceSubsampling(aSubsampling, aSubsampling, 0, 0);
+				BufferedImage aDecoded = aReader.read(0, aParam);
+				BufferedImage aThumbnail = new BufferedImage(aWidth, aHeight, BufferedImage.TYPE_INT_RGB);
+				Graphics2D aGraphics = aThumbnail.createGraphics();
+				aGraphics.setRenderingHint(
+						RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				aGraphics.drawImage(aDecoded, 0, 0, aWidth, aHeight, null);
+				aGraphics.dispose();
+				return aThumbnail;
+			} finally {
+				aReader.dispose();
+			}
+		}
+	}
+
+	public Stats getStats() {
+		int aPending;
+		synchronized (myPending) {
+			aPending = myPending.size();
+		}
+		return new Stats(
+				aPending, mySent.get(), myCoalesced.get(), myRetries.get(), myFailed.get(), myConnections.get());
+	}
+
+	/**
+	 * Send every coalescing mail now and wait for the dispatcher to finish. Runs after the frames
+	 * already submitted have been added to their mail.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		myScheduler.execute(() -> {
+			List<String> aKeys;
+			synchronized (myPending) {
+				aKeys = new ArrayList<>(myPending.keySet());
+			}
+			aKeys.forEach(this::dispatch);
+			close();
+		});
+		myScheduler.shutdown();
+		try {
+			myScheduler.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
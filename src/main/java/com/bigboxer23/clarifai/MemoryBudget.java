@@ -0,0 +1,309 @@
+package com.bigboxer23.clarifai;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for frames in flight. Each frame is charged its size from the moment it's
+ * accepted until it's uploaded or deleted, and the total is kept under {@code memoryBudget} bytes
+ * (0 to only measure). The charge is labelled with the stage the frame is in: waiting to be read,
+ * in a clarifai request or waiting on its upload.
+ *
+ * <p>When a new frame doesn't fit, frames no worker has picked up yet are shed to make room. The
+ * middle of the new frame's own event goes first, the frame whose neighbours are closest together
+ * being the one that adds least, so an event keeps its first and last frames. Other events are
+ * thinned the same way, and only when nothing can be shed is the new frame refused.
+ */
+@Component
+public class MemoryBudget {
+	private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+	public enum Stage {
+		READ,
+		INFER,
+		UPLOAD
+	}
+
+	public record Stats(
+			long budget, long inFlight, long read, long infer, long upload, long peak, long shed, long rejected) {}
+
+	/** Shed frames are no longer charged and must be stored by whoever admitted the new frame */
+	public record Admission(boolean admitted, List<File> shed) {}
+
+	private static class Entry {
+		private final File myFile;
+
+		private final String myCamera;
+
+		private final long myBytes;
+
+		private final long myAdmitted;
+
+		private Stage myStage = Stage.READ;
+
+		private boolean myStarted;
+
+		private Entry(File theFile, String theCamera, long theBytes, long theAdmitted) {
+			myFile = theFile;
+			myCamera = theCamera;
+			myBytes = theBytes;
+			myAdmitted = theAdmitted;
+		}
+	}
+
+	private final long myBudget;
+
+	private final long myTtl;
+
+	private final long myEventGap;
+
+	private final Map<File, Entry> myEntries = new HashMap<>();
+
+	/** Each camera's frames in the order they were admitted */
+	private final Map<String, List<Entry>> myCameras = new HashMap<>();
+
+	/** Shed frames still in a queue, their workers skip them */
+	private final Set<File> myShedFiles = new HashSet<>();
+
+	private final Map<Stage, Long> myStageBytes = new EnumMap<>(Stage.class);
+
+	private long myInFlight;
+
+	private long myPeak;
+
+	private long myShed;
+
+	private long myRejected;
+
+	@Autowired
+	public MemoryBudget(
+			@Value("${memoryBudget:67108864}") long theBudget,
+			@Value("${memoryBudgetTtl:600}") long theTtl,
+			@Value("${eventGap:5}") long theEventGap) {
+		myBudget = Math.max(0, theBudget);
+		myTtl = TimeUnit.SECONDS.toMillis(theTtl);
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		for (Stage aStage : Stage.values()) {
+			myStageBytes.put(aStage, 0L);
+		}
+	}
+
+	/**
+	 * Charge a new frame to the budget, shedding frames that haven't been started if it doesn't fit
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theFile frame to admit
+	 * @return whether the frame was admitted and the frames shed to make room, which the caller
+	 *     stores unanalyzed either way
+	 */
+	public Admission admit(Camera theCamera, File theFile) {
+		return admit(theCamera, theFile, System.currentTimeMillis());
+	}
+
+	synchronized Admission admit(Camera theCamera, File theFile, long theNow) {
+		if (myEntries.containsKey(theFile)) {
+			// Resubmitted frames are already paid for
+			return new Admission(true, List.of());
+		}
+		Entry anEntry = new Entry(theFile, theCamera.name(), theFile.length(), theNow);
+		List<File> aShed = new ArrayList<>();
+		if (myBudget > 0 && myInFlight + anEntry.myBytes > myBudget) {
+			expire(theNow);
+			Entry aVictim;
+			while (myInFlight + anEntry.myBytes > myBudget && (aVictim = pickVictim(anEntry)) != null) {
+				remove(aVictim);
+				myShedFiles.add(aVictim.myFile);
+				aShed.add(aVictim.myFile);
+			}
+			myShed += aShed.size();
+			if (!aShed.isEmpty()) {
+				logger.warn("Over the memory budget, shed " + aShed + " for " + theFile);
+			}
+			if (myInFlight + anEntry.myBytes > myBudget) {
+				myRejected++;
+				logger.warn("Over the memory budget ("
+						+ myInFlight
+						+ " of "
+						+ myBudget
+						+ " bytes in flight), refusing "
+						+ theFile);
+				return new Admission(false, aShed);
+			}
+		}
+		myEntries.put(theFile, anEntry);
+		myCameras.computeIfAbsent(anEntry.myCamera, theName -> new ArrayList<>()).add(anEntry);
+		add(anEntry.myStage, anEntry.myBytes);
+		myPeak = Math.max(myPeak, myInFlight);
+		return new Admission(true, aShed);
+	}
+
+	/**
+	 * Mark a frame as picked up by a worker, or dropped by its queue, it can't be shed from here on
+	 *
+	 * @return false if the frame was shed while it waited
+	 */
+	public synchronized boolean start(File theFile) {
+		if (myShedFiles.remove(theFile)) {
+			return false;
+		}
+		Entry anEntry = myEntries.get(theFile);
+		if (anEntry != null) {
+			anEntry.myStarted = true;
+		}
+		return true;
+	}
+
+	/** Move a frame's charge to another stage, frames the budget doesn't know are ignored */
+	public synchronized void moveTo(File theFile, Stage theStage) {
+		Entry anEntry = myEntries.get(theFile);
+		if (anEntry == null || anEntry.myStage == theStage) {
+			return;
+		}
+		add(anEntry.myStage, -anEntry.myBytes);
+		anEntry.myStage = theStage;
+		anEntry.myStarted = true;
+		add(theStage, anEntry.myBytes);
+	}
+
+	/** The frame has left the pipeline, it was uploaded or deleted */
+	public synchronized void release(File theFile) {
+		Entry anEntry = myEntries.get(theFile);
+		if (anEntry != null) {
+			remove(anEntry);
+		}
+	}
+
+	private void add(Stage theStage, long theBytes) {
+		myStageBytes.merge(theStage, theBytes, Long::sum);
+		myInFlight += theBytes;
+	}
+
+	private void remove(Entry theEntry) {
+		myEntries.remove(theEntry.myFile);
+		List<Entry> aFrames = myCameras.get(theEntry.myCamera);
+		aFrames.remove(theEntry);
+		if (aFrames.isEmpty()) {
+			myCameras.remove(theEntry.myCamera);
+		}
+		add(theEntry.myStage, -theEntry.myBytes);
+	}
+
+	/** Forget frames that never reported back, so a missed release can't shrink the budget for good */
+	private void expire(long theNow) {
+		List<Entry> anExpired = new ArrayList<>();
+		for (Entry anEntry : myEntries.values()) {
+			if (theNow - anEntry.myAdmitted > myTtl) {
+				anExpired.add(anEntry);
+			}
+		}
+		for (Entry anEntry : anExpired) {
+			logger.warn("Releasing " + anEntry.myFile + ", in flight for over " + myTtl + "ms");
+			remove(anEntry);
+		}
+	}
+
+	/** A middle frame of the new frame's event if there is one, otherwise of any camera's events */
+	private Entry pickVictim(Entry theNew) {
+		Entry aVictim = null;
+		long aBestSpan = Long.MAX_VALUE;
+		List<Entry> anOwn = myCameras.get(theNew.myCamera);
+		if (anOwn != null) {
+			for (int ai = eventStart(anOwn, theNew); ai < anOwn.size(); ai++) {
+				long aSpan = span(anOwn, ai, theNew);
+				if (aSpan < aBestSpan) {
+					aBestSpan = aSpan;
+					aVictim = anOwn.get(ai);
+				}
+			}
+		}
+		if (aVictim != null) {
+			return aVictim;
+		}
+		for (List<Entry> aFrames : myCameras.values()) {
+			for (int ai = 0; ai < aFrames.size(); ai++) {
+				long aSpan = span(aFrames, ai, aFrames == anOwn ? theNew : null);
+				if (aSpan < aBestSpan) {
+					aBestSpan = aSpan;
+					aVictim = aFrames.get(ai);
+				}
+			}
+		}
+		return aVictim;
+	}
+
+	/**
+	 * @return index of the first of theFrames in the new frame's event, their size if the new frame
+	 *     starts an event
+	 */
+	private int eventStart(List<Entry> theFrames, Entry theNew) {
+		int anIndex = theFrames.size();
+		Entry aNext = theNew;
+		while (anIndex > 0 && sameEvent(theFrames.get(anIndex - 1), aNext)) {
+			aNext = theFrames.get(--anIndex);
+		}
+		return anIndex;
+	}
+
+	/**
+	 * @param theNew frame being admitted, it follows the last of theFrames. Null if it's from
+	 *     another camera
+	 * @return time between the neighbours of a waiting frame, the shorter it is the less the frame
+	 *     adds to its event. Long.MAX_VALUE if the frame is started, or starts or ends its event
+	 */
+	private long span(List<Entry> theFrames, int theIndex, Entry theNew) {
+		Entry aFrame = theFrames.get(theIndex);
+		if (aFrame.myStarted || theIndex == 0) {
+			return Long.MAX_VALUE;
+		}
+		Entry aPrevious = theFrames.get(theIndex - 1);
+		Entry aNext = theIndex + 1 < theFrames.size() ? theFrames.get(theIndex + 1) : theNew;
+		if (aNext == null || !sameEvent(aPrevious, aFrame) || !sameEvent(aFrame, aNext)) {
+			return Long.MAX_VALUE;
+		}
+		return aNext.myAdmitted - aPrevious.myAdmitted;
+	}
+
+	private boolean sameEvent(Entry theFirst, Entry theSecond) {
+		return theSecond.myAdmitted - theFirst.myAdmitted <= myEventGap;
+	}
+
+	public synchronized long getInFlight() {
+		return myInFlight;
+	}
+
+	public synchronized long getInFlight(Stage theStage) {
+		return myStageBytes.get(theStage);
+	}
+
+	public long getBudget() {
+		return myBudget;
+	}
+
+	public synchronized long getShed() {
+		return myShed;
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(
+				myBudget,
+				myInFlight,
+				myStageBytes.get(Stage.READ),
+				myStageBytes.get(Stage.INFER),
+				myStageBytes.get(Stage.UPLOAD),
+				myPeak,
+				myShed,
+				myRejected);
+	}
+}
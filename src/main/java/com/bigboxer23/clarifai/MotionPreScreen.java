@@ -0,0 +1,209 @@
+package com.bigboxer23.clarifai;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rejects frames whose motion is only a lighting change or too small to matter, before they cost
+ * a clarifai call. Each camera keeps a background model, an exponential moving average of its
+ * frames' small grayscale copies. A frame is compared to the background after compensating for
+ * the overall change in brightness, and the largest connected area of pixels that still differ is
+ * its foreground.
+ *
+ * <p>A frame is rejected if its largest foreground area covers less than {@code prescreenMinArea}
+ * of the frame. If much of the frame changed before brightness compensation it's counted as an
+ * illumination change (headlights, clouds), otherwise as tiny motion (rain, insects, leaves).
+ * Disabled by default, {@code prescreenMinArea} needs tuning to the camera's view first.
+ */
+@Component
+public class MotionPreScreen {
+	private static final Logger logger = LoggerFactory.getLogger(MotionPreScreen.class);
+
+	public enum Verdict {
+		PASSED,
+		ILLUMINATION,
+		TINY_MOTION
+	}
+
+	public record Stats(long screened, long passed, long illumination, long tinyMotion) {}
+
+	/** A camera's background model and scratch space, guarded by its own lock */
+	private static class Background {
+		private float[] myMean;
+
+		private boolean[] myForeground;
+
+		private int[] myStack;
+	}
+
+	private final PipelineMetrics myMetrics;
+
+	private final boolean myEnabled;
+
+	private final int myPixelThreshold;
+
+	private final double myMinArea;
+
+	private final double myIlluminationArea;
+
+	private final float myLearningRate;
+
+	private final Map<String, Background> myBackgrounds = new HashMap<>();
+
+	private final AtomicLong myScreened = new AtomicLong();
+
+	private final AtomicLong myPassed = new AtomicLong();
+
+	private final AtomicLong myIllumination = new AtomicLong();
+
+	private final AtomicLong myTinyMotion = new AtomicLong();
+
+	@Autowired
+	public MotionPreScreen(
+			PipelineMetrics theMetrics,
+			@Value("${prescreenEnabled:false}") boolean theEnabled,
+			@Value("${prescreenPixelThreshold:25}") int thePixelThreshold,
+			@Value("${prescreenMinArea:.005}") double theMinArea,
+			@Value("${prescreenIlluminationArea:.3}") double theIlluminationArea,
+			@Value("${prescreenLearningRate:.05}") double theLearningRate) {
+		myMetrics = theMetrics;
+		myEnabled = theEnabled;
+		myPixelThreshold = thePixelThreshold;
+		myMinArea = theMinArea;
+		myIlluminationArea = theIlluminationArea;
+		myLearningRate = (float) theLearningRate;
+	}
+
+	public boolean isEnabled() {
+		return myEnabled;
+	}
+
+	/**
+	 * Compare a frame to its camera's background and fold it into the background. The first frame
+	 * a camera sends only starts its background and is passed.
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theLuma small grayscale copy of the frame
+	 * @return whether the frame should go on to clarifai, or why not
+	 */
+	public Verdict screen(String theCamera, FrameScorer.Luma theLuma) {
+		if (!myEnabled) {
+			return Verdict.PASSED;
+		}
+		long aStart = myMetrics.start();
+		Background aBackground;
+		synchronized (myBackgrounds) {
+			aBackground = myBackgrounds.computeIfAbsent(theCamera, theName -> new Background());
+		}
+		Verdict aVerdict;
+		synchronized (aBackground) {
+			aVerdict = screen(aBackground, theLuma);
+		}
+		myMetrics.record(PipelineMetrics.Stage.PRESCREEN, aStart, true);
+		myScreened.incrementAndGet();
+		switch (aVerdict) {
+			case PASSED -> myPassed.incrementAndGet();
+			case ILLUMINATION -> myIllumination.incrementAndGet();
+			case TINY_MOTION -> myTinyMotion.incrementAndGet();
+		}
+		if (aVerdict != Verdict.PASSED) {
+			myMetrics.recordPreScreenRejection(aVerdict);
+		}
+		return aVerdict;
+	}
+
+	private Verdict screen(Background theBackground, FrameScorer.Luma theLuma) {
+		int[] aPixels = theLuma.pixels();
+		float[] aMean = theBackground.myMean;
+		if (aMean == null || aMean.length != aPixels.length) {
+			theBackground.myMean = new float[aPixels.length];
+			theBackground.myForeground = new boolean[aPixels.length];
+			theBackground.myStack = new int[aPixels.length];
+			for (int ai = 0; ai < aPixels.length; ai++) {
+				theBackground.myMean[ai] = aPixels[ai];
+			}
+			return Verdict.PASSED;
+		}
+		// Overall brightness change, the background is scaled by this before looking for motion
+		double aFrameSum = 0;
+		double aBackgroundSum = 0;
+		for (int ai = 0; ai < aPixels.length; ai++) {
+			aFrameSum += aPixels[ai];
+			aBackgroundSum += aMean[ai];
+		}
+		float aGain = aBackgroundSum > 0 ? (float) (aFrameSum / aBackgroundSum) : 1;
+		boolean[] aForeground = theBackground.myForeground;
+		int aRawChanged = 0;
+		for (int ai = 0; ai < aPixels.length; ai++) {
+			if (Math.abs(aPixels[ai] - aMean[ai]) > myPixelThreshold) {
+				aRawChanged++;
+			}
+			aForeground[ai] = Math.abs(aPixels[ai] - aMean[ai] * aGain) > myPixelThreshold;
+		}
+		int aLargest = largestArea(aForeground, theLuma.width(), theLuma.height(), theBackground.myStack);
+		for (int ai = 0; ai < aPixels.length; ai++) {
+			aMean[ai] = aMean[ai] * aGain * (1 - myLearningRate) + aPixels[ai] * myLearningRate;
+		}
+		if (aLargest >= myMinArea * aPixels.length) {
+			return Verdict.PASSED;
+		}
+		if (aRawChanged >= myIlluminationArea * aPixels.length) {
+			logger.info("Rejecting illumination change, gain " + aGain + ", largest area " + aLargest + " pixels");
+			return Verdict.ILLUMINATION;
+		}
+		logger.info("Rejecting tiny motion, largest area " + aLargest + " pixels");
+		return Verdict.TINY_MOTION;
+	}
+
+	/**
+	 * Size of the largest 4-connected area of foreground pixels. Clears the mask as it goes.
+	 *
+	 * @param theStack scratch space at least as long as the mask
+	 */
+	static int largestArea(boolean[] theMask, int theWidth, int theHeight, int[] theStack) {
+		int aLargest = 0;
+		for (int aSeed = 0; aSeed < theMask.length; aSeed++) {
+			if (!theMask[aSeed]) {
+				continue;
+			}
+			int anArea = 0;
+			int aTop = 0;
+			theStack[aTop++] = aSeed;
+			theMask[aSeed] = false;
+			while (aTop > 0) {
+				int aPixel = theStack[--aTop];
+				anArea++;
+				int x = aPixel % theWidth;
+				int y = aPixel / theWidth;
+				if (x > 0 && theMask[aPixel - 1]) {
+					theMask[aPixel - 1] = false;
+					theStack[aTop++] = aPixel - 1;
+				}
+				if (x < theWidth - 1 && theMask[aPixel + 1]) {
+					theMask[aPixel + 1] = false;
+					theStack[aTop++] = aPixel + 1;
+				}
+				if (y > 0 && theMask[aPixel - theWidth]) {
+					theMask[aPixel - theWidth] = false;
+					theStack[aTop++] = aPixel - theWidth;
+				}
+				if (y < theHeight - 1 && theMask[aPixel + theWidth]) {
+					theMask[aPixel + theWidth] = false;
+					theStack[aTop++] = aPixel + theWidth;
+				}
+			}
+			aLargest = Math.max(aLargest, anArea);
+		}
+		return aLargest;
+	}
+
+	public Stats getStats() {
+		return new Stats(myScreened.get(), myPassed.get(), myIllumination.get(), myTinyMotion.get());
+	}
+}
@@ -0,0 +1,45 @@
+package com.bigboxer23.clarifai;
+
+/**
+ * Difference hash (dHash) of an image. The frame's small grayscale copy from {@link FrameScorer} is
+ * reduced to a 9x8 grid of mean brightness and each bit records whether a cell is brighter than its
+ * right hand neighbour. Near identical frames produce hashes a small Hamming distance apart.
+ */
+public final class PerceptualHash {
+	private static final int kWidth = 9;
+
+	private static final int kHeight = 8;
+
+	private PerceptualHash() {}
+
+	public static long dHash(FrameScorer.Luma theLuma) {
+		long[] aCells = new long[kWidth * kHeight];
+		int[] aCounts = new int[kWidth * kHeight];
+		int aWidth = theLuma.width();
+		int aHeight = theLuma.height();
+		int[] aPixels = theLuma.pixels();
+		for (int y = 0; y < aHeight; y++) {
+			int aRow = y * kHeight / aHeight;
+			for (int x = 0; x < aWidth; x++) {
+				int aCell = aRow * kWidth + x * kWidth / aWidth;
+				aCells[aCell] += aPixels[y * aWidth + x];
+				aCounts[aCell]++;
+			}
+		}
+		long aHash = 0;
+		for (int y = 0; y < kHeight; y++) {
+			for (int x = 0; x < kWidth - 1; x++) {
+				int aCell = y * kWidth + x;
+				aHash <<= 1;
+				if (aCells[aCell] * aCounts[aCell + 1] > aCells[aCell + 1] * aCounts[aCell]) {
+					aHash |= 1;
+				}
+			}
+		}
+		return aHash;
+	}
+
+	public static int distance(long theHash, long theOtherHash) {
+		return Long.bitCount(theHash ^ theOtherHash);
+	}
+}
@@ -0,0 +1,110 @@
+package com.bigboxer23.clarifai;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.springframework.stereotype.Component;
+
+/**
+ * Latency and outcome of each stage a frame passes through, published as {@code
+ * clarifai.stage} timers tagged with the stage and outcome (p50/p95/p99 plus histogram buckets for
+ * Prometheus), along with batch sizes, verdict counts by outcome and frames the pre-screen rejected.
+ */
+@Component
+public class PipelineMetrics {
+	public enum Stage {
+		FILE_READ("file_read"),
+		PRESCREEN("prescreen"),
+		REQUEST_BUILD("request_build"),
+		CLARIFAI_RPC("clarifai_rpc"),
+		EVALUATE("evaluate"),
+		S3_PUT("s3_put"),
+		PRESIGN("presign"),
+		WEBHOOK("webhook"),
+		MAIL("mail");
+
+		private final String myTag;
+
+		Stage(String theTag) {
+			myTag = theTag;
+		}
+	}
+
+	private final Map<Stage, Timer> mySuccesses = new EnumMap<>(Stage.class);
+
+	private final Map<Stage, Timer> myFailures = new EnumMap<>(Stage.class);
+
+	private final DistributionSummary myBatchSize;
+
+	private final Map<DecisionEngine.Outcome, Counter> myVerdicts = new EnumMap<>(DecisionEngine.Outcome.class);
+
+	private final Map<MotionPreScreen.Verdict, Counter> myRejections = new EnumMap<>(MotionPreScreen.Verdict.class);
+
+	public PipelineMetrics(MeterRegistry theRegistry) {
+		for (Stage aStage : Stage.values()) {
+			mySuccesses.put(aStage, timer(theRegistry, aStage, "success"));
+			myFailures.put(aStage, timer(theRegistry, aStage, "failure"));
+		}
+		myBatchSize = DistributionSummary.builder("clarifai.batch.size")
+				.description("Frames per clarifai request")
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(theRegistry);
+		for (DecisionEngine.Outcome anOutcome : DecisionEngine.Outcome.values()) {
+			myVerdicts.put(
+					anOutcome,
+					Counter.builder("clarifai.verdicts")
+							.tag("verdict", anOutcome == DecisionEngine.Outcome.NOTEWORTHY ? "success" : "failure")
+							.tag("reason", anOutcome.name().toLowerCase())
+							.register(theRegistry));
+		}
+		for (MotionPreScreen.Verdict aVerdict : MotionPreScreen.Verdict.values()) {
+			if (aVerdict != MotionPreScreen.Verdict.PASSED) {
+				myRejections.put(
+						aVerdict,
+						Counter.builder("clarifai.prescreen.rejected")
+								.description("Frames rejected before calling clarifai")
+								.tag("reason", aVerdict.name().toLowerCase())
+								.register(theRegistry));
+			}
+		}
+	}
+
+	private static Timer timer(MeterRegistry theRegistry, Stage theStage, String theOutcome) {
+		return Timer.builder("clarifai.stage")
+				.description("Time spent in each stage of the analysis pipeline")
+				.tag("stage", theStage.myTag)
+				.tag("outcome", theOutcome)
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.publishPercentileHistogram()
+				.register(theRegistry);
+	}
+
+	/**
+	 * @return start time to pass to {@link #record(Stage, long, boolean)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void record(Stage theStage, long theStart, boolean theSuccess) {
+		(theSuccess ? mySuccesses : myFailures)
+				.get(theStage)
+				.record(System.nanoTime() - theStart, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordBatch(int theFrames) {
+		myBatchSize.record(theFrames);
+	}
+
+	public void recordVerdict(DecisionEngine.Outcome theOutcome) {
+		myVerdicts.get(theOutcome).increment();
+	}
+
+	public void recordPreScreenRejection(MotionPreScreen.Verdict theVerdict) {
+		myRejections.get(theVerdict).increment();
+	}
+}
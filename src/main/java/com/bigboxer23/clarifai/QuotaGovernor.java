@@ -0,0 +1,333 @@
+package com.bigboxer23.clarifai;
+
+import com.bigboxer23.utils.file.FilePersistentIndex;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Token bucket keeping clarifai usage inside the monthly limit. Tokens refill continuously at
+ * {@code clarifaiMonthlyLimit} spread over the month and the bucket holds at most {@code
+ * quotaBurst}, so a burst of motion can use a day's worth of calls but not the month's. Once the
+ * month's limit has been used nothing more is admitted until the next month, whatever the bucket
+ * holds.
+ *
+ * <p>Each camera has its own equal share of the bucket, so a busy camera can't spend the calls
+ * another camera needs. Refill a camera can't hold because its share is full is passed on to the
+ * cameras that have room.
+ *
+ * <p>Rather than stopping outright when a camera's share runs low, frames are sampled: below its
+ * share of {@code quotaLowWatermark} tokens only one frame in {@code quotaSampleRate} of an event
+ * is analyzed. The first frame of an event (one arriving {@code quotaEventGap} seconds after the
+ * camera's last) is always admitted while a token remains.
+ *
+ * <p>State is held in memory and written to {@code quotaStatePath} in the background, so admitting
+ * a frame never touches the disk.
+ */
+@Component
+public class QuotaGovernor {
+	private static final Logger logger = LoggerFactory.getLogger(QuotaGovernor.class);
+
+	public record Status(
+			double tokens,
+			int burst,
+			long used,
+			long monthlyLimit,
+			long sampledOut,
+			long rejected,
+			Map<String, Double> cameraTokens,
+			Map<String, Integer> cameraSampleRates) {}
+
+	/** One camera's share of the bucket */
+	private static class Share {
+		private double myTokens;
+
+		private long myLastFrame = Long.MIN_VALUE;
+
+		private long myEventFrames;
+	}
+
+	private final long myMonthlyLimit;
+
+	private final int myBurst;
+
+	private final double myLowWatermark;
+
+	private final int mySampleRate;
+
+	private final long myEventGap;
+
+	private final File myStateFile;
+
+	private final ScheduledExecutorService myScheduler;
+
+	private final Map<String, Share> myShares = new LinkedHashMap<>();
+
+	/** Most tokens each camera can hold, and the watermark below which it samples */
+	private final double myShareBurst;
+
+	private final double myShareWatermark;
+
+	private long myLastRefill;
+
+	private YearMonth myMonth;
+
+	private long myUsed;
+
+	private long mySampledOut;
+
+	private long myRejected;
+
+	/** Whether the state was read from {@code quotaStatePath} */
+	private boolean myRestored;
+
+	@Autowired
+	public QuotaGovernor(
+			CameraRegistry theCameras,
+			@Value("${clarifaiMonthlyLimit:5000}") long theMonthlyLimit,
+			@Value("${quotaBurst:100}") int theBurst,
+			@Value("${quotaLowWatermark:20}") double theLowWatermark,
+			@Value("${quotaSampleRate:4}") int theSampleRate,
+			@Value("${quotaEventGap:30}") long theEventGap,
+			@Value("${quotaStatePath:quota.state}") String theStatePath,
+			@Value("${quotaPersistInterval:60}") long thePersistInterval) {
+		this(
+				theCameras.getCameras().stream().map(Camera::name).toList(),
+				theMonthlyLimit,
+				theBurst,
+				theLowWatermark,
+				theSampleRate,
+				theEventGap,
+				theStatePath,
+				thePersistInterval);
+		seed(new FilePersistentIndex("api").get());
+	}
+
+	public QuotaGovernor(
+			List<String> theCameras,
+			long theMonthlyLimit,
+			int theBurst,
+			double theLowWatermark,
+			int theSampleRate,
+			long theEventGap,
+			String theStatePath,
+			long thePersistInterval) {
+		myMonthlyLimit = theMonthlyLimit;
+		myBurst = Math.max(1, theBurst);
+		myLowWatermark = theLowWatermark;
+		mySampleRate = Math.max(1, theSampleRate);
+		myEventGap = TimeUnit.SECONDS.toMillis(theEventGap);
+		myStateFile = theStatePath == null || theStatePath.isEmpty() ? null : new File(theStatePath);
+		myShareBurst = (double) myBurst / theCameras.size();
+		myShareWatermark = myLowWatermark / theCameras.size();
+		for (String aCamera : theCameras) {
+			Share aShare = new Share();
+			aShare.myTokens = myShareBurst;
+			myShares.put(aCamera, aShare);
+		}
+		myLastRefill = System.currentTimeMillis();
+		myMonth = YearMonth.now();
+		load();
+		if (myStateFile == null || thePersistInterval <= 0) {
+			myScheduler = null;
+			return;
+		}
+		myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+			Thread aThread = new Thread(theRunnable, "quota-persist");
+			aThread.setDaemon(true);
+			return aThread;
+		});
+		myScheduler.scheduleWithFixedDelay(this::persist, thePersistInterval, thePersistInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Decide whether a frame should be sent to clarifai, taking a token from its camera's share if
+	 * it is
+	 *
+	 * @param theCamera camera the frame came from
+	 * @return true if the frame may be analyzed
+	 */
+	public synchronized boolean tryAcquire(String theCamera) {
+		long aNow = System.currentTimeMillis();
+		refill(aNow);
+		Share aShare = myShares.get(theCamera);
+		if (aShare == null) {
+			throw new IllegalArgumentException("Unknown camera " + theCamera);
+		}
+		if (aNow - aShare.myLastFrame > myEventGap) {
+			aShare.myEventFrames = 0;
+		}
+		aShare.myLastFrame = aNow;
+		long aFrame = aShare.myEventFrames++;
+		if (aShare.myTokens < 1 || myUsed >= myMonthlyLimit) {
+			myRejected++;
+			return false;
+		}
+		if (aShare.myTokens < myShareWatermark && aFrame % mySampleRate != 0) {
+			mySampledOut++;
+			return false;
+		}
+		aShare.myTokens--;
+		myUsed++;
+		return true;
+	}
+
+	/**
+	 * Carry over the month's count kept by the api index before there was any quota state, so an
+	 * upgrade part way through a month doesn't start again from 0
+	 */
+	synchronized void seed(long theUsed) {
+		if (myRestored || theUsed <= myUsed) {
+			return;
+		}
+		logger.info("Starting from the " + theUsed + " calls already counted this month");
+		myUsed = theUsed;
+	}
+
+	/** Give back the token of a frame that was admitted but never answered by clarifai */
+	public synchronized void refund(String theCamera) {
+		refill(System.currentTimeMillis());
+		Share aShare = myShares.get(theCamera);
+		if (aShare == null) {
+			return;
+		}
+		aShare.myTokens = Math.min(myShareBurst, aShare.myTokens + 1);
+		myUsed = Math.max(0, myUsed - 1);
+	}
+
+	/**
+	 * @return calls admitted so far this month
+	 */
+	public synchronized long getUsed() {
+		refill(System.currentTimeMillis());
+		return myUsed;
+	}
+
+	public synchronized Status getStatus() {
+		refill(System.currentTimeMillis());
+		Map<String, Double> aTokens = new LinkedHashMap<>();
+		Map<String, Integer> aSampleRates = new LinkedHashMap<>();
+		myShares.forEach((theCamera, theShare) -> {
+			aTokens.put(theCamera, theShare.myTokens);
+			aSampleRates.put(theCamera, theShare.myTokens < myShareWatermark ? mySampleRate : 1);
+		});
+		return new Status(
+				getTokens(), myBurst, myUsed, myMonthlyLimit, mySampledOut, myRejected, aTokens, aSampleRates);
+	}
+
+	private double getTokens() {
+		double aTokens = 0;
+		for (Share aShare : myShares.values()) {
+			aTokens += aShare.myTokens;
+		}
+		return aTokens;
+	}
+
+	private void refill(long theNow) {
+		YearMonth aMonth = YearMonth.now();
+		if (!aMonth.equals(myMonth)) {
+			logger.info("New month, resetting API count from " + myUsed);
+			myMonth = aMonth;
+			myUsed = 0;
+		}
+		double aPerMilli = (double) myMonthlyLimit / TimeUnit.DAYS.toMillis(aMonth.lengthOfMonth());
+		double aRefill = Math.max(0, theNow - myLastRefill) * aPerMilli;
+		myLastRefill = theNow;
+		// Split evenly between the cameras with room, handing on whatever a full share can't take
+		while (aRefill > 1e-9) {
+			int aWithRoom = 0;
+			for (Share aShare : myShares.values()) {
+				if (aShare.myTokens < myShareBurst) {
+					aWithRoom++;
+				}
+			}
+			if (aWithRoom == 0) {
+				return;
+			}
+			double aPortion = aRefill / aWithRoom;
+			aRefill = 0;
+			for (Share aShare : myShares.values()) {
+				if (aShare.myTokens < myShareBurst) {
+					double aTaken = Math.min(aPortion, myShareBurst - aShare.myTokens);
+					aShare.myTokens += aTaken;
+					aRefill += aPortion - aTaken;
+				}
+			}
+		}
+	}
+
+	private void load() {
+		if (myStateFile == null || !myStateFile.exists()) {
+			return;
+		}
+		try {
+			List<String> aLines = Files.readAllLines(myStateFile.toPath(), StandardCharsets.UTF_8);
+			String[] aState = aLines.get(0).trim().split(" ");
+			myLastRefill = Long.parseLong(aState[0]);
+			myMonth = YearMonth.parse(aState[1]);
+			myUsed = Long.parseLong(aState[2]);
+			for (String aLine : aLines.subList(1, aLines.size())) {
+				int aSpace = aLine.lastIndexOf(' ');
+				Share aShare = aSpace > 0 ? myShares.get(aLine.substring(0, aSpace)) : null;
+				if (aShare != null) {
+					aShare.myTokens = Math.min(myShareBurst, Double.parseDouble(aLine.substring(aSpace + 1)));
+				}
+			}
+			myRestored = true;
+			refill(System.currentTimeMillis());
+			logger.info("Quota restored, " + (int) getTokens() + " tokens, " + myUsed + " calls this month");
+		} catch (IOException | RuntimeException theE) {
+			logger.warn("Couldn't read quota state from " + myStateFile + ", starting with a full bucket", theE);
+		}
+	}
+
+	/** Write the bucket to disk, replacing the previous state atomically */
+	public void persist() {
+		if (myStateFile == null) {
+			return;
+		}
+		StringBuilder aState = new StringBuilder();
+		synchronized (this) {
+			refill(System.currentTimeMillis());
+			aState.append(myLastRefill).append(' ').append(myMonth).append(' ').append(myUsed).append('\n');
+			myShares.forEach((theCamera, theShare) ->
+					aState.append(theCamera).append(' ').append(theShare.myTokens).append('\n'));
+		}
+		try {
+			File aParent = myStateFile.getAbsoluteFile().getParentFile();
+			Files.createDirectories(aParent.toPath());
+			File aTemp = new File(aParent, myStateFile.getName() + ".tmp");
+			Files.writeString(aTemp.toPath(), aState, StandardCharsets.UTF_8);
+			Files.move(
+					aTemp.toPath(),
+					myStateFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException theE) {
+			logger.error("Couldn't save quota state", theE);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (myScheduler != null) {
+			myScheduler.shutdownNow();
+		}
+		persist();
+	}
+}
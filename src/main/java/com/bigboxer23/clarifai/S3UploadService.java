@@ -0,0 +1,315 @@
+package com.bigboxer23.clarifai;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Uploads files to S3 on a bounded pool of threads. Large files go through a {@link
+ * TransferManager} multipart upload, failed uploads are rescheduled with backoff and if S3 still can't
+ * be reached the file is moved to a capped local spool directory that's drained in the background.
+ * A local file is only deleted once S3 has confirmed the upload.
+ */
+@Component
+public class S3UploadService {
+	private static final Logger logger = LoggerFactory.getLogger(S3UploadService.class);
+
+	public record Stats(
+			long uploaded,
+			long failed,
+			long bytes,
+			double averageLatencyMs,
+			double bytesPerSecond,
+			int inFlight,
+			int spooled,
+			long spoolBytes) {}
+
+	/** An upload waiting out its backoff */
+	private record Retry(File file, String key) {}
+
+	private final AmazonS3 myS3Client;
+
+	private final PipelineMetrics myMetrics;
+
+	private final String myBucketName;
+
+	private final long myMultipartThreshold;
+
+	private final int myAttempts;
+
+	private final long myBackoff;
+
+	private final File mySpoolDirectory;
+
+	private final long mySpoolMaxBytes;
+
+	private final ExecutorService myUploaders;
+
+	private final ScheduledExecutorService myScheduler;
+
+	private final TransferManager myTransferManager;
+
+	private final AtomicBoolean myDraining = new AtomicBoolean();
+
+	private final AtomicInteger myInFlight = new AtomicInteger();
+
+	private final AtomicLong myUploaded = new AtomicLong();
+
+	private final AtomicLong myFailed = new AtomicLong();
+
+	private final AtomicLong myBytes = new AtomicLong();
+
+	private final AtomicLong myLatency = new AtomicLong();
+
+	/** Kept as files are spooled and drained so stats don't list the spool directory */
+	private final AtomicInteger mySpooled = new AtomicInteger();
+
+	private final AtomicLong mySpoolBytes = new AtomicLong();
+
+	/** Uploads waiting out their backoff, spooled if the service shuts down first */
+	private final Map<CompletableFuture<Boolean>, Retry> myRetrying = new ConcurrentHashMap<>();
+
+	public S3UploadService(
+			AmazonS3 theS3Client,
+			PipelineMetrics theMetrics,
+			@Value("${s3BucketName}") String theBucketName,
+			@Value("${s3UploadThreads:2}") int theThreads,
+			@Value("${s3MultipartThreshold:8388608}") long theMultipartThreshold,
+			@Value("${s3UploadAttempts:3}") int theAttempts,
+			@Value("${s3UploadBackoff:1000}") long theBackoff,
+			@Value("${s3SpoolPath:spool}") String theSpoolPath,
+			@Value("${s3SpoolMaxBytes:524288000}") long theSpoolMaxBytes,
+			@Value("${s3SpoolDrainInterval:60}") long theDrainInterval) {
+		myS3Client = theS3Client;
+		myMetrics = theMetrics;
+		myBucketName = theBucketName;
+		myMultipartThreshold = theMultipartThreshold;
+		myAttempts = Math.max(1, theAttempts);
+		myBackoff = theBackoff;
+		mySpoolDirectory = new File(theSpoolPath);
+		mySpoolMaxBytes = theSpoolMaxBytes;
+		File[] aSpooled = mySpoolDirectory.listFiles(File::isFile);
+		if (aSpooled != null) {
+			for (File aFile : aSpooled) {
+				mySpooled.incrementAndGet();
+				mySpoolBytes.addAndGet(aFile.length());
+			}
+		}
+		AtomicInteger aThreadCount = new AtomicInteger();
+		myUploaders = Executors.newFixedThreadPool(theThreads, theRunnable -> {
+			Thread aThread = new Thread(theRunnable, "s3-upload-" + aThreadCount.incrementAndGet());
+			aThread.setDaemon(true);
+			return aThread;
+		});
+		myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+			Thread aThread = new Thread(theRunnable, "s3-upload-scheduler");
+			aThread.setDaemon(true);
+			return aThread;
+		});
+		AtomicInteger aMultipartCount = new AtomicInteger();
+		myTransferManager = TransferManagerBuilder.standard()
+				.withS3Client(theS3Client)
+				.withMultipartUploadThreshold(theMultipartThreshold)
+				.withExecutorFactory(() -> Executors.newFixedThreadPool(theThreads, theRunnable -> {
+					Thread aThread = new Thread(theRunnable, "s3-multipart-" + aMultipartCount.incrementAndGet());
+					aThread.setDaemon(true);
+					return aThread;
+				}))
+				.build();
+		if (theDrainInterval > 0) {
+			myScheduler.scheduleWithFixedDelay(this::drainSpool, theDrainInterval, theDrainInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Upload the file and delete it once S3 confirms. If every attempt fails the file is moved to
+	 * the spool directory to be uploaded later.
+	 *
+	 * @param theFile file to upload
+	 * @param theKey S3 key to upload to
+	 * @return future completed with true if the file is in S3, false if it was spooled or couldn't
+	 *     be stored
+	 */
+	public CompletableFuture<Boolean> upload(File theFile, String theKey) {
+		CompletableFuture<Boolean> aResult = new CompletableFuture<>();
+		execute(theFile, theKey, 1, aResult);
+		return aResult;
+	}
+
+	/** Run an attempt on an upload thread, or spool the file if the service has shut down */
+	private void execute(File theFile, String theKey, int theAttempt, CompletableFuture<Boolean> theResult) {
+		try {
+			myUploaders.execute(() -> attempt(theFile, theKey, theAttempt, theResult));
+		} catch (RejectedExecutionException theE) {
+			logger.warn("Shutting down, not uploading " + theKey);
+			spool(theFile, theKey);
+			theResult.complete(false);
+		}
+	}
+
+	/** A failed attempt is rescheduled after its backoff, so it doesn't hold an upload thread meanwhile */
+	private void attempt(File theFile, String theKey, int theAttempt, CompletableFuture<Boolean> theResult) {
+		if (put(theFile, theKey)) {
+			delete(theFile);
+			theResult.complete(true);
+			return;
+		}
+		if (theAttempt < myAttempts) {
+			myRetrying.put(theResult, new Retry(theFile, theKey));
+			try {
+				myScheduler.schedule(
+						() -> {
+							// Unless shutdown already spooled it
+							if (myRetrying.remove(theResult) != null) {
+								execute(theFile, theKey, theAttempt + 1, theResult);
+							}
+						},
+						myBackoff << (theAttempt - 1),
+						TimeUnit.MILLISECONDS);
+				return;
+			} catch (RejectedExecutionException theE) {
+				myRetrying.remove(theResult);
+				logger.warn("Shutting down, not retrying " + theKey);
+			}
+		}
+		spool(theFile, theKey);
+		theResult.complete(false);
+	}
+
+	public Stats getStats() {
+		long anUploaded = myUploaded.get();
+		long aLatency = myLatency.get();
+		return new Stats(
+				anUploaded,
+				myFailed.get(),
+				myBytes.get(),
+				anUploaded == 0 ? 0 : (double) aLatency / anUploaded,
+				aLatency == 0 ? 0 : myBytes.get() * 1000d / aLatency,
+				myInFlight.get(),
+				mySpooled.get(),
+				mySpoolBytes.get());
+	}
+
+	/** Try each spooled file once, stopping at the first failure since S3 is probably still down */
+	public void drainSpool() {
+		File[] aSpooled = mySpoolDirectory.listFiles(File::isFile);
+		if (aSpooled == null || aSpooled.length == 0 || !myDraining.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			logger.info("Draining " + aSpooled.length + " spooled uploads");
+			for (File aFile : aSpooled) {
+				long aLength = aFile.length();
+				if (!put(aFile, URLDecoder.decode(aFile.getName(), StandardCharsets.UTF_8))) {
+					logger.warn("S3 still unavailable, " + mySpoolDirectory + " will be retried later");
+					return;
+				}
+				delete(aFile);
+				mySpooled.decrementAndGet();
+				mySpoolBytes.addAndGet(-aLength);
+			}
+		} finally {
+			myDraining.set(false);
+		}
+	}
+
+	private boolean put(File theFile, String theKey) {
+		long aStart = System.currentTimeMillis();
+		long aTimer = myMetrics.start();
+		long aLength = theFile.length();
+		myInFlight.incrementAndGet();
+		try {
+			if (aLength >= myMultipartThreshold) {
+				myTransferManager.upload(myBucketName, theKey, theFile).waitForCompletion();
+			} else {
+				myS3Client.putObject(new PutObjectRequest(myBucketName, theKey, theFile));
+			}
+			long aLatency = System.currentTimeMillis() - aStart;
+			myUploaded.incrementAndGet();
+			myBytes.addAndGet(aLength);
+			myLatency.addAndGet(aLatency);
+			myMetrics.record(PipelineMetrics.Stage.S3_PUT, aTimer, true);
+			logger.info("Uploaded " + theKey + ", " + aLength + " bytes in " + aLatency + "ms");
+			return true;
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+		} catch (Exception theE) {
+			logger.warn("Problem sending " + theKey + " to S3", theE);
+		} finally {
+			myInFlight.decrementAndGet();
+		}
+		myFailed.incrementAndGet();
+		myMetrics.record(PipelineMetrics.Stage.S3_PUT, aTimer, false);
+		return false;
+	}
+
+	/** Synchronized so concurrent failures can't overfill the spool between the check and the move */
+	private synchronized void spool(File theFile, String theKey) {
+		try {
+			long aLength = theFile.length();
+			if (mySpoolBytes.get() + aLength > mySpoolMaxBytes) {
+				logger.error("Spool full, leaving " + theFile + " in place");
+				return;
+			}
+			Files.createDirectories(mySpoolDirectory.toPath());
+			File aSpooled = new File(mySpoolDirectory, URLEncoder.encode(theKey, StandardCharsets.UTF_8));
+			long aReplaced = aSpooled.isFile() ? aSpooled.length() : -1;
+			Files.move(theFile.toPath(), aSpooled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if (aReplaced < 0) {
+				mySpooled.incrementAndGet();
+			}
+			mySpoolBytes.addAndGet(aLength - Math.max(0, aReplaced));
+			logger.warn("Spooled " + theKey + " for a later upload");
+		} catch (IOException theE) {
+			logger.error("Couldn't spool " + theFile + ", leaving it in place", theE);
+		}
+	}
+
+	private void delete(File theFile) {
+		try {
+			Files.deleteIfExists(theFile.toPath());
+		} catch (IOException theE) {
+			logger.error("delete:", theE);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		myScheduler.shutdownNow();
+		myUploaders.shutdown();
+		// Retries won't run now, spool them so the files aren't left where they were
+		for (CompletableFuture<Boolean> aResult : List.copyOf(myRetrying.keySet())) {
+			Retry aRetry = myRetrying.remove(aResult);
+			if (aRetry != null) {
+				spool(aRetry.file(), aRetry.key());
+				aResult.complete(false);
+			}
+		}
+		myTransferManager.shutdownNow(false);
+	}
+}
@@ -0,0 +1,157 @@
+package com.bigboxer23.clarifai;
+
+import io.swagger.v3.oas.annotations.Operation;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/** Read only view of the analysis pipeline's queues, caches and uploads */
+@RestController
+public class StatusController {
+	private final AnalysisQueue myAnalysisQueue;
+
+	private final ClarifaiBatcher myClarifaiBatcher;
+
+	private final VerdictCache myVerdictCache;
+
+	private final S3UploadService myS3UploadService;
+
+	private final QuotaGovernor myQuotaGovernor;
+
+	private final DirectoryWatcher myDirectoryWatcher;
+
+	private final EventAggregator myEventAggregator;
+
+	private final MotionPreScreen myPreScreen;
+
+	private final MailDispatcher myMailDispatcher;
+
+	private final WebhookDispatcher myWebhookDispatcher;
+
+	private final MemoryBudget myMemoryBudget;
+
+	public StatusController(
+			AnalysisQueue theAnalysisQueue,
+			ClarifaiBatcher theClarifaiBatcher,
+			VerdictCache theVerdictCache,
+			S3UploadService theS3UploadService,
+			QuotaGovernor theQuotaGovernor,
+			DirectoryWatcher theDirectoryWatcher,
+			EventAggregator theEventAggregator,
+			MotionPreScreen thePreScreen,
+			MailDispatcher theMailDispatcher,
+			WebhookDispatcher theWebhookDispatcher,
+			MemoryBudget theMemoryBudget) {
+		myAnalysisQueue = theAnalysisQueue;
+		myClarifaiBatcher = theClarifaiBatcher;
+		myVerdictCache = theVerdictCache;
+		myS3UploadService = theS3UploadService;
+		myQuotaGovernor = theQuotaGovernor;
+		myDirectoryWatcher = theDirectoryWatcher;
+		myEventAggregator = theEventAggregator;
+		myPreScreen = thePreScreen;
+		myMailDispatcher = theMailDispatcher;
+		myWebhookDispatcher = theWebhookDispatcher;
+		myMemoryBudget = theMemoryBudget;
+	}
+
+	@GetMapping(path = "/queue", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Analysis queue status",
+			description = "Returns the number of frames waiting for analysis, the queue's capacity,"
+					+ " busy workers and processed/dropped totals")
+	public AnalysisQueue.Status getQueueStatus() {
+		return myAnalysisQueue.getStatus();
+	}
+
+	@GetMapping(path = "/batches", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Clarifai batching statistics",
+			description = "Returns the number of multi-input requests sent, frames analyzed and quota units"
+					+ " used, including the units used by the most recent batch")
+	public ClarifaiBatcher.Stats getBatchStats() {
+		return myClarifaiBatcher.getStats();
+	}
+
+	@GetMapping(path = "/dedup", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Duplicate frame statistics",
+			description = "Returns hits/misses of the recent verdict cache and the number of clarifai calls"
+					+ " saved by reusing the verdict of a near identical frame")
+	public VerdictCache.Stats getDedupStats() {
+		return myVerdictCache.getStats();
+	}
+
+	@GetMapping(path = "/uploads", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "S3 upload statistics",
+			description = "Returns uploaded/failed counts, average upload latency, throughput while"
+					+ " uploading, uploads in flight and the files waiting in the local spool")
+	public S3UploadService.Stats getUploadStats() {
+		return myS3UploadService.getStats();
+	}
+
+	@GetMapping(path = "/quota", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Clarifai quota status",
+			description = "Returns the tokens left in the quota bucket, calls made this month, the current"
+					+ " sampling rate (1 in N frames analyzed) and frames skipped to save quota")
+	public QuotaGovernor.Status getQuotaStatus() {
+		return myQuotaGovernor.getStatus();
+	}
+
+	@GetMapping(path = "/watch", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Directory watcher statistics",
+			description = "Returns the number of directories watched, frames still being written, frames"
+					+ " queued by the watcher and event overflows where frames may have been missed")
+	public DirectoryWatcher.Stats getWatchStats() {
+		return myDirectoryWatcher.getStats();
+	}
+
+	@GetMapping(path = "/events", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Motion event statistics",
+			description = "Returns the number of motion events seen, frames received, frames sent to"
+					+ " clarifai and frames archived under their event's verdict without being sent")
+	public EventAggregator.Stats getEventStats() {
+		return myEventAggregator.getStats();
+	}
+
+	@GetMapping(path = "/prescreen", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Motion pre-screen statistics",
+			description = "Returns the number of frames screened, passed on to clarifai and rejected as a"
+					+ " lighting change or as motion too small to matter")
+	public MotionPreScreen.Stats getPreScreenStats() {
+		return myPreScreen.getStats();
+	}
+
+	@GetMapping(path = "/mail", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Mail statistics",
+			description = "Returns mail waiting to be sent, mail sent, submissions merged into an already"
+					+ " waiting mail, retries, mail given up on and SMTP connections opened")
+	public MailDispatcher.Stats getMailStats() {
+		return myMailDispatcher.getStats();
+	}
+
+	@GetMapping(path = "/webhooks", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Webhook statistics",
+			description = "Returns webhook calls made, given up on and retried, duplicate calls skipped, calls"
+					+ " dropped while a target's circuit was open and the number of open circuits")
+	public WebhookDispatcher.Stats getWebhookStats() {
+		return myWebhookDispatcher.getStats();
+	}
+
+	@GetMapping(path = "/memory", produces = MediaType.APPLICATION_JSON_VALUE)
+	@Operation(
+			summary = "Memory budget status",
+			description = "Returns the budget for frames in flight and the bytes used, in total and while"
+					+ " waiting to be read, in a clarifai request or waiting on upload, the peak, frames shed"
+					+ " and frames refused")
+	public MemoryBudget.Stats getMemoryStats() {
+		return myMemoryBudget.getStats();
+	}
+}
@@ -0,0 +1,149 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects successful frames into batched notifications without locks. The first success after a
+ * quiet period of {@code successThreshold} minutes is sent straight away with a notification;
+ * following successes are held until no new success has arrived for the window (or the batch
+ * reaches {@code successMaxBatch} frames) and then sent together as a single mail. Each camera is
+ * batched on its own, so one camera's motion never holds back another camera's notification.
+ *
+ * <p>Pending frames are kept on a lock free stack. A batch is handed off by swapping the whole
+ * stack out in one atomic step, so each frame is delivered exactly once no matter which thread
+ * flushes it.
+ */
+@Component
+public class SuccessBatcher {
+	private record Node(File file, Node next, int size) {}
+
+	/** Receives each batch of successful frames */
+	@FunctionalInterface
+	interface Delivery {
+		void deliver(Camera theCamera, List<File> theFiles, boolean theFireNotification);
+	}
+
+	/** One camera's pending frames and debounce state */
+	private static class Lane {
+		private final Camera myCamera;
+
+		private final AtomicReference<Node> myPending = new AtomicReference<>();
+
+		private final AtomicLong myLastSuccess = new AtomicLong(-1);
+
+		private final AtomicReference<ScheduledFuture<?>> myDebounce = new AtomicReference<>();
+
+		private Lane(Camera theCamera) {
+			myCamera = theCamera;
+		}
+	}
+
+	private final Delivery myDelivery;
+
+	private final long myWindow;
+
+	private final int myMaxBatch;
+
+	private final Map<String, Lane> myLanes = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "success-batcher");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	@Autowired
+	public SuccessBatcher(
+			AnalysisManager theAnalysisManager,
+			@Value("${successThreshold}") long theWindowMinutes,
+			@Value("${successMaxBatch:20}") int theMaxBatch) {
+		this(
+				(theCamera, theFiles, theFireNotification) ->
+						new SuccessTask(theCamera, theFiles, theFireNotification, theAnalysisManager).run(),
+				TimeUnit.MINUTES.toMillis(theWindowMinutes),
+				theMaxBatch);
+	}
+
+	SuccessBatcher(Delivery theDelivery, long theWindowMillis, int theMaxBatch) {
+		myDelivery = theDelivery;
+		myWindow = theWindowMillis;
+		myMaxBatch = Math.max(1, theMaxBatch);
+	}
+
+	/** Add a successful frame to its camera's current batch, sending it if it's due */
+	public void add(Camera theCamera, File theFile) {
+		Lane aLane = myLanes.computeIfAbsent(theCamera.name(), theName -> new Lane(theCamera));
+		Node aNode;
+		Node aHead;
+		do {
+			aHead = aLane.myPending.get();
+			aNode = new Node(theFile, aHead, aHead == null ? 1 : aHead.size() + 1);
+		} while (!aLane.myPending.compareAndSet(aHead, aNode));
+
+		long aNow = System.currentTimeMillis();
+		if (aLane.myLastSuccess.getAndSet(aNow) + myWindow < aNow) {
+			deliver(aLane, true);
+			return;
+		}
+		if (aNode.size() >= myMaxBatch) {
+			deliver(aLane, false);
+			return;
+		}
+		ScheduledFuture<?> aPrevious = aLane.myDebounce.getAndSet(
+				myScheduler.schedule(() -> deliver(aLane, false), myWindow, TimeUnit.MILLISECONDS));
+		if (aPrevious != null) {
+			aPrevious.cancel(false);
+		}
+	}
+
+	/**
+	 * @return number of frames waiting, across all cameras, for their batch to be sent
+	 */
+	public int getPending() {
+		int aPending = 0;
+		for (Lane aLane : myLanes.values()) {
+			Node aHead = aLane.myPending.get();
+			aPending += aHead == null ? 0 : aHead.size();
+		}
+		return aPending;
+	}
+
+	/** Send whatever is pending for every camera now */
+	public void flush() {
+		myLanes.values().forEach(theLane -> deliver(theLane, false));
+	}
+
+	private void deliver(Lane theLane, boolean theFireNotification) {
+		Node aHead = theLane.myPending.getAndSet(null);
+		if (aHead == null) {
+			return;
+		}
+		List<File> aBatch = new ArrayList<>(aHead.size());
+		for (Node aNode = aHead; aNode != null; aNode = aNode.next()) {
+			aBatch.add(aNode.file());
+		}
+		Collections.reverse(aBatch);
+		myDelivery.deliver(theLane.myCamera, Collections.unmodifiableList(aBatch), theFireNotification);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		myScheduler.shutdownNow();
+		flush();
+	}
+}
@@ -1,44 +1,44 @@
 package com.bigboxer23.clarifai;
 
 import java.io.File;
-import java.net.URL;
 import java.util.List;
-import java.util.Optional;
 
-/** Task to run on getting a successful image from clarifai */
+/** Task to run with a batch of successful images from clarifai */
 public class SuccessTask implements Runnable {
 	private AnalysisManager myAnalysisManager;
 
-	private AnalysisController myAnalysisController;
-
 	private boolean myFireNotification;
 
 	private List<File> myFiles;
 
+	private Camera myCamera;
+
 	public SuccessTask(
-			List<File> theFiles,
-			boolean theFireNotification,
-			AnalysisManager theAnalysisManager,
-			AnalysisController theController) {
+			Camera theCamera, List<File> theFiles, boolean theFireNotification, AnalysisManager theAnalysisManager) {
 		myAnalysisManager = theAnalysisManager;
+		myCamera = theCamera;
 		myFiles = theFiles;
-		myAnalysisController = theController;
 		myFireNotification = theFireNotification;
 	}
 
 	@Override
 	public void run() {
 		if (myFireNotification) {
-			myAnalysisManager.sendNotification();
+			myAnalysisManager.sendNotification(myCamera);
 		}
-		myAnalysisManager.sendGmail(myFiles);
+		myAnalysisManager.sendGmail(myCamera, myFiles);
+		myFiles.forEach(theFile -> myAnalysisManager.recordStage(WorkJournal.Stage.NOTIFIED, theFile));
+		boolean aSendAfterStored = myFireNotification && myFiles.size() == 1;
+		// Files are deleted by the upload once S3 has them, so they're cached first
 		myFiles.forEach(theFile -> {
-			Optional<URL> url = myAnalysisManager.moveToS3(theFile, "Success/");
-			if (myFireNotification && myFiles.size() == 1) {
-				myAnalysisManager.sendAfterStored(url);
-			}
-			myAnalysisManager.deleteFile(theFile);
+			myAnalysisManager.cache(myCamera, theFile);
+			myAnalysisManager
+					.moveToS3(theFile, myCamera.s3Prefix() + "Success/")
+					.thenAccept(theKey -> {
+						if (aSendAfterStored) {
+							myAnalysisManager.sendAfterStored(myCamera, theFile, theKey);
+						}
+					});
 		});
-		myAnalysisController.clearBatchedFiles();
 	}
 }
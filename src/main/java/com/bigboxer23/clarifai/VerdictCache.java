@@ -0,0 +1,120 @@
+package com.bigboxer23.clarifai;
+
+import com.clarifai.grpc.api.Concept;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU/TTL cache of recent frame hashes and the concepts clarifai gave them. A frame whose
+ * hash is within {@code dedupMaxDistance} bits of a cached one reuses those concepts instead of
+ * costing another API call, and is decided from them like any other frame. Concepts are only
+ * reused within the camera (and so model) that produced them.
+ *
+ * <p>Off unless {@code dedupEnabled} is set. A small subject walking into a still scene changes
+ * few bits of a frame's hash, so the frame could reuse the empty scene's concepts and be missed.
+ */
+@Component
+public class VerdictCache {
+	public record Stats(long hits, long misses, long savedCalls, double hitRate, int size) {}
+
+	private record Key(String camera, long hash) {}
+
+	private record CachedVerdict(List<Concept> concepts, long expires) {}
+
+	private final boolean myEnabled;
+
+	private final int myMaxDistance;
+
+	private final long myTtl;
+
+	private final LinkedHashMap<Key, CachedVerdict> myEntries;
+
+	private final AtomicLong myHits = new AtomicLong();
+
+	private final AtomicLong myMisses = new AtomicLong();
+
+	private final AtomicLong mySavedCalls = new AtomicLong();
+
+	public VerdictCache(
+			@Value("${dedupEnabled:false}") boolean theEnabled,
+			@Value("${dedupMaxDistance:5}") int theMaxDistance,
+			@Value("${dedupCacheSize:64}") int theCacheSize,
+			@Value("${dedupTtl:60}") long theTtlSeconds) {
+		myEnabled = theEnabled;
+		myMaxDistance = theMaxDistance;
+		myTtl = theTtlSeconds * 1000;
+		myEntries = new LinkedHashMap<>(16, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedVerdict> theEldest) {
+				return size() > theCacheSize;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return myEnabled;
+	}
+
+	public boolean isNear(long theHash, long theOtherHash) {
+		return PerceptualHash.distance(theHash, theOtherHash) <= myMaxDistance;
+	}
+
+	/**
+	 * Find the concepts of the closest recent frame from the same camera within the allowed distance
+	 *
+	 * @param theCamera camera the frame came from
+	 * @param theHash hash of the incoming frame
+	 * @return concepts clarifai gave the cached frame, empty if nothing close enough is cached
+	 */
+	public synchronized Optional<List<Concept>> lookup(String theCamera, long theHash) {
+		long aNow = System.currentTimeMillis();
+		Key aClosest = null;
+		int aClosestDistance = Integer.MAX_VALUE;
+		Iterator<Map.Entry<Key, CachedVerdict>> anIterator = myEntries.entrySet().iterator();
+		while (anIterator.hasNext()) {
+			Map.Entry<Key, CachedVerdict> anEntry = anIterator.next();
+			if (anEntry.getValue().expires() < aNow) {
+				anIterator.remove();
+				continue;
+			}
+			if (!anEntry.getKey().camera().equals(theCamera)) {
+				continue;
+			}
+			int aDistance = PerceptualHash.distance(theHash, anEntry.getKey().hash());
+			if (aDistance <= myMaxDistance && aDistance < aClosestDistance) {
+				aClosest = anEntry.getKey();
+				aClosestDistance = aDistance;
+			}
+		}
+		if (aClosest == null) {
+			myMisses.incrementAndGet();
+			return Optional.empty();
+		}
+		myHits.incrementAndGet();
+		return Optional.of(myEntries.get(aClosest).concepts()); // get() refreshes LRU order
+	}
+
+	public synchronized void put(String theCamera, long theHash, List<Concept> theConcepts) {
+		myEntries.put(
+				new Key(theCamera, theHash),
+				new CachedVerdict(List.copyOf(theConcepts), System.currentTimeMillis() + myTtl));
+	}
+
+	/** A frame was decided without an API call */
+	public void recordSavedCall() {
+		mySavedCalls.incrementAndGet();
+	}
+
+	public synchronized Stats getStats() {
+		long aHits = myHits.get();
+		long aTotal = aHits + myMisses.get();
+		return new Stats(
+				aHits, myMisses.get(), mySavedCalls.get(), aTotal == 0 ? 0 : (double) aHits / aTotal, myEntries.size());
+	}
+}
@@ -0,0 +1,282 @@
+package com.bigboxer23.clarifai;
+
+import com.bigboxer23.utils.http.OkHttpCallback;
+import com.bigboxer23.utils.http.OkHttpUtil;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Calls notification webhooks in the background through {@link OkHttpUtil}. At most {@code
+ * webhookMaxPerTarget} calls run against a target (host and port) at once, the rest wait their
+ * turn. A call identical to one made within {@code webhookCoalesceWindow} milliseconds is dropped,
+ * the window starting from the call that was made. Failed calls (connection errors, 5xx and 429)
+ * are retried with exponential backoff.
+ *
+ * <p>After {@code webhookBreakerFailures} failures in a row a target's circuit opens and calls to
+ * it are dropped for {@code webhookBreakerCooldown} seconds. The first call after that is let
+ * through as a trial, closing the circuit if it succeeds.
+ */
+@Component
+public class WebhookDispatcher {
+	private static final Logger logger = LoggerFactory.getLogger(WebhookDispatcher.class);
+
+	public record Stats(
+			long sent, long failed, long retries, long coalesced, long shortCircuited, int openCircuits) {}
+
+	/** A webhook call, {@code attempt} counts from 1 */
+	private record Call(String method, URI uri, int attempt) {
+		private Call next() {
+			return new Call(method, uri, attempt + 1);
+		}
+	}
+
+	/** Concurrency and circuit state of one host, guarded by itself */
+	private static class Target {
+		private int myRunning;
+
+		private final Queue<Call> myWaiting = new ArrayDeque<>();
+
+		private int myFailures;
+
+		private long myOpenUntil;
+
+		private boolean myTrial;
+	}
+
+	private final PipelineMetrics myMetrics;
+
+	private final int myMaxPerTarget;
+
+	private final long myCoalesceWindow;
+
+	private final int myAttempts;
+
+	private final long myBackoff;
+
+	private final int myBreakerFailures;
+
+	private final long myBreakerCooldown;
+
+	private final Map<String, Target> myTargets = new ConcurrentHashMap<>();
+
+	/** When each call was last made, for coalescing */
+	private final Map<String, Long> myRecent = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+		Thread aThread = new Thread(theRunnable, "webhook-dispatcher");
+		aThread.setDaemon(true);
+		return aThread;
+	});
+
+	private final AtomicLong mySent = new AtomicLong();
+
+	private final AtomicLong myFailed = new AtomicLong();
+
+	private final AtomicLong myRetries = new AtomicLong();
+
+	private final AtomicLong myCoalesced = new AtomicLong();
+
+	private final AtomicLong myShortCircuited = new AtomicLong();
+
+	@Autowired
+	public WebhookDispatcher(
+			PipelineMetrics theMetrics,
+			@Value("${webhookMaxPerTarget:2}") int theMaxPerTarget,
+			@Value("${webhookCoalesceWindow:5000}") long theCoalesceWindow,
+			@Value("${webhookAttempts:3}") int theAttempts,
+			@Value("${webhookBackoff:1000}") long theBackoff,
+			@Value("${webhookBreakerFailures:5}") int theBreakerFailures,
+			@Value("${webhookBreakerCooldown:60}") long theBreakerCooldown) {
+		myMetrics = theMetrics;
+		myMaxPerTarget = Math.max(1, theMaxPerTarget);
+		myCoalesceWindow = theCoalesceWindow;
+		myAttempts = Math.max(1, theAttempts);
+		myBackoff = theBackoff;
+		myBreakerFailures = Math.max(1, theBreakerFailures);
+		myBreakerCooldown = TimeUnit.SECONDS.toMillis(theBreakerCooldown);
+		if (myCoalesceWindow > 0) {
+			myScheduler.scheduleWithFixedDelay(
+					this::forgetRecent, myCoalesceWindow, myCoalesceWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void get(String theUrl) {
+		submit("GET", theUrl);
+	}
+
+	public void post(String theUrl) {
+		submit("POST", theUrl);
+	}
+
+	private void submit(String theMethod, String theUrl) {
+		URI anUri;
+		try {
+			anUri = URI.create(theUrl);
+		} catch (IllegalArgumentException theE) {
+			logger.error("Not a valid webhook: " + theUrl, theE);
+			myFailed.incrementAndGet();
+			return;
+		}
+		long aNow = System.currentTimeMillis();
+		String aKey = theMethod + " " + theUrl;
+		AtomicBoolean aDuplicate = new AtomicBoolean();
+		// Only a call that's made moves the window, or steady duplicates would hold it open for good
+		myRecent.compute(aKey, (theKey, thePrevious) -> {
+			if (thePrevious != null && aNow - thePrevious < myCoalesceWindow) {
+				aDuplicate.set(true);
+				return thePrevious;
+			}
+			return aNow;
+		});
+		if (aDuplicate.get()) {
+			logger.info("Already called " + anUri.getHost() + " recently, skipping");
+			myCoalesced.incrementAndGet();
+			return;
+		}
+		start(new Call(theMethod, anUri, 1));
+	}
+
+	/** Run the call now if its target has room and its circuit allows, otherwise queue or drop it */
+	private void start(Call theCall) {
+		Target aTarget = myTargets.computeIfAbsent(theCall.uri().getAuthority(), theName -> new Target());
+		synchronized (aTarget) {
+			long aNow = System.currentTimeMillis();
+			if (aTarget.myOpenUntil > aNow || (aTarget.myOpenUntil > 0 && aTarget.myTrial)) {
+				logger.warn("Circuit open for " + theCall.uri().getAuthority() + ", dropping call");
+				myShortCircuited.incrementAndGet();
+				return;
+			}
+			if (aTarget.myOpenUntil > 0) {
+				// Cooldown is over, this call decides whether the circuit closes
+				aTarget.myTrial = true;
+			}
+			if (aTarget.myRunning >= myMaxPerTarget) {
+				aTarget.myWaiting.add(theCall);
+				return;
+			}
+			aTarget.myRunning++;
+		}
+		call(aTarget, theCall);
+	}
+
+	private void call(Target theTarget, Call theCall) {
+		long aStart = myMetrics.start();
+		OkHttpCallback aCallback = new OkHttpCallback() {
+			@Override
+			public void onFailure(okhttp3.Call theHttpCall, IOException theE) {
+				myMetrics.record(PipelineMetrics.Stage.WEBHOOK, aStart, false);
+				finished(theTarget, theCall, false, true, theE.toString());
+			}
+
+			@Override
+			public void onResponse(okhttp3.Call theHttpCall, Response theResponse) {
+				try (theResponse) {
+					int aStatus = theResponse.code();
+					boolean aSuccess = aStatus < 400;
+					myMetrics.record(PipelineMetrics.Stage.WEBHOOK, aStart, aSuccess);
+					finished(theTarget, theCall, aSuccess, aStatus >= 500 || aStatus == 429, "status " + aStatus);
+				}
+			}
+		};
+		try {
+			if ("POST".equals(theCall.method())) {
+				OkHttpUtil.post(theCall.uri().toString(), aCallback);
+			} else {
+				OkHttpUtil.get(theCall.uri().toString(), aCallback);
+			}
+		} catch (IllegalArgumentException theE) {
+			myMetrics.record(PipelineMetrics.Stage.WEBHOOK, aStart, false);
+			finished(theTarget, theCall, false, false, theE.toString());
+		}
+	}
+
+	private void finished(
+			Target theTarget, Call theCall, boolean theSuccess, boolean theRetryable, String theOutcome) {
+		Call aNext;
+		boolean anOpen;
+		synchronized (theTarget) {
+			theTarget.myRunning--;
+			if (theSuccess) {
+				theTarget.myFailures = 0;
+				theTarget.myOpenUntil = 0;
+			} else if (++theTarget.myFailures >= myBreakerFailures || theTarget.myTrial) {
+				theTarget.myOpenUntil = System.currentTimeMillis() + myBreakerCooldown;
+				logger.warn("Opening circuit for "
+						+ theCall.uri().getAuthority()
+						+ " after "
+						+ theTarget.myFailures
+						+ " failures");
+			}
+			theTarget.myTrial = false;
+			anOpen = theTarget.myOpenUntil > System.currentTimeMillis();
+			aNext = anOpen ? null : theTarget.myWaiting.poll();
+			if (anOpen) {
+				myShortCircuited.addAndGet(theTarget.myWaiting.size());
+				theTarget.myWaiting.clear();
+			} else if (aNext != null) {
+				theTarget.myRunning++;
+			}
+		}
+		if (aNext != null) {
+			call(theTarget, aNext);
+		}
+		if (theSuccess) {
+			mySent.incrementAndGet();
+			logger.info("Called " + theCall.uri().getAuthority() + theCall.uri().getPath());
+		} else if (theRetryable && !anOpen && theCall.attempt() < myAttempts) {
+			myRetries.incrementAndGet();
+			long aDelay = myBackoff << (theCall.attempt() - 1);
+			logger.warn("Webhook "
+					+ theCall.uri().getAuthority()
+					+ " failed ("
+					+ theOutcome
+					+ "), retrying in "
+					+ aDelay
+					+ "ms");
+			myScheduler.schedule(() -> start(theCall.next()), aDelay, TimeUnit.MILLISECONDS);
+		} else {
+			myFailed.incrementAndGet();
+			logger.error("Webhook " + theCall.uri().getAuthority() + " failed (" + theOutcome + "), giving up");
+		}
+	}
+
+	private void forgetRecent() {
+		long aCutoff = System.currentTimeMillis() - myCoalesceWindow;
+		myRecent.values().removeIf(theTime -> theTime < aCutoff);
+	}
+
+	public Stats getStats() {
+		long aNow = System.currentTimeMillis();
+		int anOpen = 0;
+		for (Target aTarget : myTargets.values()) {
+			synchronized (aTarget) {
+				if (aTarget.myOpenUntil > aNow) {
+					anOpen++;
+				}
+			}
+		}
+		return new Stats(
+				mySent.get(), myFailed.get(), myRetries.get(), myCoalesced.get(), myShortCircuited.get(), anOpen);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		myScheduler.shutdownNow();
+	}
+}
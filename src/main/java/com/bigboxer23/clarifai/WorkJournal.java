@@ -0,0 +1,262 @@
+package com.bigboxer23.clarifai;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only journal of each frame's progress through the pipeline, so work in flight survives a
+ * restart or power loss. Records from concurrent callers are written and fsync'd together by a
+ * single writer thread (group commit). Once the file passes {@code journalCompactBytes} it's
+ * rewritten with only the frames that aren't finished. On startup the journal is replayed and
+ * unfinished frames are available from {@link #getRecovered()}.
+ *
+ * <p>Each record is one line: {@code <crc32 hex> <stage> <path>}. A torn or corrupt tail, from a
+ * crash mid-write, is discarded on replay.
+ */
+@Component
+public class WorkJournal {
+	private static final Logger logger = LoggerFactory.getLogger(WorkJournal.class);
+
+	/** Stages in the order a frame passes through them */
+	public enum Stage {
+		RECEIVED,
+		ANALYZED_SUCCESS,
+		ANALYZED_FAILURE,
+		/** Never analyzed, stored under Unanalyzed/ */
+		SKIPPED,
+		NOTIFIED,
+		UPLOADED,
+		DELETED
+	}
+
+	private record Record(Stage stage, String path, CompletableFuture<Void> durable) {}
+
+	private static final int kMaxGroup = 512;
+
+	private final boolean myEnabled;
+
+	private final File myFile;
+
+	private final long myCompactBytes;
+
+	private final long myWaitTimeout;
+
+	/** Latest stage of every unfinished frame, only touched by the writer thread after replay */
+	private final Map<String, Stage> myLive = new LinkedHashMap<>();
+
+	private final Map<String, Stage> myRecovered;
+
+	private final BlockingQueue<Record> myQueue = new LinkedBlockingQueue<>();
+
+	private FileChannel myChannel;
+
+	/** Size after the last compaction, so a large live set doesn't trigger compaction every write */
+	private long myCompactedSize;
+
+	private Thread myWriter;
+
+	private volatile boolean myRunning = true;
+
+	public WorkJournal(
+			@Value("${journalEnabled:true}") boolean theEnabled,
+			@Value("${journalPath:journal/work.log}") String thePath,
+			@Value("${journalCompactBytes:1048576}") long theCompactBytes,
+			@Value("${journalWaitTimeout:1000}") long theWaitTimeout)
+			throws IOException {
+		myEnabled = theEnabled;
+		myFile = theEnabled ? new File(thePath) : null;
+		myCompactBytes = theCompactBytes;
+		myWaitTimeout = theWaitTimeout;
+		if (!myEnabled) {
+			myRecovered = Collections.emptyMap();
+			return;
+		}
+		replay();
+		myRecovered = Collections.unmodifiableMap(new LinkedHashMap<>(myLive));
+		compact();
+		myWriter = new Thread(this::write, "work-journal");
+		myWriter.setDaemon(true);
+		myWriter.start();
+		if (!myRecovered.isEmpty()) {
+			logger.info("Journal has " + myRecovered.size() + " unfinished frames to resume");
+		}
+	}
+
+	/**
+	 * @return unfinished frames found on startup, path to the last stage they reached
+	 */
+	public Map<String, Stage> getRecovered() {
+		return myRecovered;
+	}
+
+	/**
+	 * Queue a record for the next group commit
+	 *
+	 * @return future completed once the record is on disk
+	 */
+	public CompletableFuture<Void> record(Stage theStage, File theFile) {
+		if (!myEnabled) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Record aRecord = new Record(theStage, theFile.getAbsolutePath(), new CompletableFuture<>());
+		myQueue.add(aRecord);
+		return aRecord.durable();
+	}
+
+	/** Record and wait (up to {@code journalWaitTimeout}) for the record to be on disk */
+	public void recordAndWait(Stage theStage, File theFile) {
+		try {
+			record(theStage, theFile).get(myWaitTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+		} catch (Exception theE) {
+			logger.error("Journal write of " + theStage + " " + theFile + " failed", theE);
+		}
+	}
+
+	private void write() {
+		List<Record> aGroup = new ArrayList<>();
+		while (myRunning || !myQueue.isEmpty()) {
+			try {
+				Record aFirst = myQueue.poll(100, TimeUnit.MILLISECONDS);
+				if (aFirst == null) {
+					continue;
+				}
+				aGroup.add(aFirst);
+			} catch (InterruptedException theE) {
+				myRunning = false;
+				continue;
+			}
+			myQueue.drainTo(aGroup, kMaxGroup - 1);
+			try {
+				StringBuilder aLines = new StringBuilder();
+				for (Record aRecord : aGroup) {
+					aLines.append(encode(aRecord.stage(), aRecord.path()));
+					apply(aRecord.stage(), aRecord.path());
+				}
+				ByteBuffer aBuffer = ByteBuffer.wrap(aLines.toString().getBytes(StandardCharsets.UTF_8));
+				while (aBuffer.hasRemaining()) {
+					myChannel.write(aBuffer);
+				}
+				myChannel.force(false);
+				aGroup.forEach(theRecord -> theRecord.durable().complete(null));
+				if (myChannel.size() > Math.max(myCompactBytes, myCompactedSize * 2)) {
+					compact();
+				}
+			} catch (IOException theE) {
+				logger.error("Journal write failed", theE);
+				aGroup.forEach(theRecord -> theRecord.durable().completeExceptionally(theE));
+			}
+			aGroup.clear();
+		}
+	}
+
+	private void apply(Stage theStage, String thePath) {
+		if (theStage == Stage.DELETED) {
+			myLive.remove(thePath);
+		} else {
+			myLive.put(thePath, theStage);
+		}
+	}
+
+	private static String encode(Stage theStage, String thePath) {
+		String aBody = theStage.name() + " " + thePath;
+		CRC32 aCrc = new CRC32();
+		aCrc.update(aBody.getBytes(StandardCharsets.UTF_8));
+		return String.format("%08x", aCrc.getValue()) + " " + aBody + "\n";
+	}
+
+	/** Read every intact record, stopping at the first torn or corrupt one */
+	private void replay() throws IOException {
+		if (!myFile.exists()) {
+			return;
+		}
+		String aContents = new String(Files.readAllBytes(myFile.toPath()), StandardCharsets.UTF_8);
+		int aStart = 0;
+		int anEnd;
+		while ((anEnd = aContents.indexOf('\n', aStart)) >= 0) {
+			String aLine = aContents.substring(aStart, anEnd);
+			aStart = anEnd + 1;
+			String[] aParts = aLine.split(" ", 3);
+			if (aParts.length != 3) {
+				logger.warn("Corrupt journal record, ignoring the rest: " + aLine);
+				return;
+			}
+			try {
+				Stage aStage = Stage.valueOf(aParts[1]);
+				if (!encode(aStage, aParts[2]).equals(aLine + "\n")) {
+					logger.warn("Journal record failed checksum, ignoring the rest: " + aLine);
+					return;
+				}
+				apply(aStage, aParts[2]);
+			} catch (IllegalArgumentException theE) {
+				logger.warn("Unknown journal stage, ignoring the rest: " + aLine);
+				return;
+			}
+		}
+	}
+
+	/** Atomically replace the journal with one record per unfinished frame */
+	private void compact() throws IOException {
+		if (myChannel != null) {
+			myChannel.close();
+		}
+		File aParent = myFile.getAbsoluteFile().getParentFile();
+		Files.createDirectories(aParent.toPath());
+		File aTemp = new File(aParent, myFile.getName() + ".tmp");
+		StringBuilder aLines = new StringBuilder();
+		myLive.forEach((thePath, theStage) -> aLines.append(encode(theStage, thePath)));
+		try (FileChannel aChannel = FileChannel.open(
+				aTemp.toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer aBuffer = ByteBuffer.wrap(aLines.toString().getBytes(StandardCharsets.UTF_8));
+			myCompactedSize = aBuffer.remaining();
+			while (aBuffer.hasRemaining()) {
+				aChannel.write(aBuffer);
+			}
+			aChannel.force(true);
+		}
+		Files.move(aTemp.toPath(), myFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		myChannel = FileChannel.open(myFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logger.info("Journal compacted to " + myLive.size() + " unfinished frames");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (!myEnabled) {
+			return;
+		}
+		myRunning = false;
+		try {
+			myWriter.join(5000);
+			myChannel.close();
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+		} catch (IOException theE) {
+			logger.error("shutdown:", theE);
+		}
+	}
+}
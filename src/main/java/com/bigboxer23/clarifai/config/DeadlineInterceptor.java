@@ -0,0 +1,26 @@
+package com.bigboxer23.clarifai.config;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.MethodDescriptor;
+import java.util.concurrent.TimeUnit;
+
+/** Gives every call made through a stub its own deadline, unless the caller already set one */
+public class DeadlineInterceptor implements ClientInterceptor {
+	private final long myDeadline;
+
+	public DeadlineInterceptor(long theDeadlineMillis) {
+		myDeadline = theDeadlineMillis;
+	}
+
+	@Override
+	public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+			MethodDescriptor<ReqT, RespT> theMethod, CallOptions theCallOptions, Channel theNext) {
+		if (theCallOptions.getDeadline() == null && myDeadline > 0) {
+			theCallOptions = theCallOptions.withDeadlineAfter(myDeadline, TimeUnit.MILLISECONDS);
+		}
+		return theNext.newCall(theMethod, theCallOptions);
+	}
+}
@@ -0,0 +1,73 @@
+package com.bigboxer23.clarifai.config;
+
+import com.bigboxer23.clarifai.AnalysisQueue;
+import com.bigboxer23.clarifai.FrameBufferPool;
+import com.bigboxer23.clarifai.MemoryBudget;
+import com.bigboxer23.clarifai.QuotaGovernor;
+import com.bigboxer23.clarifai.S3UploadService;
+import com.bigboxer23.clarifai.SuccessBatcher;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Gauges for queue depths, buffers, memory in flight and remaining quota, read when metrics are
+ * scraped
+ */
+@Configuration
+public class MetricsConfiguration {
+	@Bean
+	public MeterBinder pipelineGauges(
+			AnalysisQueue theAnalysisQueue,
+			SuccessBatcher theSuccessBatcher,
+			S3UploadService theS3UploadService,
+			QuotaGovernor theQuotaGovernor,
+			FrameBufferPool theFrameBufferPool,
+			MemoryBudget theMemoryBudget) {
+		return theRegistry -> {
+			Gauge.builder("clarifai.queue.depth", theAnalysisQueue, AnalysisQueue::getDepth)
+					.description("Frames waiting for analysis")
+					.register(theRegistry);
+			Gauge.builder("clarifai.success.pending", theSuccessBatcher, SuccessBatcher::getPending)
+					.description("Successful frames waiting for the batched notification")
+					.register(theRegistry);
+			Gauge.builder("clarifai.s3.inflight", theS3UploadService, theService -> theService
+							.getStats()
+							.inFlight())
+					.description("Uploads in progress")
+					.register(theRegistry);
+			Gauge.builder("clarifai.s3.spooled", theS3UploadService, theService -> theService
+							.getStats()
+							.spooled())
+					.description("Files waiting in the local spool for S3")
+					.register(theRegistry);
+			Gauge.builder("clarifai.quota.tokens", theQuotaGovernor, theGovernor -> theGovernor
+							.getStatus()
+							.tokens())
+					.description("Clarifai calls that can be made right now")
+					.register(theRegistry);
+			Gauge.builder("clarifai.quota.used", theQuotaGovernor, QuotaGovernor::getUsed)
+					.description("Clarifai calls made this month")
+					.register(theRegistry);
+			Gauge.builder("clarifai.framebuffers.pooled", theFrameBufferPool, FrameBufferPool::getPooled)
+					.description("Idle frame buffers")
+					.register(theRegistry);
+			for (MemoryBudget.Stage aStage : MemoryBudget.Stage.values()) {
+				Gauge.builder("clarifai.memory.inflight", theMemoryBudget, theBudget -> theBudget.getInFlight(aStage))
+						.description("Bytes of frames in flight")
+						.baseUnit("bytes")
+						.tag("stage", aStage.name().toLowerCase())
+						.register(theRegistry);
+			}
+			Gauge.builder("clarifai.memory.budget", theMemoryBudget, MemoryBudget::getBudget)
+					.description("Bytes of frames allowed in flight, 0 for no limit")
+					.baseUnit("bytes")
+					.register(theRegistry);
+			FunctionCounter.builder("clarifai.memory.shed", theMemoryBudget, MemoryBudget::getShed)
+					.description("Frames shed to stay within the memory budget")
+					.register(theRegistry);
+		};
+	}
+}
@@ -2,10 +2,12 @@ package com.bigboxer23.clarifai.config;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.clarifai.channel.ClarifaiChannel;
 import com.clarifai.credentials.ClarifaiCallCredentials;
 import com.clarifai.grpc.api.V2Grpc;
-import io.grpc.Channel;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -23,6 +25,18 @@ public class S3ClientAndChannelConfiguration {
 	@Value("${ClarifaiPAT}")
 	private String clarifaiPAT;
 
+	@Value("${clarifaiHost:api.clarifai.com}")
+	private String clarifaiHost;
+
+	@Value("${clarifaiDeadline:10000}")
+	private long clarifaiDeadline;
+
+	@Value("${clarifaiKeepAlive:60}")
+	private long clarifaiKeepAlive;
+
+	@Value("${clarifaiWarmup:true}")
+	private boolean clarifaiWarmup;
+
 	@Bean
 	public AmazonS3 s3Client() {
 		try {
@@ -35,13 +49,48 @@ public class S3ClientAndChannelConfiguration {
 	}
 
 	@Bean
-	public Channel clarifaiChannel() {
+	public ManagedChannel clarifaiChannel() {
 		logger.info("Creating Clarifai gRPC channel...");
-		return ClarifaiChannel.INSTANCE.getGrpcChannel();
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(clarifaiHost, 443)
+				.useTransportSecurity()
+				.keepAliveTime(clarifaiKeepAlive, TimeUnit.SECONDS)
+				.keepAliveTimeout(20, TimeUnit.SECONDS)
+				.keepAliveWithoutCalls(true)
+				.build();
+		if (clarifaiWarmup) {
+			// Start the TLS/HTTP2 handshake now so the first motion event doesn't pay for it
+			warmUp(channel, System.currentTimeMillis());
+		}
+		return channel;
+	}
+
+	private void warmUp(ManagedChannel channel, long start) {
+		ConnectivityState state = channel.getState(true);
+		if (state == ConnectivityState.READY) {
+			logger.info("Clarifai channel ready in " + (System.currentTimeMillis() - start) + "ms");
+			return;
+		}
+		if (state == ConnectivityState.SHUTDOWN) {
+			return;
+		}
+		if (state == ConnectivityState.TRANSIENT_FAILURE) {
+			logger.warn("Clarifai channel warmup failed, will connect on first request");
+			return;
+		}
+		channel.notifyWhenStateChanged(state, () -> warmUp(channel, start));
+	}
+
+	@Bean
+	public V2Grpc.V2BlockingStub clarifaiStub(ManagedChannel clarifaiChannel) {
+		return V2Grpc.newBlockingStub(clarifaiChannel)
+				.withInterceptors(new DeadlineInterceptor(clarifaiDeadline))
+				.withCallCredentials(new ClarifaiCallCredentials(clarifaiPAT));
 	}
 
 	@Bean
-	public V2Grpc.V2BlockingStub clarifaiStub(Channel clarifaiChannel) {
-		return V2Grpc.newBlockingStub(clarifaiChannel).withCallCredentials(new ClarifaiCallCredentials(clarifaiPAT));
+	public V2Grpc.V2FutureStub clarifaiFutureStub(ManagedChannel clarifaiChannel) {
+		return V2Grpc.newFutureStub(clarifaiChannel)
+				.withInterceptors(new DeadlineInterceptor(clarifaiDeadline))
+				.withCallCredentials(new ClarifaiCallCredentials(clarifaiPAT));
 	}
 }
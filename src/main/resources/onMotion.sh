@@ -1,2 +1,7 @@
 #!/usr/bin/env bash
-curl http://127.0.0.1:8082/analyze?file=$1
+# Retried while nothing is listening (curl exit 7), so frames saved during a restart still get analyzed
+for attempt in $(seq 15); do
+	curl http://127.0.0.1:8082/analyze?file=$1
+	[ $? -ne 7 ] && exit
+	sleep 1
+done
@@ -3,14 +3,21 @@ package com.bigboxer23.clarifai;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.webmvc.test.autoconfigure.WebMvcTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
@@ -24,16 +31,61 @@ public class AnalysisControllerTest {
 	@MockitoBean
 	private AnalysisManager analysisManager;
 
+	@MockitoBean
+	private AnalysisQueue analysisQueue;
+
+	@MockitoBean
+	private EventAggregator eventAggregator;
+
+	@MockitoBean
+	private WorkJournal workJournal;
+
+	@MockitoBean
+	private SuccessBatcher successBatcher;
+
+	// Satisfies the web slice's controller, the tests below use a real registry
+	@MockitoBean
+	private CameraRegistry mockCameraRegistry;
+
+	@MockitoBean
+	private FrameUploadStore mockUploadStore;
+
+	@MockitoBean
+	private MemoryBudget mockMemoryBudget;
+
 	@Mock
 	private MockMvc mockMvc;
 
-	@Value("${basepath}")
-	private String baseAnalysisPath;
+	@TempDir
+	File tempDir;
+
+	private CameraRegistry cameraRegistry;
+
+	private File uploads;
+
+	private MemoryBudget memoryBudget;
 
 	@BeforeEach
 	public void setup() {
 		MockitoAnnotations.openMocks(this);
-		analysisController = new AnalysisController(analysisManager);
+		cameraRegistry = new CameraRegistry(
+				new Camera(Camera.kDefault, tempDir.getAbsolutePath() + "/", "People", .75, "", "", "", "", "Motion"),
+				Map.of(
+						"driveway",
+						new CameraRegistry.Settings(
+								tempDir.getAbsolutePath() + "/driveway/", null, null, "Driveway/", null, null, null,
+								null)));
+		uploads = new File(tempDir, "uploads");
+		memoryBudget = new MemoryBudget(1500, 600, 5);
+		analysisController = new AnalysisController(
+				analysisManager,
+				analysisQueue,
+				eventAggregator,
+				workJournal,
+				successBatcher,
+				cameraRegistry,
+				new FrameUploadStore(uploads.getPath(), 1024),
+				memoryBudget);
 		mockMvc = MockMvcBuilders.standaloneSetup(analysisController).build();
 	}
 
@@ -44,8 +96,44 @@ public class AnalysisControllerTest {
 		File mockFile = mock(File.class);
 		when(mockFile.exists()).thenReturn(false);
 
-		analysisController.analyzeImage(filePath);
-		verify(analysisManager, never()).sendToClarifai(any(), any(), any());
+		assertEquals(HttpStatus.NOT_FOUND, analysisController.analyzeImage(filePath).getStatusCode());
+		verify(analysisManager, never()).sendToClarifai(any(), anyList());
+		verify(analysisQueue, never()).submit(any());
+	}
+
+	@Test
+	void testAnalyzeImage_Queued() throws Exception {
+		File testFile = File.createTempFile("analyze", ".jpg", tempDir);
+		try {
+			when(analysisQueue.submit(any())).thenReturn(true);
+			assertEquals(
+					HttpStatus.ACCEPTED,
+					analysisController.analyzeImage(testFile.getAbsolutePath()).getStatusCode());
+			ArgumentCaptor<AnalysisJob> job = ArgumentCaptor.forClass(AnalysisJob.class);
+			verify(analysisQueue).submit(job.capture());
+			verify(workJournal).recordAndWait(WorkJournal.Stage.RECEIVED, testFile);
+
+			// Dropped from a full queue, the frame is stored without a verdict
+			job.getValue().dropped();
+			verify(workJournal).record(WorkJournal.Stage.SKIPPED, testFile);
+			verify(analysisManager).recordSkipped(any(), eq(testFile));
+			verify(analysisManager).moveToS3(testFile, "Unanalyzed/");
+		} finally {
+			testFile.delete();
+		}
+	}
+
+	@Test
+	void testAnalyzeImage_QueueFull() throws Exception {
+		File testFile = File.createTempFile("analyze", ".jpg", tempDir);
+		try {
+			when(analysisQueue.submit(any())).thenReturn(false);
+			assertEquals(
+					HttpStatus.SERVICE_UNAVAILABLE,
+					analysisController.analyzeImage(testFile.getAbsolutePath()).getStatusCode());
+		} finally {
+			testFile.delete();
+		}
 	}
 
 	@Test
@@ -60,4 +148,154 @@ public class AnalysisControllerTest {
 		analysisController.enable();
 		assertEquals(0, analysisController.isPaused());
 	}
+
+	@Test
+	void testResumeUnfinishedWork() throws Exception {
+		File received = new File(tempDir, "received.jpg");
+		File failed = new File(tempDir, "failed.jpg");
+		File notified = new File(tempDir, "notified.jpg");
+		File uploaded = new File(tempDir, "uploaded.jpg");
+		for (File file : new File[] {received, failed, notified, uploaded}) {
+			assertTrue(file.createNewFile());
+		}
+		File missing = new File(tempDir, "missing.jpg");
+		when(workJournal.getRecovered())
+				.thenReturn(Map.of(
+						received.getAbsolutePath(), WorkJournal.Stage.RECEIVED,
+						failed.getAbsolutePath(), WorkJournal.Stage.ANALYZED_FAILURE,
+						notified.getAbsolutePath(), WorkJournal.Stage.NOTIFIED,
+						uploaded.getAbsolutePath(), WorkJournal.Stage.UPLOADED,
+						missing.getAbsolutePath(), WorkJournal.Stage.ANALYZED_SUCCESS));
+		when(workJournal.record(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+		analysisController.resumeUnfinishedWork();
+
+		verify(analysisQueue).submit(argThat(job -> job.getFile().equals(received)));
+		verify(workJournal).recordAndWait(WorkJournal.Stage.RECEIVED, received);
+		verify(analysisManager).moveToS3(failed, "Failure/");
+		verify(analysisManager).moveToS3(notified, "Success/");
+		verify(analysisManager).deleteFile(uploaded);
+		verify(workJournal).record(WorkJournal.Stage.DELETED, missing);
+		verify(analysisManager, never()).sendNotification(any());
+	}
+
+	@Test
+	void testSanitizeFileInput() {
+		String frontDoor = tempDir.getAbsolutePath() + "/01-2024.jpg";
+		assertEquals(frontDoor, analysisController.sanitizeFileInput("01-2024.jpg"));
+		assertEquals(frontDoor, analysisController.sanitizeFileInput(frontDoor));
+		String driveway = tempDir.getAbsolutePath() + "/driveway/01-2024.jpg";
+		assertEquals(driveway, analysisController.sanitizeFileInput(driveway));
+	}
+
+	@Test
+	void testAnalyzeImage_QueuedForCamera() throws Exception {
+		File driveway = new File(tempDir, "driveway");
+		assertTrue(driveway.mkdir());
+		File testFile = new File(driveway, "motion.jpg");
+		assertTrue(testFile.createNewFile());
+		when(analysisQueue.submit(any())).thenReturn(true);
+		assertEquals(
+				HttpStatus.ACCEPTED,
+				analysisController.analyzeImage(testFile.getAbsolutePath()).getStatusCode());
+		verify(analysisQueue).submit(argThat(job -> job.getShard().equals("driveway")));
+
+		when(workJournal.getRecovered()).thenReturn(Map.of(testFile.getAbsolutePath(), WorkJournal.Stage.ANALYZED_FAILURE));
+		analysisController.resumeUnfinishedWork();
+		verify(analysisManager).moveToS3(testFile, "Driveway/Failure/");
+	}
+
+	@Test
+	void testAnalyzeUpload() throws Exception {
+		when(analysisQueue.submit(any())).thenReturn(true);
+		assertEquals(
+				HttpStatus.ACCEPTED,
+				analysisController
+						.analyzeUpload("driveway", "../01-2024.jpg", new ByteArrayInputStream(new byte[1000]))
+						.getStatusCode());
+		File stored = new File(uploads, "driveway/01-2024.jpg").getAbsoluteFile();
+		assertEquals(1000, stored.length());
+		verify(analysisQueue)
+				.submit(argThat(job -> job.getShard().equals("driveway")
+						&& job.getFile().getAbsoluteFile().equals(stored)));
+		verify(workJournal).recordAndWait(WorkJournal.Stage.RECEIVED, stored);
+
+		// Resumed uploads find their camera from the store directory
+		when(workJournal.getRecovered()).thenReturn(Map.of(stored.getAbsolutePath(), WorkJournal.Stage.ANALYZED_FAILURE));
+		analysisController.resumeUnfinishedWork();
+		verify(analysisManager).moveToS3(stored, "Driveway/Failure/");
+	}
+
+	@Test
+	void testAnalyzeUpload_Rejected() throws Exception {
+		assertEquals(
+				HttpStatus.CONTENT_TOO_LARGE,
+				analysisController
+						.analyzeUpload(null, "big.jpg", new ByteArrayInputStream(new byte[2000]))
+						.getStatusCode());
+		assertFalse(new File(uploads, Camera.kDefault + "/big.jpg").exists());
+		assertEquals(
+				HttpStatus.BAD_REQUEST,
+				analysisController
+						.analyzeUpload("garage", null, new ByteArrayInputStream(new byte[10]))
+						.getStatusCode());
+
+		when(analysisQueue.submit(any())).thenReturn(false);
+		assertEquals(
+				HttpStatus.SERVICE_UNAVAILABLE,
+				analysisController
+						.analyzeUpload(null, "full.jpg", new ByteArrayInputStream(new byte[10]))
+						.getStatusCode());
+		verify(analysisManager).deleteFile(new File(uploads, Camera.kDefault + "/full.jpg").getAbsoluteFile());
+		verify(analysisQueue, times(1)).submit(any());
+	}
+
+	@Test
+	void testAnalyzeUpload_OverMemoryBudget() throws Exception {
+		when(analysisQueue.submit(any())).thenReturn(true);
+		assertEquals(
+				HttpStatus.ACCEPTED,
+				analysisController
+						.analyzeUpload(null, "1.jpg", new ByteArrayInputStream(new byte[1000]))
+						.getStatusCode());
+		// The waiting frame starts its event so it isn't shed, the new one is refused
+		assertEquals(
+				HttpStatus.SERVICE_UNAVAILABLE,
+				analysisController
+						.analyzeUpload(null, "2.jpg", new ByteArrayInputStream(new byte[1000]))
+						.getStatusCode());
+		verify(analysisManager).deleteFile(new File(uploads, Camera.kDefault + "/2.jpg").getAbsoluteFile());
+		assertEquals(1000, memoryBudget.getInFlight());
+		assertEquals(1, memoryBudget.getStats().rejected());
+	}
+
+	@Test
+	void testAnalyzeUpload_ShedFrameStored() throws Exception {
+		when(analysisQueue.submit(any())).thenReturn(true);
+		for (String name : List.of("1.jpg", "2.jpg", "3.jpg", "4.jpg")) {
+			assertEquals(
+					HttpStatus.ACCEPTED,
+					analysisController
+							.analyzeUpload(null, name, new ByteArrayInputStream(new byte[500]))
+							.getStatusCode());
+		}
+		// A middle frame of the event made room, its footage is kept without a verdict
+		assertEquals(1, memoryBudget.getShed());
+		ArgumentCaptor<File> shed = ArgumentCaptor.forClass(File.class);
+		verify(analysisManager).moveToS3(shed.capture(), eq("Unanalyzed/"));
+		verify(workJournal).record(WorkJournal.Stage.SKIPPED, shed.getValue());
+		verify(analysisManager, never()).deleteFile(any());
+	}
+
+	@Test
+	void testAnalyzeMultipartUpload() throws Exception {
+		when(analysisQueue.submit(any())).thenReturn(true);
+		assertEquals(
+				HttpStatus.ACCEPTED,
+				analysisController
+						.analyzeMultipartUpload(
+								null, null, new MockMultipartFile("image", "02-2024.jpg", "image/jpeg", new byte[10]))
+						.getStatusCode());
+		assertTrue(new File(uploads, Camera.kDefault + "/02-2024.jpg").exists());
+	}
 }
@@ -0,0 +1,159 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AnalysisHistoryTest {
+	private static final long kForever = Long.MAX_VALUE / 1000 - 1;
+
+	@TempDir
+	File tempDir;
+
+	private AnalysisHistory history;
+
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final Camera driveway =
+			new Camera("driveway", "/tmp/driveway/", "Vehicles", .75, "", "", "", "", "Driveway");
+
+	@BeforeEach
+	public void setup() throws IOException {
+		history = new AnalysisHistory(true, tempDir.getPath(), 30, 5);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		history.shutdown();
+	}
+
+	private static Map<String, Float> concepts(String theName, float theScore) {
+		Map<String, Float> concepts = new LinkedHashMap<>();
+		concepts.put(theName, theScore);
+		concepts.put("other", .1f);
+		return concepts;
+	}
+
+	private static AnalysisHistory.Query query(Double theMinScore, String theCamera) {
+		return new AnalysisHistory.Query(0, kForever, theCamera, null, theMinScore, null, null, 100);
+	}
+
+	@Test
+	public void testQuery() {
+		AnalysisHistory.Entry first = history.record(
+				camera, new File("1.jpg"), AnalysisHistory.Source.API, 1, 20, true, concepts("people", .9f));
+		history.record(camera, new File("2.jpg"), AnalysisHistory.Source.API, 1, 20, false, concepts("people", .3f));
+		history.record(driveway, new File("3.jpg"), AnalysisHistory.Source.API, 2, 30, true, concepts("car", .8f));
+
+		assertEquals(3, history.query(query(null, null)).size());
+		assertEquals(
+				List.of("1.jpg", "3.jpg"),
+				history.query(query(.5, null)).stream()
+						.map(theEntry -> new File(theEntry.file()).getName())
+						.toList());
+		assertEquals(1, history.query(query(null, "driveway")).size());
+		assertEquals(
+				1,
+				history.query(new AnalysisHistory.Query(0, kForever, null, "car", null, null, null, 100))
+						.size());
+		assertEquals(
+				1,
+				history.query(new AnalysisHistory.Query(0, kForever, null, null, null, null, false, 100))
+						.size());
+		assertEquals(
+				List.of(first),
+				history.query(new AnalysisHistory.Query(
+						first.time(), first.time(), null, null, null, null, null, 1)));
+		assertTrue(history.query(new AnalysisHistory.Query(0, first.time() - 1, null, null, null, null, null, 100))
+				.isEmpty());
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		File frame = new File("1.jpg");
+		history.record(camera, frame, AnalysisHistory.Source.API, 7, 20, true, concepts("people", .9f));
+		history.stored(frame, "Success/2026/10/1.jpg");
+		history.record(camera, new File("2.jpg"), AnalysisHistory.Source.API, 7, 20, false, concepts("people", .3f));
+		history.shutdown();
+		// Torn write from a crash
+		Files.writeString(
+				new File(tempDir, LocalDate.now() + ".log").toPath(), "0000", StandardOpenOption.APPEND);
+
+		history = new AnalysisHistory(true, tempDir.getPath(), 30, 5);
+		List<AnalysisHistory.Entry> entries = history.query(query(null, null));
+		assertEquals(2, entries.size());
+		assertEquals("Success/2026/10/1.jpg", entries.get(0).s3Key());
+		assertEquals(7, entries.get(0).batch());
+		assertEquals(.9f, entries.get(0).concepts().get("people"));
+		assertNull(entries.get(1).s3Key());
+
+		history.stored(new File("2.jpg"), "Failure/2026/10/2.jpg");
+		assertEquals("Failure/2026/10/2.jpg", history.query(query(null, null)).get(1).s3Key());
+		assertTrue(history.record(camera, new File("3.jpg"), AnalysisHistory.Source.API, 8, 20, false, Map.of()).id()
+				> entries.get(1).id());
+	}
+
+	@Test
+	public void testRetention() throws IOException {
+		File old = new File(tempDir, LocalDate.now().minusDays(31) + ".log");
+		Files.writeString(old.toPath(), "");
+		File recent = new File(tempDir, LocalDate.now().minusDays(29) + ".log");
+		Files.writeString(recent.toPath(), "");
+		history.shutdown();
+		history = new AnalysisHistory(true, tempDir.getPath(), 30, 5);
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+	}
+
+	@Test
+	public void testSourcesAndEvents() throws IOException {
+		AnalysisHistory.Entry sent = history.record(
+				camera, new File("1.jpg"), AnalysisHistory.Source.API, 1, 20, false, concepts("people", .3f));
+		history.record(camera, new File("2.jpg"), AnalysisHistory.Source.PRESCREENED, false);
+		history.record(driveway, new File("3.jpg"), AnalysisHistory.Source.SKIPPED, false);
+		history.shutdown();
+
+		// Analyses written before entries had a source and event
+		String old = "A\t" + (sent.id() - 1) + "\tdefault\t/tmp/0.jpg\t5\t20\ttrue\tpeople:0.9";
+		Files.writeString(
+				new File(tempDir, LocalDate.now().minusDays(1) + ".log").toPath(),
+				String.format("%08x", crc(old)) + "\t" + old + "\n");
+
+		history = new AnalysisHistory(true, tempDir.getPath(), 30, 5);
+		List<AnalysisHistory.Entry> entries = history.query(query(null, null));
+		assertEquals(
+				List.of(
+						AnalysisHistory.Source.API,
+						AnalysisHistory.Source.API,
+						AnalysisHistory.Source.PRESCREENED,
+						AnalysisHistory.Source.SKIPPED),
+				entries.stream().map(AnalysisHistory.Entry::source).toList());
+		assertEquals(0, entries.get(0).event());
+		assertEquals(.9f, entries.get(0).concepts().get("people"));
+		// Each camera has its own events, and a restart within the gap carries on the camera's
+		assertEquals(sent.time(), entries.get(1).event());
+		assertEquals(sent.time(), entries.get(2).event());
+		assertEquals(entries.get(3).time(), entries.get(3).event());
+		assertTrue(entries.get(2).concepts().isEmpty());
+		assertEquals(
+				sent.time(),
+				history.record(camera, new File("4.jpg"), AnalysisHistory.Source.EVENT, false).event());
+	}
+
+	private static long crc(String theBody) {
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(theBody.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+}
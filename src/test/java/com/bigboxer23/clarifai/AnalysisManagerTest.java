@@ -1,5 +1,6 @@
 package com.bigboxer23.clarifai;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -9,28 +10,69 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.clarifai.grpc.api.*;
 import com.clarifai.grpc.api.status.Status;
 import com.clarifai.grpc.api.status.StatusCode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 class AnalysisManagerTest {
+	@TempDir
+	File tempDir;
+
 	@Mock
 	private AmazonS3 s3Client;
 
 	@Mock
 	private V2Grpc.V2BlockingStub clarifaiStub;
 
+	@Mock
+	private ClarifaiClient clarifaiClient;
+
+	@Mock
+	private S3UploadService s3UploadService;
+
 	private AnalysisManager analysisManager;
 
+	private AnalysisHistory history;
+
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+
 	@BeforeEach
-	void setUp() {
+	void setUp() throws IOException {
 		MockitoAnnotations.openMocks(this);
-		analysisManager = new AnalysisManager(s3Client, clarifaiStub);
+		CameraRegistry cameras = new CameraRegistry(camera, Map.of());
+		history = new AnalysisHistory(true, tempDir.getPath(), 30, 5);
+		analysisManager = new AnalysisManager(
+				s3Client,
+				clarifaiStub,
+				clarifaiClient,
+				new ImagePreparer(new FrameBufferPool(1024 * 1024, 2), metrics, false, 0, 1, false, 1),
+				s3UploadService,
+				new WorkJournal(false, null, 0, 0),
+				new QuotaGovernor(List.of(Camera.kDefault), 5000, 100, 0, 1, 30, null, 0),
+				metrics,
+				history,
+				null,
+				null,
+				new DecisionEngine(cameras, Map.of(), 5),
+				new MemoryBudget(0, 600, 5),
+				new EventCache(false, null, 0, 1, 0, "", 5));
+	}
+
+	@AfterEach
+	void tearDown() {
+		history.shutdown();
 	}
 
 	@Test
@@ -52,7 +94,7 @@ class AnalysisManagerTest {
 		Consumer<File> successConsumer = mock(Consumer.class);
 		Consumer<File> failureConsumer = mock(Consumer.class);
 
-		analysisManager.sendToClarifai(testFile, successConsumer, failureConsumer);
+		analysisManager.sendToClarifai(camera, List.of(new BatchedFrame(testFile, successConsumer, failureConsumer)));
 
 		verify(successConsumer).accept(testFile);
 		verify(failureConsumer, never()).accept(testFile);
@@ -79,7 +121,7 @@ class AnalysisManagerTest {
 		Consumer<File> successConsumer = mock(Consumer.class);
 		Consumer<File> failureConsumer = mock(Consumer.class);
 
-		analysisManager.sendToClarifai(testFile, successConsumer, failureConsumer);
+		analysisManager.sendToClarifai(camera, List.of(new BatchedFrame(testFile, successConsumer, failureConsumer)));
 
 		verify(failureConsumer).accept(testFile);
 		verify(successConsumer, never()).accept(testFile);
@@ -87,6 +129,33 @@ class AnalysisManagerTest {
 		testFile.delete();
 	}
 
+	@Test
+	void testSendToClarifai_OneVerdictPerFrame() throws IOException {
+		File testFile = new File("test.jpg");
+		Files.write(testFile.toPath(), "test image data".getBytes());
+
+		MultiOutputResponse mockResponse = MultiOutputResponse.newBuilder()
+				.setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS))
+				.addOutputs(Output.newBuilder()
+						.setData(Data.newBuilder()
+								.addConcepts(Concept.newBuilder().setName("people").setValue(0.90f))
+								.addConcepts(Concept.newBuilder().setName("dog").setValue(0.80f))
+								.addConcepts(Concept.newBuilder().setName("car").setValue(0.10f))))
+				.build();
+
+		when(clarifaiStub.postModelOutputs(any(PostModelOutputsRequest.class))).thenReturn(mockResponse);
+
+		Consumer<File> successConsumer = mock(Consumer.class);
+		Consumer<File> failureConsumer = mock(Consumer.class);
+
+		analysisManager.sendToClarifai(camera, List.of(new BatchedFrame(testFile, successConsumer, failureConsumer)));
+
+		verify(successConsumer, times(1)).accept(testFile);
+		verify(failureConsumer, never()).accept(testFile);
+
+		testFile.delete();
+	}
+
 	@Test
 	void testSendToClarifai_ErrorResponse() throws IOException {
 		File testFile = new File("test.jpg");
@@ -102,7 +171,8 @@ class AnalysisManagerTest {
 		Consumer<File> failureConsumer = mock(Consumer.class);
 
 		try {
-			analysisManager.sendToClarifai(testFile, successConsumer, failureConsumer);
+			analysisManager.sendToClarifai(
+					camera, List.of(new BatchedFrame(testFile, successConsumer, failureConsumer)));
 			fail("Expected RuntimeException due to Clarifai API failure.");
 		} catch (RuntimeException e) {
 			assertTrue(e.getMessage().contains("Request failed, status:"));
@@ -110,4 +180,133 @@ class AnalysisManagerTest {
 
 		testFile.delete();
 	}
+
+	@Test
+	void testSendToClarifai_Batch() throws IOException {
+		File first = new File("first.jpg");
+		File second = new File("second.jpg");
+		Files.write(first.toPath(), "first image data".getBytes());
+		Files.write(second.toPath(), "second image data".getBytes());
+
+		// Outputs come back in a different order than the inputs were sent
+		MultiOutputResponse mockResponse = MultiOutputResponse.newBuilder()
+				.setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS))
+				.addOutputs(Output.newBuilder()
+						.setInput(Input.newBuilder().setId("1"))
+						.setData(Data.newBuilder()
+								.addConcepts(Concept.newBuilder()
+										.setName("Test Concept")
+										.setValue(0.90f))))
+				.addOutputs(Output.newBuilder()
+						.setInput(Input.newBuilder().setId("0"))
+						.setData(Data.newBuilder()
+								.addConcepts(Concept.newBuilder()
+										.setName("Test Concept")
+										.setValue(0.10f))))
+				.build();
+
+		when(clarifaiStub.postModelOutputs(any(PostModelOutputsRequest.class))).thenReturn(mockResponse);
+
+		Consumer<File> successConsumer = mock(Consumer.class);
+		Consumer<File> failureConsumer = mock(Consumer.class);
+
+		int units = analysisManager.sendToClarifai(camera, List.of(
+				new BatchedFrame(first, successConsumer, failureConsumer),
+				new BatchedFrame(second, successConsumer, failureConsumer)));
+
+		assertEquals(2, units);
+		verify(clarifaiStub, times(1)).postModelOutputs(any(PostModelOutputsRequest.class));
+		verify(successConsumer).accept(second);
+		verify(failureConsumer).accept(first);
+		verify(successConsumer, never()).accept(first);
+
+		first.delete();
+		second.delete();
+	}
+
+	@Test
+	void testSendToClarifai_MixedStatus() throws IOException {
+		File first = new File("first.jpg");
+		File second = new File("second.jpg");
+		File third = new File("third.jpg");
+		File follower = new File("follower.jpg");
+		for (File file : List.of(first, second, third)) {
+			Files.write(file.toPath(), "image data".getBytes());
+		}
+
+		// The second frame failed and the third has no output at all
+		MultiOutputResponse mockResponse = MultiOutputResponse.newBuilder()
+				.setStatus(Status.newBuilder().setCode(StatusCode.MIXED_STATUS))
+				.addOutputs(Output.newBuilder()
+						.setInput(Input.newBuilder().setId("0"))
+						.setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS))
+						.setData(Data.newBuilder()
+								.addConcepts(Concept.newBuilder()
+										.setName("Test Concept")
+										.setValue(0.90f))))
+				.addOutputs(Output.newBuilder()
+						.setInput(Input.newBuilder().setId("1"))
+						.setStatus(Status.newBuilder().setCode(StatusCode.FAILURE)))
+				.build();
+
+		when(clarifaiStub.postModelOutputs(any(PostModelOutputsRequest.class))).thenReturn(mockResponse);
+
+		Consumer<File> successConsumer = mock(Consumer.class);
+		Consumer<File> failureConsumer = mock(Consumer.class);
+		BatchedFrame failed = new BatchedFrame(second, successConsumer, failureConsumer);
+		failed.addFollower(new BatchedFrame(follower, successConsumer, failureConsumer));
+		List<BatchedFrame> frames = List.of(
+				new BatchedFrame(first, successConsumer, failureConsumer),
+				failed,
+				new BatchedFrame(third, successConsumer, failureConsumer));
+
+		analysisManager.sendToClarifai(camera, frames);
+		// Failing the batch again once every frame has a verdict changes nothing
+		frames.forEach(BatchedFrame::unanswered);
+
+		verify(successConsumer, times(1)).accept(first);
+		verify(failureConsumer, times(1)).accept(second);
+		verify(failureConsumer, times(1)).accept(follower);
+		verify(failureConsumer, times(1)).accept(third);
+		verifyNoMoreInteractions(successConsumer, failureConsumer);
+
+		first.delete();
+		second.delete();
+		third.delete();
+	}
+
+	@Test
+	void testHistoryRecordsSources() throws IOException {
+		File sent = new File(tempDir, "sent.jpg");
+		Files.write(sent.toPath(), "image data".getBytes());
+		File follower = new File(tempDir, "follower.jpg");
+		File cached = new File(tempDir, "cached.jpg");
+		Concept person = Concept.newBuilder().setName("people").setValue(0.90f).build();
+
+		when(clarifaiStub.postModelOutputs(any(PostModelOutputsRequest.class)))
+				.thenReturn(MultiOutputResponse.newBuilder()
+						.setStatus(Status.newBuilder().setCode(StatusCode.SUCCESS))
+						.addOutputs(Output.newBuilder()
+								.setInput(Input.newBuilder().setId("0"))
+								.setData(Data.newBuilder().addConcepts(person)))
+						.build());
+		Consumer<File> successConsumer = mock(Consumer.class);
+		Consumer<File> failureConsumer = mock(Consumer.class);
+		BatchedFrame leader = new BatchedFrame(sent, successConsumer, failureConsumer);
+		leader.addFollower(new BatchedFrame(follower, successConsumer, failureConsumer));
+		analysisManager.sendToClarifai(camera, List.of(leader));
+		analysisManager.decide(camera, new BatchedFrame(cached, successConsumer, failureConsumer), List.of(person));
+
+		List<AnalysisHistory.Entry> entries = history.query(
+				new AnalysisHistory.Query(0, System.currentTimeMillis(), null, null, null, null, null, 10));
+		assertEquals(
+				List.of(AnalysisHistory.Source.API, AnalysisHistory.Source.FOLLOWER, AnalysisHistory.Source.CACHED),
+				entries.stream().map(AnalysisHistory.Entry::source).toList());
+		assertEquals(entries.get(0).batch(), entries.get(1).batch());
+		assertEquals(0, entries.get(2).batch());
+		assertEquals(.9f, entries.get(2).concepts().get("people"));
+		// One motion event
+		assertEquals(1, entries.stream().map(AnalysisHistory.Entry::event).distinct().count());
+		assertTrue(entries.stream().allMatch(AnalysisHistory.Entry::noteworthy));
+	}
 }
@@ -0,0 +1,123 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class AnalysisQueueTest {
+	private AnalysisQueue queue;
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final List<File> processed = new CopyOnWriteArrayList<>();
+
+	@AfterEach
+	public void tearDown() {
+		release.countDown();
+		queue.shutdown();
+	}
+
+	/** Occupy the single worker so following submissions stay queued */
+	private void blockWorker() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		queue.submit(new AnalysisJob(new File("blocker.jpg"), theFile -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException theE) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+	}
+
+	private AnalysisJob job(String theName) {
+		return new AnalysisJob(new File(theName), processed::add);
+	}
+
+	private AnalysisJob job(String theCamera, String theName) {
+		return new AnalysisJob(theCamera, new File(theName), processed::add);
+	}
+
+	@Test
+	public void testRejectNewest() throws InterruptedException {
+		queue = new AnalysisQueue(2, 1, AnalysisQueue.DropPolicy.REJECT_NEWEST, 0);
+		blockWorker();
+		assertTrue(queue.submit(job("1.jpg")));
+		assertTrue(queue.submit(job("2.jpg")));
+		assertFalse(queue.submit(job("3.jpg")));
+		assertEquals(2, queue.getDepth());
+		assertEquals(1, queue.getStatus().dropped());
+	}
+
+	@Test
+	public void testDropOldest() throws InterruptedException {
+		queue = new AnalysisQueue(2, 1, AnalysisQueue.DropPolicy.DROP_OLDEST, 0);
+		blockWorker();
+		List<File> dropped = new CopyOnWriteArrayList<>();
+		queue.submit(new AnalysisJob(Camera.kDefault, new File("1.jpg"), processed::add, dropped::add));
+		queue.submit(job("2.jpg"));
+		assertTrue(queue.submit(job("3.jpg")));
+		assertEquals(1, queue.getStatus().dropped());
+		assertEquals(List.of(new File("1.jpg")), dropped);
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (processed.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(List.of(new File("2.jpg"), new File("3.jpg")), processed);
+	}
+
+	@Test
+	public void testDroppedOutsideLock() throws Exception {
+		queue = new AnalysisQueue(1, 1, AnalysisQueue.DropPolicy.DROP_OLDEST, 0);
+		blockWorker();
+		List<Integer> depths = new CopyOnWriteArrayList<>();
+		queue.submit(new AnalysisJob(Camera.kDefault, new File("1.jpg"), processed::add, theFile -> {
+			// Another thread can use the queue while the dropped frame is stored
+			try {
+				depths.add(CompletableFuture.supplyAsync(queue::getDepth).get(5, TimeUnit.SECONDS));
+			} catch (Exception theE) {
+				throw new IllegalStateException(theE);
+			}
+		}));
+		assertTrue(queue.submit(job("2.jpg")));
+		assertEquals(List.of(1), depths);
+	}
+
+	@Test
+	public void testBlockTimesOut() throws InterruptedException {
+		queue = new AnalysisQueue(1, 1, AnalysisQueue.DropPolicy.BLOCK, 50);
+		blockWorker();
+		assertTrue(queue.submit(job("1.jpg")));
+		long start = System.currentTimeMillis();
+		assertFalse(queue.submit(job("2.jpg")));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(1, queue.getStatus().dropped());
+	}
+
+	@Test
+	public void testCamerasTakeTurns() throws InterruptedException {
+		queue = new AnalysisQueue(5, 1, AnalysisQueue.DropPolicy.REJECT_NEWEST, 0);
+		blockWorker();
+		queue.submit(job("driveway", "d1.jpg"));
+		queue.submit(job("driveway", "d2.jpg"));
+		queue.submit(job("driveway", "d3.jpg"));
+		queue.submit(job(Camera.kDefault, "f1.jpg"));
+		assertEquals(3, queue.getStatus().shards().get("driveway"));
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (processed.size() < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(
+				List.of(new File("d1.jpg"), new File("f1.jpg"), new File("d2.jpg"), new File("d3.jpg")), processed);
+	}
+}
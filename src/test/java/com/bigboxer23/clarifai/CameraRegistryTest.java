@@ -0,0 +1,68 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class CameraRegistryTest {
+	private final Camera frontDoor = new Camera(
+			Camera.kDefault, "/var/lib/motion/", "People", .75, "", "http://hook", "me@mail", "", "Front Door Motion");
+
+	@Test
+	public void testSettingsFallBackToDefault() {
+		CameraRegistry registry = new CameraRegistry(
+				frontDoor,
+				Map.of(
+						"driveway",
+						new CameraRegistry.Settings(
+								"/var/lib/motion/driveway/", "Cars", .5, "Driveway/", null, null, null, null)));
+		Camera driveway = registry.getCameras().get(1);
+		assertEquals("Cars", driveway.modelId());
+		assertEquals(.5, driveway.threshold());
+		assertEquals("http://hook", driveway.notificationUrl());
+		assertEquals("me@mail", driveway.notificationEmail());
+		assertEquals("driveway Motion", driveway.subject());
+		assertEquals(frontDoor, registry.getCameras().get(0));
+	}
+
+	@Test
+	public void testResolveMostSpecificPath() {
+		CameraRegistry registry = new CameraRegistry(
+				frontDoor,
+				Map.of(
+						"driveway",
+						new CameraRegistry.Settings(
+								"/var/lib/motion/driveway/", null, null, null, null, null, null, null)));
+		assertEquals("driveway", registry.resolve("/var/lib/motion/driveway/01.jpg").name());
+		assertEquals(Camera.kDefault, registry.resolve("/var/lib/motion/01.jpg").name());
+		assertNull(registry.resolve("/etc/passwd"));
+	}
+
+	@Test
+	public void testRejectsAmbiguousCameras() {
+		assertThrows(
+				IllegalArgumentException.class,
+				() -> new CameraRegistry(
+						frontDoor,
+						Map.of(
+								"driveway",
+								new CameraRegistry.Settings(null, "Cars", null, null, null, null, null, null))));
+		assertThrows(
+				IllegalArgumentException.class,
+				() -> new CameraRegistry(
+						frontDoor,
+						Map.of(
+								"driveway",
+								new CameraRegistry.Settings(
+										"/var/lib/motion/", null, null, null, null, null, null, null))));
+		assertThrows(
+				IllegalArgumentException.class,
+				() -> new CameraRegistry(
+						frontDoor,
+						Map.of(
+								Camera.kDefault,
+								new CameraRegistry.Settings(
+										"/var/lib/motion/default/", null, null, null, null, null, null, null))));
+	}
+}
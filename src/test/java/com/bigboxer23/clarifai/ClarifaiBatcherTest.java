@@ -0,0 +1,179 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+import com.clarifai.grpc.api.Concept;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ClarifaiBatcherTest {
+	@TempDir
+	File tempDir;
+
+	@Mock
+	private AnalysisManager analysisManager;
+
+	private ClarifaiBatcher batcher;
+
+	private QuotaGovernor quotaGovernor;
+
+	private final Camera frontDoor = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final Camera driveway =
+			new Camera("driveway", "/tmp/driveway/", "Cars", .5, "Driveway/", "", "", "", "Driveway Motion");
+
+	@BeforeEach
+	public void setup() throws Exception {
+		MockitoAnnotations.openMocks(this);
+		when(analysisManager.sendToClarifai(any(), anyList()))
+				.thenAnswer(theInvocation -> theInvocation.<List<?>>getArgument(1).size());
+		quotaGovernor = new QuotaGovernor(List.of(Camera.kDefault, "driveway"), 5000, 100, 0, 1, 30, null, 0);
+		batcher = new ClarifaiBatcher(
+				analysisManager,
+				new VerdictCache(false, 0, 0, 0),
+				quotaGovernor,
+				3,
+				100,
+				false);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		batcher.shutdown();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testFlushOnSize() throws Exception {
+		batcher.submit(frontDoor, new File("1.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+		batcher.submit(frontDoor, new File("2.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+		verify(analysisManager, never()).sendToClarifai(any(), anyList());
+		batcher.submit(frontDoor, new File("3.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+
+		ArgumentCaptor<List<BatchedFrame>> captor = ArgumentCaptor.forClass(List.class);
+		verify(analysisManager).sendToClarifai(eq(frontDoor), captor.capture());
+		assertEquals(3, captor.getValue().size());
+		assertEquals(1, batcher.getStats().batches());
+		assertEquals(3, batcher.getStats().lastBatchUnits());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testFlushOnWindow() throws Exception {
+		batcher.submit(frontDoor, new File("1.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+
+		ArgumentCaptor<List<BatchedFrame>> captor = ArgumentCaptor.forClass(List.class);
+		verify(analysisManager, timeout(2000)).sendToClarifai(eq(frontDoor), captor.capture());
+		assertEquals(1, captor.getValue().size());
+		assertEquals(new File("1.jpg"), captor.getValue().get(0).getFile());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCamerasBatchedSeparately() throws Exception {
+		batcher.submit(frontDoor, new File("1.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+		batcher.submit(driveway, new File("2.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+		batcher.submit(frontDoor, new File("3.jpg"), theFile -> {}, theFile -> {}, theFile -> {});
+		verify(analysisManager, never()).sendToClarifai(any(), anyList());
+		batcher.flush();
+
+		ArgumentCaptor<List<BatchedFrame>> captor = ArgumentCaptor.forClass(List.class);
+		verify(analysisManager).sendToClarifai(eq(frontDoor), captor.capture());
+		assertEquals(2, captor.getValue().size());
+		verify(analysisManager).sendToClarifai(eq(driveway), captor.capture());
+		assertEquals(new File("2.jpg"), captor.getValue().get(0).getFile());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testFailedBatchSkipsEveryFrame() throws Exception {
+		when(analysisManager.sendToClarifai(any(), anyList())).thenThrow(new RuntimeException("Request failed"));
+		Consumer<File> success = mock(Consumer.class);
+		Consumer<File> failure = mock(Consumer.class);
+		Consumer<File> skipped = mock(Consumer.class);
+		double tokens = quotaGovernor.getStatus().tokens();
+		batcher.submit(frontDoor, new File("1.jpg"), success, failure, skipped);
+		batcher.submit(frontDoor, new File("2.jpg"), success, failure, skipped);
+		batcher.flush();
+
+		verify(skipped, times(1)).accept(new File("1.jpg"));
+		verify(skipped, times(1)).accept(new File("2.jpg"));
+		verifyNoInteractions(success, failure);
+		assertEquals(0, batcher.getStats().batches());
+		// The calls that never got an answer are given back
+		assertEquals(tokens, quotaGovernor.getStatus().tokens(), .01);
+		assertEquals(0, quotaGovernor.getUsed());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testOutOfQuotaIsSkipped() throws Exception {
+		QuotaGovernor empty = new QuotaGovernor(List.of(Camera.kDefault), 0, 1, 0, 1, 30, null, 0);
+		empty.tryAcquire(Camera.kDefault);
+		batcher.shutdown();
+		batcher = new ClarifaiBatcher(analysisManager, new VerdictCache(false, 0, 0, 0), empty, 3, 100, false);
+		Consumer<File> failure = mock(Consumer.class);
+		Consumer<File> skipped = mock(Consumer.class);
+		batcher.submit(frontDoor, new File("1.jpg"), theFile -> {}, failure, skipped);
+
+		verify(skipped).accept(new File("1.jpg"));
+		verifyNoInteractions(failure);
+		batcher.flush();
+		verify(analysisManager, never()).sendToClarifai(any(), anyList());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testNearIdenticalFramesDecidedFromConcepts() throws Exception {
+		batcher.shutdown();
+		batcher = new ClarifaiBatcher(analysisManager, new VerdictCache(true, 5, 10, 60), quotaGovernor, 3, 100, false);
+		File first = frame("first.jpg");
+		File follower = frame("follower.jpg");
+		batcher.submit(frontDoor, first, theFile -> {}, theFile -> {}, theFile -> {});
+		batcher.submit(frontDoor, follower, theFile -> {}, theFile -> {}, theFile -> {});
+		batcher.flush();
+
+		// The follower rides along with the first frame rather than being sent
+		ArgumentCaptor<List<BatchedFrame>> captor = ArgumentCaptor.forClass(List.class);
+		verify(analysisManager).sendToClarifai(eq(frontDoor), captor.capture());
+		assertEquals(1, captor.getValue().size());
+		List<BatchedFrame> followers = captor.getValue().get(0).getFollowers();
+		assertEquals(1, followers.size());
+		assertEquals(follower, followers.get(0).getFile());
+
+		// A later copy is decided again from the cached concepts, not given the old verdict
+		List<Concept> concepts = List.of(Concept.newBuilder().setName("people").setValue(.9f).build());
+		captor.getValue().get(0).answered(concepts);
+		File later = frame("later.jpg");
+		batcher.submit(frontDoor, later, theFile -> {}, theFile -> {}, theFile -> {});
+		verify(analysisManager)
+				.decide(eq(frontDoor), argThat(theFrame -> theFrame.getFile().equals(later)), eq(concepts));
+		verifyNoMoreInteractions(analysisManager);
+	}
+
+	private File frame(String theName) throws Exception {
+		BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(100, 60, 80, 120);
+		graphics.dispose();
+		File file = new File(tempDir, theName);
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+}
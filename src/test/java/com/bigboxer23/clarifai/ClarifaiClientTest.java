@@ -0,0 +1,127 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.clarifai.config.DeadlineInterceptor;
+import com.clarifai.grpc.api.MultiOutputResponse;
+import com.clarifai.grpc.api.PostModelOutputsRequest;
+import com.clarifai.grpc.api.V2Grpc;
+import com.clarifai.grpc.api.status.StatusCode;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Exercises the client against an in-process gRPC server standing in for clarifai */
+public class ClarifaiClientTest {
+	private final AtomicInteger calls = new AtomicInteger();
+
+	/** Number of calls to fail before answering */
+	private volatile int failures;
+
+	private volatile Status failureStatus = Status.UNAVAILABLE;
+
+	/** Don't answer at all, to trigger the deadline */
+	private volatile boolean hang;
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	private ClarifaiClient client;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		String name = InProcessServerBuilder.generateName();
+		server = InProcessServerBuilder.forName(name)
+				.directExecutor()
+				.addService(new V2Grpc.V2ImplBase() {
+					@Override
+					public void postModelOutputs(
+							PostModelOutputsRequest request, StreamObserver<MultiOutputResponse> responseObserver) {
+						if (calls.incrementAndGet() <= failures) {
+							responseObserver.onError(failureStatus.asRuntimeException());
+							return;
+						}
+						if (hang) {
+							return;
+						}
+						responseObserver.onNext(MultiOutputResponse.newBuilder()
+								.setStatus(com.clarifai.grpc.api.status.Status.newBuilder()
+										.setCode(StatusCode.SUCCESS))
+								.build());
+						responseObserver.onCompleted();
+					}
+				})
+				.build()
+				.start();
+		channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+		client = new ClarifaiClient(
+				V2Grpc.newFutureStub(channel).withInterceptors(new DeadlineInterceptor(200)), 3, 10, 50, 2);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		client.shutdown();
+		channel.shutdownNow();
+		server.shutdownNow();
+	}
+
+	@Test
+	public void testSuccess() throws Exception {
+		MultiOutputResponse response = client.postModelOutputs(PostModelOutputsRequest.getDefaultInstance())
+				.get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCode.SUCCESS, response.getStatus().getCode());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testRetriesRetryableStatus() throws Exception {
+		failures = 2;
+		MultiOutputResponse response = client.postModelOutputs(PostModelOutputsRequest.getDefaultInstance())
+				.get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCode.SUCCESS, response.getStatus().getCode());
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		failures = 10;
+		ExecutionException e = assertThrows(
+				ExecutionException.class,
+				() -> client.postModelOutputs(PostModelOutputsRequest.getDefaultInstance())
+						.get(5, TimeUnit.SECONDS));
+		assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(e.getCause()).getCode());
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testDoesNotRetryInvalidArgument() {
+		failures = 10;
+		failureStatus = Status.INVALID_ARGUMENT;
+		assertThrows(
+				ExecutionException.class,
+				() -> client.postModelOutputs(PostModelOutputsRequest.getDefaultInstance())
+						.get(5, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testDeadline() {
+		hang = true;
+		ExecutionException e = assertThrows(
+				ExecutionException.class,
+				() -> client.postModelOutputs(PostModelOutputsRequest.getDefaultInstance())
+						.get(5, TimeUnit.SECONDS));
+		assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(e.getCause()).getCode());
+		assertEquals(3, calls.get());
+	}
+}
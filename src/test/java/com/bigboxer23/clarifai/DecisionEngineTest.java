@@ -0,0 +1,127 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clarifai.grpc.api.Concept;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class DecisionEngineTest {
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final DecisionEngine.Decision decision = new DecisionEngine.Decision();
+
+	private static List<Concept> concepts(Object... theNamesAndScores) {
+		Concept[] concepts = new Concept[theNamesAndScores.length / 2];
+		for (int i = 0; i < concepts.length; i++) {
+			concepts[i] = Concept.newBuilder()
+					.setName((String) theNamesAndScores[i * 2])
+					.setValue(((Number) theNamesAndScores[i * 2 + 1]).floatValue())
+					.build();
+		}
+		return List.of(concepts);
+	}
+
+	private static long at(int theHour) {
+		return LocalDate.now()
+				.atTime(LocalTime.of(theHour, 0))
+				.atZone(ZoneId.systemDefault())
+				.toInstant()
+				.toEpochMilli();
+	}
+
+	private static DecisionEngine engine(Camera theCamera, DecisionEngine.Settings theSettings) {
+		return new DecisionEngine(
+				new CameraRegistry(theCamera, Map.of()), Map.of(Camera.kDefault, theSettings), 5);
+	}
+
+	@Test
+	public void testCameraThresholdByDefault() {
+		DecisionEngine engine = new DecisionEngine(new CameraRegistry(camera, Map.of()), Map.of(), 5);
+		engine.decide(camera, concepts("car", .2, "people", .8, "dog", .76), 0, decision);
+		assertEquals(DecisionEngine.Outcome.NOTEWORTHY, decision.getOutcome());
+		assertEquals("people", decision.getConcept());
+		assertEquals(.8f, decision.getScore());
+
+		engine.decide(camera, concepts("car", .2, "people", .7), 0, decision);
+		assertEquals(DecisionEngine.Outcome.BELOW_THRESHOLD, decision.getOutcome());
+		assertEquals("people", decision.getConcept());
+
+		engine.decide(camera, List.of(), 0, decision);
+		assertEquals(DecisionEngine.Outcome.BELOW_THRESHOLD, decision.getOutcome());
+		assertNull(decision.getConcept());
+	}
+
+	@Test
+	public void testConceptRules() {
+		DecisionEngine engine = engine(
+				camera,
+				new DecisionEngine.Settings(
+						Map.of("people", .9, "no person", .5), List.of("people", "dog"), List.of("no person"), null, null));
+		// Not included, however high it scores
+		engine.decide(camera, concepts("car", .99, "people", .8), 0, decision);
+		assertEquals(DecisionEngine.Outcome.BELOW_THRESHOLD, decision.getOutcome());
+		assertEquals("people", decision.getConcept());
+
+		// Furthest above its own threshold wins
+		engine.decide(camera, concepts("people", .92, "dog", .8), 0, decision);
+		assertTrue(decision.isNoteworthy());
+		assertEquals("dog", decision.getConcept());
+
+		engine.decide(camera, concepts("people", .95, "no person", .6), 0, decision);
+		assertEquals(DecisionEngine.Outcome.EXCLUDED, decision.getOutcome());
+		assertEquals("no person", decision.getConcept());
+	}
+
+	@Test
+	public void testHours() {
+		DecisionEngine engine =
+				engine(camera, new DecisionEngine.Settings(null, null, null, List.of("22:00-06:00"), null));
+		engine.decide(camera, concepts("people", .9), at(23), decision);
+		assertTrue(decision.isNoteworthy());
+		engine.decide(camera, concepts("people", .9), at(3), decision);
+		assertTrue(decision.isNoteworthy());
+		engine.decide(camera, concepts("people", .9), at(12), decision);
+		assertEquals(DecisionEngine.Outcome.OUTSIDE_HOURS, decision.getOutcome());
+	}
+
+	@Test
+	public void testConsecutive() {
+		CameraRegistry cameras = new CameraRegistry(
+				camera,
+				Map.of(
+						"driveway",
+						new CameraRegistry.Settings("/tmp/driveway/", "Vehicles", .5, null, null, null, null, null)));
+		Camera driveway = cameras.get("driveway");
+		DecisionEngine engine = new DecisionEngine(
+				cameras,
+				Map.of(
+						Camera.kDefault,
+						new DecisionEngine.Settings(null, null, null, null, 2),
+						"driveway",
+						new DecisionEngine.Settings(Map.of("car", .6), null, null, null, null)),
+				5);
+		engine.decide(driveway, concepts("car", .7), 0, decision);
+		assertEquals(DecisionEngine.Outcome.AWAITING_STREAK, decision.getOutcome());
+		engine.decide(driveway, concepts("car", .7), 0, decision);
+		assertTrue(decision.isNoteworthy());
+		engine.decide(driveway, concepts("car", .55), 0, decision);
+		assertEquals(DecisionEngine.Outcome.BELOW_THRESHOLD, decision.getOutcome());
+		engine.decide(driveway, concepts("car", .7), 0, decision);
+		assertEquals(DecisionEngine.Outcome.AWAITING_STREAK, decision.getOutcome());
+
+		// Streaks are kept per camera
+		engine.decide(camera, concepts("people", .9), 0, decision);
+		assertEquals(DecisionEngine.Outcome.AWAITING_STREAK, decision.getOutcome());
+
+		// Positives further apart than the event gap aren't a streak
+		engine.decide(driveway, concepts("car", .7), 6000, decision);
+		assertEquals(DecisionEngine.Outcome.AWAITING_STREAK, decision.getOutcome());
+		engine.decide(driveway, concepts("car", .7), 11000, decision);
+		assertTrue(decision.isNoteworthy());
+	}
+}
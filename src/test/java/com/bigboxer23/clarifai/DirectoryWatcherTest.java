@@ -0,0 +1,67 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DirectoryWatcherTest {
+	@TempDir
+	File tempDir;
+
+	private DirectoryWatcher watcher;
+
+	private final List<File> ingested = new CopyOnWriteArrayList<>();
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		watcher.shutdown();
+	}
+
+	private void waitFor(int theCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (ingested.size() < theCount && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testIngestsOnceWriteCompletes() throws Exception {
+		watcher = new DirectoryWatcher(List.of(tempDir.getPath()), ingested::add, 300, "");
+		File frame = new File(tempDir, "01-20240601.jpg");
+		try (FileOutputStream out = new FileOutputStream(frame)) {
+			// A slow writer shouldn't be picked up part way through
+			for (int i = 0; i < 5; i++) {
+				out.write(new byte[1024]);
+				out.flush();
+				Thread.sleep(100);
+				assertTrue(ingested.isEmpty());
+			}
+		}
+		waitFor(1);
+		assertEquals(List.of(frame.getAbsoluteFile()), ingested);
+		Thread.sleep(500);
+		assertEquals(1, ingested.size());
+		assertEquals(1, watcher.getStats().ingested());
+	}
+
+	@Test
+	public void testIgnoresOtherFiles() throws Exception {
+		watcher = new DirectoryWatcher(List.of(tempDir.getPath()), ingested::add, 50, "lastsnap.*|.*-snapshot\\.jpg");
+		Files.write(new File(tempDir, "01.avi").toPath(), new byte[10]);
+		Files.write(new File(tempDir, "01-snapshot.jpg").toPath(), new byte[10]);
+		Files.write(new File(tempDir, "02.JPEG").toPath(), new byte[10]);
+		// Motion links its latest snapshot, the link is neither a frame nor to be deleted
+		Files.createSymbolicLink(new File(tempDir, "latest.jpg").toPath(), new File(tempDir, "02.JPEG").toPath());
+		Files.createSymbolicLink(new File(tempDir, "lastsnap.jpg").toPath(), new File(tempDir, "02.JPEG").toPath());
+		waitFor(1);
+		Thread.sleep(200);
+		assertEquals(List.of(new File(tempDir, "02.JPEG").getAbsoluteFile()), ingested);
+	}
+}
@@ -0,0 +1,219 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class EventAggregatorTest {
+	@TempDir
+	File tempDir;
+
+	@Mock
+	private ClarifaiBatcher clarifaiBatcher;
+
+	@Mock
+	private AnalysisHistory history;
+
+	private final MotionPreScreen preScreen =
+			new MotionPreScreen(new PipelineMetrics(new SimpleMeterRegistry()), false, 25, .005, .3, .05);
+
+	private EventAggregator aggregator;
+
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final List<File> succeeded = new CopyOnWriteArrayList<>();
+
+	private final List<File> failed = new CopyOnWriteArrayList<>();
+
+	private final List<File> skipped = new CopyOnWriteArrayList<>();
+
+	private final List<File> archived = new CopyOnWriteArrayList<>();
+
+	@BeforeEach
+	public void setup() {
+		MockitoAnnotations.openMocks(this);
+		aggregator = new EventAggregator(clarifaiBatcher, preScreen, history, 1, 5, 3, 10000, 60, 1, 1, .5);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		aggregator.shutdown();
+	}
+
+	private File frame(String theName, boolean theSharp) throws Exception {
+		BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.GRAY);
+		graphics.fillRect(0, 0, 320, 240);
+		if (theSharp) {
+			graphics.setColor(Color.WHITE);
+			for (int y = 0; y < 240; y += 8) {
+				for (int x = (y / 8 % 2) * 8; x < 320; x += 16) {
+					graphics.fillRect(x, y, 8, 8);
+				}
+			}
+		}
+		graphics.dispose();
+		File file = new File(tempDir, theName);
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+
+	private void submit(File theFile) {
+		aggregator.submit(
+				camera,
+				theFile,
+				succeeded::add,
+				failed::add,
+				skipped::add,
+				(file, verdict) -> archived.add(verdict ? file : null));
+	}
+
+	private void answer(boolean theNoteworthy) {
+		answer(theNoteworthy ? 3 : 4);
+	}
+
+	/** Run the batcher's success, failure or skipped callback for each frame sent */
+	private void answer(int theCallback) {
+		doAnswer(invocation -> {
+					invocation.<Consumer<File>>getArgument(theCallback).accept(invocation.getArgument(1));
+					return null;
+				})
+				.when(clarifaiBatcher)
+				.submit(any(), any(), any(), any(), any(), any());
+	}
+
+	@Test
+	public void testSharpestFrameDecidesEvent() throws Exception {
+		answer(true);
+		File first = frame("1.jpg", false);
+		File sharp = frame("2.jpg", true);
+		File last = frame("3.jpg", false);
+		submit(first);
+		submit(sharp);
+		verify(clarifaiBatcher, never()).submit(any(), any(), any(), any(), any(), any());
+		submit(last);
+
+		verify(clarifaiBatcher).submit(eq(camera), eq(sharp), any(), any(), any(), any());
+		assertEquals(List.of(sharp), succeeded);
+		assertEquals(List.of(first, last), archived);
+
+		// Later frames of a noteworthy event aren't sent
+		File later = frame("4.jpg", true);
+		submit(later);
+		verify(clarifaiBatcher, times(1)).submit(any(), any(), any(), any(), any(), any());
+		assertEquals(List.of(first, last, later), archived);
+		assertTrue(failed.isEmpty());
+		assertEquals(new EventAggregator.Stats(1, 4, 1, 3), aggregator.getStats());
+
+		// The sent frame's history entry is clarifai's, the rest took the event's verdict
+		verify(history).record(camera, first, AnalysisHistory.Source.EVENT, true);
+		verify(history).record(camera, last, AnalysisHistory.Source.EVENT, true);
+		verify(history).record(camera, later, AnalysisHistory.Source.EVENT, true);
+		verify(history, never()).record(eq(camera), eq(sharp), any(), anyBoolean());
+	}
+
+	@Test
+	public void testEventNotNoteworthy() throws Exception {
+		answer(false);
+		submit(frame("1.jpg", false));
+		submit(frame("2.jpg", true));
+		aggregator.flush();
+
+		verify(clarifaiBatcher).submit(eq(camera), eq(new File(tempDir, "2.jpg")), any(), any(), any(), any());
+		assertEquals(2, failed.size());
+		assertTrue(succeeded.isEmpty());
+		assertTrue(archived.isEmpty());
+		verify(history).record(camera, new File(tempDir, "1.jpg"), AnalysisHistory.Source.EVENT, false);
+		verify(history, times(1)).record(any(), any(), any(), anyBoolean());
+	}
+
+	@Test
+	public void testDisabledSendsEveryFrame() throws Exception {
+		aggregator.shutdown();
+		aggregator = new EventAggregator(clarifaiBatcher, preScreen, history, 0, 5, 3, 10000, 60, 1, 1, .5);
+		submit(frame("1.jpg", false));
+		submit(frame("2.jpg", false));
+		verify(clarifaiBatcher, times(2)).submit(eq(camera), any(), any(), any(), any(), any());
+	}
+
+	@Test
+	public void testSkippedSegmentIsNotJudged() throws Exception {
+		// Out of quota, clarifai never sees the segment's best frame
+		answer(5);
+		submit(frame("1.jpg", false));
+		submit(frame("2.jpg", true));
+		aggregator.flush();
+
+		assertEquals(2, skipped.size());
+		assertTrue(failed.isEmpty());
+		assertTrue(succeeded.isEmpty());
+		assertTrue(archived.isEmpty());
+		// Whoever stores skipped frames adds them to the history
+		verifyNoInteractions(history);
+	}
+
+	@Test
+	public void testPreScreenRejectionRecorded() throws Exception {
+		aggregator.shutdown();
+		MotionPreScreen enabled =
+				new MotionPreScreen(new PipelineMetrics(new SimpleMeterRegistry()), true, 25, .005, .3, .05);
+		aggregator = new EventAggregator(clarifaiBatcher, enabled, history, 1, 5, 3, 10000, 60, 1, 1, .5);
+		submit(frame("1.jpg", true));
+		// Nothing moved since the first frame
+		File still = frame("2.jpg", true);
+		submit(still);
+
+		assertEquals(List.of(still), failed);
+		verify(history).record(camera, still, AnalysisHistory.Source.PRESCREENED, false);
+	}
+
+	@Test
+	public void testNoteworthyEventSkipsPreScreen() throws Exception {
+		aggregator.shutdown();
+		MotionPreScreen enabled =
+				new MotionPreScreen(new PipelineMetrics(new SimpleMeterRegistry()), true, 25, .005, .3, .05);
+		aggregator = new EventAggregator(clarifaiBatcher, enabled, history, 1, 5, 1, 10000, 60, 1, 1, .5);
+		answer(true);
+		File first = frame("1.jpg", true);
+		submit(first);
+		assertEquals(List.of(first), succeeded);
+
+		// Nothing moved, the pre-screen would reject the frame but its event is already noteworthy
+		File still = frame("2.jpg", true);
+		submit(still);
+		assertEquals(List.of(still), archived);
+		assertTrue(failed.isEmpty());
+		assertEquals(1, enabled.getStats().screened());
+	}
+
+	@Test
+	public void testScores() throws Exception {
+		FrameScorer.Luma flat = FrameScorer.decode(frame("flat.jpg", false));
+		FrameScorer.Luma sharp = FrameScorer.decode(frame("sharp.jpg", true));
+		assertEquals(160, flat.width());
+		assertTrue(FrameScorer.sharpness(sharp) > .9);
+		assertTrue(FrameScorer.sharpness(flat) < .1);
+		assertEquals(0, FrameScorer.changedArea(flat, null));
+		assertTrue(FrameScorer.changedArea(sharp, flat) > .3);
+		assertTrue(FrameScorer.exposure(flat) > .9);
+	}
+}
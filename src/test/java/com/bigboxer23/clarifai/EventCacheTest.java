@@ -0,0 +1,156 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+public class EventCacheTest {
+	@TempDir
+	File tempDir;
+
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private File frame(String theName) throws IOException {
+		File file = new File(tempDir, theName);
+		ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "jpeg", file);
+		return file;
+	}
+
+	private EventCache cache(int theEvents, long theMaxBytes, long theEventGap) throws IOException {
+		return new EventCache(
+				true, new File(tempDir, "cache").getPath(), theMaxBytes, theEvents, 160, "http://pi:8080/", theEventGap);
+	}
+
+	@Test
+	public void testCachesEvents() throws IOException {
+		EventCache eventCache = cache(5, 1024 * 1024, 60);
+		File first = frame("1.jpg");
+		File second = frame("2.jpg");
+		eventCache.put(camera, first);
+		eventCache.put(camera, second);
+		long length = first.length();
+		// The originals are the upload's to delete
+		assertTrue(first.delete());
+
+		List<EventCache.Event> events = eventCache.getEvents();
+		assertEquals(1, events.size());
+		assertEquals(List.of("1.jpg", "2.jpg"), events.get(0).frames());
+		assertEquals(
+				"http://pi:8080/cache/default/" + events.get(0).id() + "/1.jpg", eventCache.getUrl(camera, first));
+		assertNull(eventCache.getUrl(camera, new File("3.jpg")));
+
+		File copy = eventCache.get(Camera.kDefault, events.get(0).id(), "1.jpg", false);
+		assertEquals(length, copy.length());
+		BufferedImage thumbnail = ImageIO.read(eventCache.get(Camera.kDefault, events.get(0).id(), "1.jpg", true));
+		assertEquals(160, thumbnail.getWidth());
+		assertNull(eventCache.get(Camera.kDefault, events.get(0).id(), "../1.jpg", false));
+		assertEquals(2, eventCache.getStats().hits());
+		assertEquals(1, eventCache.getStats().misses());
+
+		// Events are found again after a restart
+		eventCache = cache(5, 1024 * 1024, 60);
+		assertEquals(events, eventCache.getEvents());
+		assertEquals(2, eventCache.getStats().frames());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		EventCache eventCache = cache(2, 1024 * 1024, 0);
+		eventCache.put(camera, frame("1.jpg"));
+		sleep();
+		eventCache.put(camera, frame("2.jpg"));
+		String oldest = eventCache.getEvents().get(1).id();
+		assertNotNull(eventCache.get(Camera.kDefault, oldest, "1.jpg", false));
+		sleep();
+		eventCache.put(camera, frame("3.jpg"));
+
+		// The first event was used more recently than the second
+		List<EventCache.Event> events = eventCache.getEvents();
+		assertEquals(2, events.size());
+		assertEquals(List.of("3.jpg"), events.get(0).frames());
+		assertEquals(List.of("1.jpg"), events.get(1).frames());
+		assertEquals(1, eventCache.getStats().evicted());
+
+		// Too big for the cache at all
+		eventCache = cache(2, 100, 0);
+		assertEquals(0, eventCache.getStats().events());
+		eventCache.put(camera, frame("4.jpg"));
+		assertEquals(0, eventCache.getStats().bytes());
+	}
+
+	@Test
+	public void testThumbnailCountedOnce() throws Exception {
+		EventCache eventCache = cache(5, 1024 * 1024, 60);
+		File file = frame("1.jpg");
+		eventCache.put(camera, file);
+		String id = eventCache.getEvents().get(0).id();
+		long bytes = eventCache.getStats().bytes();
+
+		// Requests racing to make the same thumbnail
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<File>> thumbnails = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			thumbnails.add(executor.submit(() -> {
+				start.await();
+				return eventCache.get(Camera.kDefault, id, "1.jpg", true);
+			}));
+		}
+		start.countDown();
+		File thumbnail = null;
+		for (Future<File> future : thumbnails) {
+			thumbnail = future.get();
+			assertTrue(thumbnail.exists());
+		}
+		executor.shutdown();
+		assertEquals(bytes + thumbnail.length(), eventCache.getStats().bytes());
+		assertEquals(List.of("1.jpg"), List.of(thumbnail.getParentFile().list()));
+	}
+
+	@Test
+	public void testServedWithValidators() throws Exception {
+		EventCache eventCache = cache(5, 1024 * 1024, 60);
+		File file = frame("1.jpg");
+		eventCache.put(camera, file);
+		String path = "/cache/default/" + eventCache.getEvents().get(0).id() + "/1.jpg";
+		MockMvc mockMvc =
+				MockMvcBuilders.standaloneSetup(new EventCacheController(eventCache)).build();
+
+		String eTag = mockMvc.perform(get(path))
+				.andExpect(status().isOk())
+				.andExpect(header().exists("Last-Modified"))
+				.andReturn()
+				.getResponse()
+				.getHeader("ETag");
+		assertNotNull(eTag);
+		mockMvc.perform(get(path).header("If-None-Match", eTag)).andExpect(status().isNotModified());
+		mockMvc.perform(get(path).header("Range", "bytes=0-9"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string("Content-Range", "bytes 0-9/" + file.length()));
+		mockMvc.perform(get("/cache/default/0/1.jpg")).andExpect(status().isNotFound());
+	}
+
+	/** Event ids are millisecond times */
+	private static void sleep() {
+		try {
+			Thread.sleep(5);
+		} catch (InterruptedException theE) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
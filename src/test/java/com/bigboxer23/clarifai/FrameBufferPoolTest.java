@@ -0,0 +1,97 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.protobuf.ByteString;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FrameBufferPoolTest {
+	private static final Logger logger = LoggerFactory.getLogger(FrameBufferPoolTest.class);
+
+	private static final int kFrameSize = 400 * 1024;
+
+	private static final int kIterations = 50;
+
+	@TempDir
+	File tempDir;
+
+	private File frame;
+
+	private byte[] contents;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		contents = new byte[kFrameSize];
+		new Random(1).nextBytes(contents);
+		frame = new File(tempDir, "frame.jpg");
+		Files.write(frame.toPath(), contents);
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		FrameBufferPool pool = new FrameBufferPool(1024 * 1024, 2);
+		try (FrameBuffer buffer = pool.read(frame)) {
+			assertEquals(kFrameSize, buffer.size());
+			assertArrayEquals(contents, buffer.getBytes().toByteArray());
+		}
+		assertEquals(1, pool.getPooled());
+	}
+
+	@Test
+	public void testBufferReusedAfterRelease() throws Exception {
+		FrameBufferPool pool = new FrameBufferPool(1024 * 1024, 1);
+		FrameBuffer first = pool.read(frame);
+		FrameBuffer second = pool.read(frame); // pool is empty, a new buffer is allocated
+		first.close();
+		first.close(); // releasing twice must not pool the buffer twice
+		second.close(); // pool is full, this one is dropped
+		assertEquals(1, pool.getPooled());
+	}
+
+	@Test
+	public void testMapsOversizedFrames() throws Exception {
+		FrameBufferPool pool = new FrameBufferPool(1024, 2);
+		try (FrameBuffer buffer = pool.read(frame)) {
+			assertArrayEquals(contents, buffer.getBytes().toByteArray());
+		}
+		assertEquals(0, pool.getPooled());
+	}
+
+	/** Heap allocated per frame by the old readAllBytes + copyFrom path vs the pooled path */
+	@Test
+	public void testAllocation() throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		FrameBufferPool pool = new FrameBufferPool(1024 * 1024, 2);
+		pool.read(frame).close(); // warm the pool
+
+		long start = threads.getThreadAllocatedBytes(threadId);
+		long checksum = 0;
+		for (int ai = 0; ai < kIterations; ai++) {
+			checksum += ByteString.copyFrom(Files.readAllBytes(frame.toPath())).byteAt(ai);
+		}
+		long legacy = (threads.getThreadAllocatedBytes(threadId) - start) / kIterations;
+
+		start = threads.getThreadAllocatedBytes(threadId);
+		for (int ai = 0; ai < kIterations; ai++) {
+			try (FrameBuffer buffer = pool.read(frame)) {
+				checksum -= buffer.getBytes().byteAt(ai);
+			}
+		}
+		long pooled = (threads.getThreadAllocatedBytes(threadId) - start) / kIterations;
+
+		logger.info("Heap allocated per " + kFrameSize + " byte frame: readAllBytes+copyFrom " + legacy
+				+ " bytes, pooled " + pooled + " bytes");
+		assertEquals(0, checksum);
+		assertTrue(legacy >= 2L * kFrameSize);
+		assertTrue(pooled < kFrameSize / 10);
+	}
+}
@@ -0,0 +1,93 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ImagePreparerTest {
+	@TempDir
+	File tempDir;
+
+	private File frame;
+
+	private final FrameBufferPool pool = new FrameBufferPool(1024 * 1024, 2);
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private final PipelineMetrics metrics = new PipelineMetrics(registry);
+
+	@BeforeEach
+	public void setup() throws Exception {
+		BufferedImage image = new BufferedImage(960, 720, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.BLUE, 960, 720, Color.ORANGE));
+		graphics.fillRect(0, 0, 960, 720);
+		graphics.dispose();
+		frame = new File(tempDir, "frame.jpg");
+		ImageIO.write(image, "jpg", frame);
+	}
+
+	@Test
+	public void testDownscale() throws Exception {
+		byte[] original = Files.readAllBytes(frame.toPath());
+		ImagePreparer preparer = new ImagePreparer(pool, metrics, true, 320, .7f, false, 1);
+		byte[] prepared = preparer.prepare(frame).getBytes().toByteArray();
+
+		BufferedImage result = ImageIO.read(new ByteArrayInputStream(prepared));
+		assertEquals(320, result.getWidth());
+		assertEquals(240, result.getHeight());
+		assertTrue(prepared.length < original.length);
+		assertEquals(
+				1,
+				registry.get("clarifai.stage")
+						.tag("stage", "file_read")
+						.tag("outcome", "success")
+						.timer()
+						.count());
+		assertArrayEquals(original, Files.readAllBytes(frame.toPath()), "file on disk is untouched");
+	}
+
+	@Test
+	public void testGrayscale() throws Exception {
+		ImagePreparer preparer = new ImagePreparer(pool, metrics, true, 320, .7f, true, 1);
+		BufferedImage result = ImageIO.read(new ByteArrayInputStream(preparer.prepare(frame).getBytes().toByteArray()));
+		assertEquals(1, result.getRaster().getNumBands());
+	}
+
+	@Test
+	public void testScalerReuse() throws Exception {
+		ImagePreparer preparer = new ImagePreparer(pool, metrics, true, 320, .7f, false, 1);
+		FrameBuffer firstBuffer = preparer.prepare(frame);
+		byte[] first = firstBuffer.getBytes().toByteArray();
+		firstBuffer.close(); // output buffer goes back to the pool and is reused for the second frame
+		byte[] second = preparer.prepare(frame).getBytes().toByteArray();
+		assertArrayEquals(first, second);
+	}
+
+	@Test
+	public void testFrameThatFitsSentAsIs() throws Exception {
+		ImagePreparer preparer = new ImagePreparer(pool, metrics, true, 1280, .7f, false, 1);
+		try (FrameBuffer prepared = preparer.prepare(frame)) {
+			assertArrayEquals(Files.readAllBytes(frame.toPath()), prepared.getBytes().toByteArray());
+		}
+		// Read into a pooled buffer and handed back once sent
+		assertEquals(1, pool.getPooled());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		ImagePreparer preparer = new ImagePreparer(pool, metrics, false, 320, .7f, false, 1);
+		assertArrayEquals(Files.readAllBytes(frame.toPath()), preparer.prepare(frame).getBytes().toByteArray());
+	}
+}
@@ -0,0 +1,193 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MailDispatcherTest {
+	@TempDir
+	File tempDir;
+
+	private FakeSmtpServer server;
+
+	private MailDispatcher dispatcher;
+
+	private final Camera camera = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	/** Just enough SMTP to accept mail, rejecting the first few messages if asked to */
+	private static class FakeSmtpServer implements Runnable {
+		private final ServerSocket mySocket = new ServerSocket(0);
+
+		private final List<String> myMessages = new CopyOnWriteArrayList<>();
+
+		private final AtomicInteger myConnections = new AtomicInteger();
+
+		private final AtomicInteger myRejections;
+
+		private FakeSmtpServer(int theRejections) throws IOException {
+			myRejections = new AtomicInteger(theRejections);
+			Thread aThread = new Thread(this, "fake-smtp");
+			aThread.setDaemon(true);
+			aThread.start();
+		}
+
+		@Override
+		public void run() {
+			while (!mySocket.isClosed()) {
+				try {
+					Socket aClient = mySocket.accept();
+					myConnections.incrementAndGet();
+					Thread aThread = new Thread(() -> serve(aClient));
+					aThread.setDaemon(true);
+					aThread.start();
+				} catch (IOException theE) {
+					return;
+				}
+			}
+		}
+
+		private void serve(Socket theClient) {
+			try (theClient;
+					BufferedReader anInput = new BufferedReader(
+							new InputStreamReader(theClient.getInputStream(), StandardCharsets.US_ASCII));
+					PrintWriter anOutput = new PrintWriter(theClient.getOutputStream(), true)) {
+				reply(anOutput, "220 localhost");
+				String aLine;
+				while ((aLine = anInput.readLine()) != null) {
+					String aCommand = aLine.toUpperCase();
+					if (aCommand.startsWith("DATA")) {
+						reply(anOutput, "354 go ahead");
+						StringBuilder aMessage = new StringBuilder();
+						while (!".".equals(aLine = anInput.readLine())) {
+							aMessage.append(aLine).append('\n');
+						}
+						if (myRejections.getAndDecrement() > 0) {
+							reply(anOutput, "451 try again later");
+						} else {
+							myMessages.add(aMessage.toString());
+							reply(anOutput, "250 queued");
+						}
+					} else if (aCommand.startsWith("QUIT")) {
+						reply(anOutput, "221 bye");
+						return;
+					} else {
+						reply(anOutput, "250 ok");
+					}
+				}
+			} catch (IOException theE) {
+				// Client went away
+			}
+		}
+
+		private static void reply(PrintWriter theOutput, String theReply) {
+			theOutput.print(theReply + "\r\n");
+			theOutput.flush();
+		}
+
+		private void close() throws IOException {
+			mySocket.close();
+		}
+	}
+
+	private MailDispatcher dispatcher(int theAttempts) {
+		return new MailDispatcher(
+				new PipelineMetrics(new SimpleMeterRegistry()),
+				"",
+				"",
+				"localhost",
+				server.mySocket.getLocalPort(),
+				false,
+				64,
+				true,
+				12,
+				200,
+				theAttempts,
+				50,
+				60);
+	}
+
+	@BeforeEach
+	public void setup() throws IOException {
+		server = new FakeSmtpServer(0);
+		dispatcher = dispatcher(3);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		dispatcher.shutdown();
+		server.close();
+	}
+
+	private File frame(String theName) throws IOException {
+		File file = new File(tempDir, theName);
+		ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "jpeg", file);
+		return file;
+	}
+
+	private static void waitFor(BooleanSupplier theCondition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!theCondition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(theCondition.getAsBoolean());
+	}
+
+	@Test
+	public void testCoalescesBurstOverOneConnection() throws Exception {
+		File first = frame("1.jpg");
+		dispatcher.submit(camera, "someone@localhost", "Motion 1", List.of(first));
+		// The frame has been read, it can go away before the mail is sent
+		assertTrue(first.delete());
+		dispatcher.submit(camera, "someone@localhost", "Motion 2", List.of(frame("2.jpg"), frame("3.jpg")));
+		waitFor(() -> dispatcher.getStats().sent() == 1);
+		String message = server.myMessages.get(0);
+		assertTrue(message.contains("Subject: Motion 2"));
+		assertTrue(message.contains("contact-sheet.jpg"));
+		assertFalse(message.contains("filename=1.jpg"));
+
+		dispatcher.submit(camera, "someone@localhost", "Motion 3", List.of(frame("4.jpg")));
+		waitFor(() -> dispatcher.getStats().sent() == 2);
+		assertTrue(server.myMessages.get(1).contains("4.jpg"));
+		assertEquals(1, server.myConnections.get());
+		assertEquals(new MailDispatcher.Stats(0, 2, 1, 0, 0, 1), dispatcher.getStats());
+	}
+
+	@Test
+	public void testRetries() throws Exception {
+		server.myRejections.set(1);
+		dispatcher.submit(camera, "someone@localhost", "Motion", List.of(frame("1.jpg")));
+		waitFor(() -> dispatcher.getStats().sent() == 1);
+		assertEquals(1, server.myMessages.size());
+		assertEquals(1, dispatcher.getStats().retries());
+		assertEquals(2, dispatcher.getStats().connections());
+	}
+
+	@Test
+	public void testGivesUp() throws Exception {
+		dispatcher.shutdown();
+		dispatcher = dispatcher(2);
+		server.myRejections.set(Integer.MAX_VALUE);
+		dispatcher.submit(camera, "someone@localhost", "Motion", List.of(frame("1.jpg")));
+		waitFor(() -> dispatcher.getStats().failed() == 1);
+		assertEquals(1, dispatcher.getStats().retries());
+		assertTrue(server.myMessages.isEmpty());
+	}
+}
@@ -0,0 +1,102 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MemoryBudgetTest {
+	@TempDir
+	File tempDir;
+
+	private final Camera frontDoor = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final Camera driveway = new Camera("driveway", "/tmp/driveway/", "People", .75, "", "", "", "", "Motion");
+
+	private File frame(String theName) throws IOException {
+		File file = new File(tempDir, theName);
+		Files.write(file.toPath(), new byte[1000]);
+		return file;
+	}
+
+	@Test
+	public void testShedsMiddleOfEvent() throws IOException {
+		MemoryBudget budget = new MemoryBudget(3000, 600, 5);
+		File first = frame("1.jpg");
+		File second = frame("2.jpg");
+		File third = frame("3.jpg");
+		assertTrue(budget.admit(frontDoor, first, 0).admitted());
+		assertTrue(budget.admit(frontDoor, second, 1000).admitted());
+		assertTrue(budget.admit(frontDoor, third, 1500).admitted());
+
+		// The third frame's neighbours are closer together than the second's
+		File fourth = frame("4.jpg");
+		MemoryBudget.Admission admission = budget.admit(frontDoor, fourth, 2000);
+		assertTrue(admission.admitted());
+		assertEquals(List.of(third), admission.shed());
+		assertEquals(3000, budget.getInFlight());
+		assertFalse(budget.start(third));
+		assertTrue(budget.start(first));
+
+		// Started frames stay
+		assertTrue(budget.start(second));
+		assertTrue(budget.start(fourth));
+		assertFalse(budget.admit(frontDoor, frame("5.jpg"), 2500).admitted());
+		assertEquals(new MemoryBudget.Stats(3000, 3000, 3000, 0, 0, 3000, 1, 1), budget.getStats());
+	}
+
+	@Test
+	public void testShedsOtherEventsBeforeRefusing() throws IOException {
+		MemoryBudget budget = new MemoryBudget(3000, 600, 5);
+		File middle = frame("2.jpg");
+		budget.admit(frontDoor, frame("1.jpg"), 0);
+		budget.admit(frontDoor, middle, 1000);
+		budget.admit(frontDoor, frame("3.jpg"), 2000);
+
+		// A new event has nothing of its own to shed, the other event's middle goes
+		MemoryBudget.Admission admission = budget.admit(driveway, frame("d1.jpg"), 2500);
+		assertTrue(admission.admitted());
+		assertEquals(List.of(middle), admission.shed());
+
+		// Only event ends are left
+		admission = budget.admit(driveway, frame("d2.jpg"), 9000);
+		assertFalse(admission.admitted());
+		assertTrue(admission.shed().isEmpty());
+	}
+
+	@Test
+	public void testStages() throws IOException {
+		MemoryBudget budget = new MemoryBudget(0, 600, 5);
+		File first = frame("1.jpg");
+		File second = frame("2.jpg");
+		assertTrue(budget.admit(frontDoor, first).admitted());
+		assertTrue(budget.admit(frontDoor, second).admitted());
+		assertTrue(budget.admit(frontDoor, frame("3.jpg")).admitted());
+		budget.moveTo(first, MemoryBudget.Stage.INFER);
+		budget.moveTo(second, MemoryBudget.Stage.UPLOAD);
+		assertEquals(1000, budget.getInFlight(MemoryBudget.Stage.READ));
+		assertEquals(1000, budget.getInFlight(MemoryBudget.Stage.INFER));
+		assertEquals(1000, budget.getInFlight(MemoryBudget.Stage.UPLOAD));
+
+		budget.release(first);
+		budget.release(second);
+		budget.release(second);
+		assertEquals(1000, budget.getInFlight());
+		assertEquals(3000, budget.getStats().peak());
+	}
+
+	@Test
+	public void testForgetsStaleFrames() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1000, 60, 5);
+		File stale = frame("1.jpg");
+		budget.admit(frontDoor, stale, 0);
+		budget.start(stale);
+		assertFalse(budget.admit(frontDoor, frame("2.jpg"), 30_000).admitted());
+		assertTrue(budget.admit(frontDoor, frame("3.jpg"), 61_000).admitted());
+		assertEquals(1000, budget.getInFlight());
+	}
+}
@@ -0,0 +1,96 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MotionPreScreenTest {
+	private static final int kWidth = 160;
+
+	private static final int kHeight = 120;
+
+	private SimpleMeterRegistry registry;
+
+	private MotionPreScreen preScreen;
+
+	@BeforeEach
+	public void setup() {
+		registry = new SimpleMeterRegistry();
+		preScreen = new MotionPreScreen(new PipelineMetrics(registry), true, 25, .005, .3, .05);
+	}
+
+	/** Textured scene so brightness changes aren't uniform, optionally with a box of the given brightness */
+	private FrameScorer.Luma frame(double theGain, int theBoxSize, int theBoxValue) {
+		int[] pixels = new int[kWidth * kHeight];
+		for (int y = 0; y < kHeight; y++) {
+			for (int x = 0; x < kWidth; x++) {
+				int value = 60 + (x * 7 + y * 3) % 80;
+				if (x < theBoxSize && y < theBoxSize) {
+					value = theBoxValue;
+				}
+				pixels[y * kWidth + x] = Math.min(255, (int) (value * theGain));
+			}
+		}
+		return new FrameScorer.Luma(kWidth, kHeight, pixels);
+	}
+
+	@Test
+	public void testFirstFramePasses() {
+		assertEquals(MotionPreScreen.Verdict.PASSED, preScreen.screen("default", frame(1, 0, 0)));
+	}
+
+	@Test
+	public void testIllumination() {
+		preScreen.screen("default", frame(1, 0, 0));
+		assertEquals(MotionPreScreen.Verdict.ILLUMINATION, preScreen.screen("default", frame(1.6, 0, 0)));
+		assertEquals(
+				1,
+				registry.get("clarifai.prescreen.rejected")
+						.tag("reason", "illumination")
+						.counter()
+						.count());
+	}
+
+	@Test
+	public void testTinyMotion() {
+		preScreen.screen("default", frame(1, 0, 0));
+		assertEquals(MotionPreScreen.Verdict.TINY_MOTION, preScreen.screen("default", frame(1, 3, 255)));
+	}
+
+	@Test
+	public void testMotionPasses() {
+		preScreen.screen("default", frame(1, 0, 0));
+		assertEquals(MotionPreScreen.Verdict.PASSED, preScreen.screen("default", frame(1, 40, 255)));
+		// Still found under a lighting change
+		assertEquals(MotionPreScreen.Verdict.PASSED, preScreen.screen("default", frame(1.4, 40, 0)));
+		assertEquals(new MotionPreScreen.Stats(3, 3, 0, 0), preScreen.getStats());
+	}
+
+	@Test
+	public void testCamerasHaveTheirOwnBackground() {
+		preScreen.screen("default", frame(1, 0, 0));
+		assertEquals(MotionPreScreen.Verdict.PASSED, preScreen.screen("driveway", frame(1.6, 0, 0)));
+	}
+
+	@Test
+	public void testDisabled() {
+		preScreen = new MotionPreScreen(new PipelineMetrics(registry), false, 25, .005, .3, .05);
+		preScreen.screen("default", frame(1, 0, 0));
+		assertEquals(MotionPreScreen.Verdict.PASSED, preScreen.screen("default", frame(1, 3, 255)));
+		assertEquals(new MotionPreScreen.Stats(0, 0, 0, 0), preScreen.getStats());
+	}
+
+	@Test
+	public void testLargestArea() {
+		boolean[] mask = new boolean[5 * 4];
+		// 3 pixel L, a diagonal neighbour that isn't connected, and a 4 pixel bar
+		mask[0] = mask[1] = mask[5] = true;
+		mask[7] = true;
+		mask[15] = mask[16] = mask[17] = mask[18] = true;
+		assertEquals(4, MotionPreScreen.largestArea(mask, 5, 4, new int[mask.length]));
+		assertFalse(Arrays.toString(mask).contains("true"));
+	}
+}
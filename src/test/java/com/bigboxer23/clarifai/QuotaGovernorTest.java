@@ -0,0 +1,113 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class QuotaGovernorTest {
+	@TempDir
+	File tempDir;
+
+	@Test
+	public void testBurstThenRejected() {
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 5000, 10, 0, 1, 30, null, 0);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(governor.tryAcquire(Camera.kDefault));
+		}
+		assertFalse(governor.tryAcquire(Camera.kDefault));
+		assertEquals(10, governor.getUsed());
+		assertEquals(1, governor.getStatus().rejected());
+	}
+
+	@Test
+	public void testMonthlyLimit() {
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 5, 10, 0, 1, 30, null, 0);
+		// The burst allowance doesn't stretch the month's limit
+		for (int i = 0; i < 5; i++) {
+			assertTrue(governor.tryAcquire(Camera.kDefault));
+		}
+		assertFalse(governor.tryAcquire(Camera.kDefault));
+		assertEquals(5, governor.getUsed());
+		assertEquals(1, governor.getStatus().rejected());
+	}
+
+	@Test
+	public void testSeededFromApiIndex() {
+		String path = new File(tempDir, "quota.state").getPath();
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 10, 10, 0, 1, 30, path, 0);
+		governor.seed(8);
+		assertEquals(8, governor.getUsed());
+		assertTrue(governor.tryAcquire(Camera.kDefault));
+		assertTrue(governor.tryAcquire(Camera.kDefault));
+		assertFalse(governor.tryAcquire(Camera.kDefault));
+		governor.shutdown();
+
+		// Only the first start after the upgrade takes the old count
+		QuotaGovernor restored = new QuotaGovernor(List.of(Camera.kDefault), 10, 10, 0, 1, 30, path, 0);
+		restored.seed(8);
+		assertEquals(10, restored.getUsed());
+		restored.seed(12);
+		assertEquals(10, restored.getUsed());
+	}
+
+	@Test
+	public void testSamplesWhenLow() {
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 5000, 20, 15, 4, 30, null, 0);
+		// 6 frames at full rate take the bucket under the watermark
+		for (int i = 0; i < 6; i++) {
+			assertTrue(governor.tryAcquire(Camera.kDefault));
+		}
+		int admitted = 0;
+		for (int i = 0; i < 12; i++) {
+			if (governor.tryAcquire(Camera.kDefault)) {
+				admitted++;
+			}
+		}
+		assertEquals(3, admitted);
+		assertEquals(9, governor.getStatus().sampledOut());
+		assertEquals(4, governor.getStatus().cameraSampleRates().get(Camera.kDefault));
+	}
+
+	@Test
+	public void testRefill() throws Exception {
+		// 30 days * 86400000ms / 2592000000 = 1 token per ms, or near enough in any month
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 2592000000L, 5, 0, 1, 30, null, 0);
+		for (int i = 0; i < 5; i++) {
+			governor.tryAcquire(Camera.kDefault);
+		}
+		Thread.sleep(20);
+		assertEquals(5, governor.getStatus().tokens(), .001);
+	}
+
+	@Test
+	public void testPersisted() {
+		String path = new File(tempDir, "quota.state").getPath();
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault), 5000, 10, 0, 1, 30, path, 0);
+		for (int i = 0; i < 7; i++) {
+			governor.tryAcquire(Camera.kDefault);
+		}
+		governor.shutdown();
+
+		QuotaGovernor restored = new QuotaGovernor(List.of(Camera.kDefault), 5000, 10, 0, 1, 30, path, 0);
+		assertEquals(7, restored.getUsed());
+		assertEquals(3, restored.getStatus().tokens(), .1);
+	}
+
+	@Test
+	public void testCamerasShareFairly() {
+		QuotaGovernor governor = new QuotaGovernor(List.of(Camera.kDefault, "driveway"), 5000, 10, 0, 1, 30, null, 0);
+		// A busy camera only drains its own half of the bucket
+		for (int i = 0; i < 20; i++) {
+			governor.tryAcquire("driveway");
+		}
+		assertEquals(5, governor.getUsed());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(governor.tryAcquire(Camera.kDefault));
+		}
+		assertFalse(governor.tryAcquire(Camera.kDefault));
+		assertThrows(IllegalArgumentException.class, () -> governor.tryAcquire("garage"));
+	}
+}
@@ -0,0 +1,146 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class S3UploadServiceTest {
+	@Mock
+	private AmazonS3 s3Client;
+
+	@TempDir
+	File tempDir;
+
+	private File spool;
+
+	private File frame;
+
+	private S3UploadService uploadService;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		MockitoAnnotations.openMocks(this);
+		spool = new File(tempDir, "spool");
+		frame = new File(tempDir, "frame.jpg");
+		Files.write(frame.toPath(), "frame".getBytes());
+		uploadService = new S3UploadService(
+				s3Client, new PipelineMetrics(new SimpleMeterRegistry()), "bucket", 2, 8 * 1024 * 1024, 2, 1, spool.getPath(), 1024, 0);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		uploadService.shutdown();
+	}
+
+	@Test
+	public void testUploadDeletesAfterConfirm() throws Exception {
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+
+		assertTrue(uploadService.upload(frame, "Success/2024/01/frame.jpg").get(5, TimeUnit.SECONDS));
+
+		ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+		verify(s3Client).putObject(captor.capture());
+		assertEquals("Success/2024/01/frame.jpg", captor.getValue().getKey());
+		assertFalse(frame.exists());
+		assertEquals(1, uploadService.getStats().uploaded());
+	}
+
+	@Test
+	public void testRetryThenSpool() throws Exception {
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenThrow(new SdkClientException("offline"));
+
+		assertFalse(uploadService.upload(frame, "Failure/2024/01/frame.jpg").get(5, TimeUnit.SECONDS));
+
+		verify(s3Client, times(2)).putObject(any(PutObjectRequest.class));
+		assertFalse(frame.exists());
+		assertEquals(1, uploadService.getStats().spooled());
+		assertEquals(5, uploadService.getStats().spoolBytes());
+
+		reset(s3Client);
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+		uploadService.drainSpool();
+
+		ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+		verify(s3Client).putObject(captor.capture());
+		assertEquals("Failure/2024/01/frame.jpg", captor.getValue().getKey());
+		assertEquals(0, uploadService.getStats().spooled());
+		assertEquals(0, uploadService.getStats().spoolBytes());
+	}
+
+	@Test
+	public void testSpoolFullLeavesFile() throws Exception {
+		Files.write(frame.toPath(), new byte[2048]);
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenThrow(new SdkClientException("offline"));
+
+		assertFalse(uploadService.upload(frame, "Failure/2024/01/frame.jpg").get(5, TimeUnit.SECONDS));
+		assertTrue(frame.exists());
+		assertEquals(0, uploadService.getStats().spooled());
+	}
+
+	@Test
+	public void testBackoffDoesNotHoldUploadThread() throws Exception {
+		uploadService.shutdown();
+		uploadService = new S3UploadService(
+				s3Client, new PipelineMetrics(new SimpleMeterRegistry()), "bucket", 1, 8 * 1024 * 1024, 2, 60000, spool.getPath(), 1024, 0);
+		File other = new File(tempDir, "other.jpg");
+		Files.write(other.toPath(), "other".getBytes());
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenAnswer(theInvocation -> {
+			if (theInvocation.<PutObjectRequest>getArgument(0).getKey().startsWith("Failure/")) {
+				throw new SdkClientException("offline");
+			}
+			return new PutObjectResult();
+		});
+
+		// The only upload thread is free while the first upload waits out its minute of backoff
+		CompletableFuture<Boolean> failing = uploadService.upload(frame, "Failure/2024/01/frame.jpg");
+		assertTrue(uploadService.upload(other, "Success/2024/01/other.jpg").get(5, TimeUnit.SECONDS));
+		assertFalse(failing.isDone());
+		assertTrue(frame.exists());
+	}
+
+	@Test
+	public void testShutdownSpools() throws Exception {
+		uploadService.shutdown();
+		uploadService = new S3UploadService(
+				s3Client, new PipelineMetrics(new SimpleMeterRegistry()), "bucket", 1, 8 * 1024 * 1024, 2, 60000, spool.getPath(), 1024, 0);
+		when(s3Client.putObject(any(PutObjectRequest.class))).thenThrow(new SdkClientException("offline"));
+
+		// Waiting out its backoff when the service shuts down
+		CompletableFuture<Boolean> retrying = uploadService.upload(frame, "Failure/2024/01/frame.jpg");
+		verify(s3Client, timeout(5000)).putObject(any(PutObjectRequest.class));
+		uploadService.shutdown();
+		assertFalse(retrying.get(5, TimeUnit.SECONDS));
+		assertFalse(frame.exists());
+
+		// Submitted after it shut down
+		File late = new File(tempDir, "late.jpg");
+		Files.write(late.toPath(), "late".getBytes());
+		assertFalse(uploadService.upload(late, "Failure/2024/01/late.jpg").get(5, TimeUnit.SECONDS));
+		assertFalse(late.exists());
+		assertEquals(2, uploadService.getStats().spooled());
+		assertEquals(9, uploadService.getStats().spoolBytes());
+
+		// Picked up again after a restart
+		uploadService = new S3UploadService(
+				s3Client, new PipelineMetrics(new SimpleMeterRegistry()), "bucket", 1, 8 * 1024 * 1024, 2, 1, spool.getPath(), 1024, 0);
+		assertEquals(2, uploadService.getStats().spooled());
+		assertEquals(9, uploadService.getStats().spoolBytes());
+	}
+}
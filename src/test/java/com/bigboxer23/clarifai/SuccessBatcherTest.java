@@ -0,0 +1,118 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SuccessBatcherTest {
+	private final Camera frontDoor = new Camera(Camera.kDefault, "/tmp/", "People", .75, "", "", "", "", "Motion");
+
+	private final Camera driveway =
+			new Camera("driveway", "/tmp/driveway/", "Cars", .5, "Driveway/", "", "", "", "Driveway Motion");
+
+	@Test
+	public void testFirstSuccessNotifiesThenDebounces() throws Exception {
+		List<List<File>> batches = Collections.synchronizedList(new ArrayList<>());
+		List<Boolean> notifications = Collections.synchronizedList(new ArrayList<>());
+		SuccessBatcher batcher = new SuccessBatcher(
+				(camera, files, notify) -> {
+					batches.add(files);
+					notifications.add(notify);
+				},
+				200,
+				10);
+		batcher.add(frontDoor, new File("1.jpg"));
+		assertEquals(List.of(List.of(new File("1.jpg"))), batches);
+		assertEquals(List.of(true), notifications);
+
+		batcher.add(frontDoor, new File("2.jpg"));
+		Thread.sleep(100);
+		batcher.add(frontDoor, new File("3.jpg"));
+		assertEquals(2, batcher.getPending());
+		Thread.sleep(400);
+		assertEquals(List.of(new File("2.jpg"), new File("3.jpg")), batches.get(1));
+		assertEquals(false, notifications.get(1));
+		assertEquals(0, batcher.getPending());
+		batcher.shutdown();
+	}
+
+	@Test
+	public void testFlushOnSize() {
+		List<List<File>> batches = Collections.synchronizedList(new ArrayList<>());
+		SuccessBatcher batcher = new SuccessBatcher((camera, files, notify) -> batches.add(files), 60000, 3);
+		for (int i = 0; i < 7; i++) {
+			batcher.add(frontDoor, new File(i + ".jpg"));
+		}
+		// first goes out on its own with the notification, then two full batches
+		assertEquals(3, batches.size());
+		assertEquals(List.of(new File("4.jpg"), new File("5.jpg"), new File("6.jpg")), batches.get(2));
+		assertEquals(0, batcher.getPending());
+		batcher.shutdown();
+	}
+
+	@Test
+	public void testCamerasNotifiedSeparately() {
+		List<Camera> notified = Collections.synchronizedList(new ArrayList<>());
+		SuccessBatcher batcher = new SuccessBatcher(
+				(camera, files, notify) -> {
+					if (notify) {
+						notified.add(camera);
+					}
+				},
+				60000,
+				10);
+		batcher.add(frontDoor, new File("1.jpg"));
+		batcher.add(driveway, new File("2.jpg"));
+		batcher.add(frontDoor, new File("3.jpg"));
+		assertEquals(List.of(frontDoor, driveway), notified);
+		assertEquals(1, batcher.getPending());
+		batcher.shutdown();
+	}
+
+	@Test
+	public void testConcurrentDeliveryExactlyOnce() throws Exception {
+		int threads = 16;
+		int perThread = 5000;
+		Map<File, AtomicInteger> delivered = new ConcurrentHashMap<>();
+		SuccessBatcher batcher = new SuccessBatcher(
+				(camera, files, notify) -> files.forEach(file -> delivered
+						.computeIfAbsent(file, key -> new AtomicInteger())
+						.incrementAndGet()),
+				2,
+				17);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			executor.execute(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < perThread; i++) {
+					batcher.add(frontDoor, new File(thread + "-" + i + ".jpg"));
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		batcher.shutdown();
+
+		assertEquals(threads * perThread, delivered.size());
+		delivered.forEach((file, count) -> assertEquals(1, count.get(), file + " delivered " + count + " times"));
+	}
+}
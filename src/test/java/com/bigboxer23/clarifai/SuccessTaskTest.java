@@ -3,9 +3,9 @@ package com.bigboxer23.clarifai;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
-import java.net.URL;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.*;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -17,41 +17,41 @@ public class SuccessTaskTest {
 	@Mock
 	private AnalysisManager analysisManager;
 
-	@Mock
-	private AnalysisController analysisController;
-
 	private List<File> mockFiles;
 
+	private final Camera camera =
+			new Camera("driveway", "/tmp/", "Cars", .5, "Driveway/", "", "", "", "Driveway Motion");
+
 	@BeforeEach
 	public void setup() {
 		MockitoAnnotations.openMocks(this);
 		mockFiles = List.of(new File("/tmp/test.jpg"));
-		successTask = new SuccessTask(mockFiles, true, analysisManager, analysisController);
+		successTask = new SuccessTask(camera, mockFiles, true, analysisManager);
 	}
 
 	@Test
 	public void testRun_Success() {
-		Optional<URL> mockUrl = Optional.of(mock(URL.class));
+		Optional<String> key = Optional.of("Driveway/Success/2026/10/test.jpg");
 
-		when(analysisManager.moveToS3(any(File.class), anyString())).thenReturn(mockUrl);
+		when(analysisManager.moveToS3(any(File.class), anyString()))
+				.thenReturn(CompletableFuture.completedFuture(key));
 
 		successTask.run();
 
-		verify(analysisManager).sendGmail(mockFiles);
-		verify(analysisManager).sendAfterStored(mockUrl);
-		verify(analysisManager).deleteFile(any(File.class));
-		verify(analysisController).clearBatchedFiles();
+		verify(analysisManager).sendGmail(camera, mockFiles);
+		verify(analysisManager).cache(camera, mockFiles.get(0));
+		verify(analysisManager).sendAfterStored(camera, mockFiles.get(0), key);
+		verify(analysisManager).moveToS3(any(File.class), eq("Driveway/Success/"));
 	}
 
 	@Test
 	public void testRun_NoFiles() {
-		successTask = new SuccessTask(List.of(), true, analysisManager, analysisController);
-		doNothing().when(analysisManager).sendGmail(anyList());
+		successTask = new SuccessTask(camera, List.of(), true, analysisManager);
+		doNothing().when(analysisManager).sendGmail(any(), anyList());
 
 		successTask.run();
-		verify(analysisManager, atMostOnce()).sendGmail(anyList());
-		verify(analysisManager, never()).sendAfterStored(any());
-		verify(analysisManager, never()).deleteFile(any());
-		verify(analysisController, atMostOnce()).clearBatchedFiles();
+		verify(analysisManager, atMostOnce()).sendGmail(any(), anyList());
+		verify(analysisManager, never()).sendAfterStored(any(), any(), any());
+		verify(analysisManager, never()).moveToS3(any(), any());
 	}
 }
@@ -0,0 +1,97 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clarifai.grpc.api.Concept;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class VerdictCacheTest {
+	@TempDir
+	File tempDir;
+
+	private BufferedImage scene(int theBoxX, Color theBoxColor) {
+		BufferedImage image = new BufferedImage(960, 720, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setPaint(new java.awt.GradientPaint(0, 0, Color.DARK_GRAY, 960, 720, Color.LIGHT_GRAY));
+		graphics.fillRect(0, 0, 960, 720);
+		graphics.setColor(theBoxColor);
+		graphics.fillRect(theBoxX, 200, 200, 300);
+		graphics.dispose();
+		return image;
+	}
+
+	private static final List<Concept> kPerson =
+			List.of(Concept.newBuilder().setName("people").setValue(.9f).build());
+
+	private static final List<Concept> kEmpty =
+			List.of(Concept.newBuilder().setName("people").setValue(.1f).build());
+
+	@Test
+	public void testHashNearIdenticalFrames() throws Exception {
+		File first = new File(tempDir, "first.jpg");
+		File second = new File(tempDir, "second.jpg");
+		File different = new File(tempDir, "different.jpg");
+		ImageIO.write(scene(100, Color.WHITE), "jpg", first);
+		ImageIO.write(scene(104, Color.WHITE), "jpg", second);
+		ImageIO.write(scene(700, Color.BLACK), "jpg", different);
+
+		long firstHash = PerceptualHash.dHash(FrameScorer.decode(first));
+		assertTrue(PerceptualHash.distance(firstHash, PerceptualHash.dHash(FrameScorer.decode(second))) <= 5);
+		assertTrue(PerceptualHash.distance(firstHash, PerceptualHash.dHash(FrameScorer.decode(different))) > 5);
+	}
+
+	@Test
+	public void testLookupWithinDistance() {
+		VerdictCache cache = new VerdictCache(true, 2, 10, 60);
+		cache.put(Camera.kDefault, 0b1111L, kPerson);
+		assertEquals(Optional.of(kPerson), cache.lookup(Camera.kDefault, 0b1100L));
+		assertEquals(Optional.empty(), cache.lookup(Camera.kDefault, 0b11110000L));
+		assertEquals(1, cache.getStats().hits());
+		assertEquals(1, cache.getStats().misses());
+	}
+
+	@Test
+	public void testCamerasDontShareVerdicts() {
+		VerdictCache cache = new VerdictCache(true, 2, 10, 60);
+		cache.put("driveway", 0b1111L, kPerson);
+		assertEquals(Optional.empty(), cache.lookup(Camera.kDefault, 0b1111L));
+		assertEquals(Optional.of(kPerson), cache.lookup("driveway", 0b1111L));
+	}
+
+	@Test
+	public void testClosestEntryWins() {
+		VerdictCache cache = new VerdictCache(true, 3, 10, 60);
+		cache.put(Camera.kDefault, 0b0111L, kEmpty);
+		cache.put(Camera.kDefault, 0b1111L, kPerson);
+		assertEquals(Optional.of(kPerson), cache.lookup(Camera.kDefault, 0b1111L));
+		assertEquals(Optional.of(kEmpty), cache.lookup(Camera.kDefault, 0b0011L));
+	}
+
+	@Test
+	public void testLruEviction() {
+		VerdictCache cache = new VerdictCache(true, 0, 2, 60);
+		cache.put(Camera.kDefault, 1L, kPerson);
+		cache.put(Camera.kDefault, 2L, kPerson);
+		cache.lookup(Camera.kDefault, 1L); // 1 is now most recently used
+		cache.put(Camera.kDefault, 4L, kPerson);
+		assertTrue(cache.lookup(Camera.kDefault, 1L).isPresent());
+		assertTrue(cache.lookup(Camera.kDefault, 2L).isEmpty());
+		assertEquals(2, cache.getStats().size());
+	}
+
+	@Test
+	public void testExpiry() {
+		VerdictCache cache = new VerdictCache(true, 0, 10, -1);
+		cache.put(Camera.kDefault, 1L, kPerson);
+		assertTrue(cache.lookup(Camera.kDefault, 1L).isEmpty());
+		assertEquals(0, cache.getStats().size());
+	}
+}
@@ -0,0 +1,154 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class WebhookDispatcherTest {
+	private HttpServer server;
+
+	private WebhookDispatcher dispatcher;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	private final AtomicInteger maxRunning = new AtomicInteger();
+
+	/** Status the server answers the first {@code failures} requests with */
+	private volatile int failingStatus;
+
+	private volatile int failures;
+
+	private volatile long delay;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", theExchange -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException theE) {
+				Thread.currentThread().interrupt();
+			}
+			int status = requests.incrementAndGet() <= failures ? failingStatus : 200;
+			running.decrementAndGet();
+			theExchange.sendResponseHeaders(status, -1);
+			theExchange.close();
+		});
+		server.start();
+		dispatcher = dispatcher(3, 5, 60);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		dispatcher.shutdown();
+		server.stop(0);
+	}
+
+	private WebhookDispatcher dispatcher(int theAttempts, int theBreakerFailures, long theCooldown) {
+		return new WebhookDispatcher(
+				new PipelineMetrics(new SimpleMeterRegistry()),
+				2,
+				1000,
+				theAttempts,
+				10,
+				theBreakerFailures,
+				theCooldown);
+	}
+
+	private String url(String thePath) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + thePath;
+	}
+
+	private static void waitFor(BooleanSupplier theCondition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!theCondition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(theCondition.getAsBoolean());
+	}
+
+	@Test
+	public void testCoalescesDuplicates() throws Exception {
+		dispatcher.get(url("/notify"));
+		dispatcher.get(url("/notify"));
+		dispatcher.post(url("/notify"));
+		waitFor(() -> dispatcher.getStats().sent() == 2);
+		assertEquals(2, requests.get());
+		assertEquals(1, dispatcher.getStats().coalesced());
+	}
+
+	@Test
+	public void testDuplicatesDoNotExtendWindow() throws Exception {
+		dispatcher.get(url("/notify"));
+		Thread.sleep(600);
+		dispatcher.get(url("/notify"));
+		Thread.sleep(600);
+		// A second after the first call, however recent the duplicate
+		dispatcher.get(url("/notify"));
+		waitFor(() -> dispatcher.getStats().sent() == 2);
+		assertEquals(1, dispatcher.getStats().coalesced());
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws Exception {
+		failingStatus = 503;
+		failures = 2;
+		dispatcher.get(url("/notify"));
+		waitFor(() -> dispatcher.getStats().sent() == 1);
+		assertEquals(3, requests.get());
+		assertEquals(2, dispatcher.getStats().retries());
+	}
+
+	@Test
+	public void testDoesNotRetryClientErrors() throws Exception {
+		failingStatus = 404;
+		failures = 1;
+		dispatcher.get(url("/notify"));
+		waitFor(() -> dispatcher.getStats().failed() == 1);
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testLimitsCallsPerTarget() throws Exception {
+		delay = 100;
+		for (int i = 0; i < 6; i++) {
+			dispatcher.post(url("/stored?" + i));
+		}
+		waitFor(() -> dispatcher.getStats().sent() == 6);
+		assertEquals(2, maxRunning.get());
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		dispatcher.shutdown();
+		dispatcher = dispatcher(1, 2, 1);
+		failingStatus = 500;
+		failures = 2;
+		dispatcher.get(url("/1"));
+		waitFor(() -> dispatcher.getStats().failed() == 1);
+		dispatcher.get(url("/2"));
+		waitFor(() -> dispatcher.getStats().openCircuits() == 1);
+		dispatcher.get(url("/3"));
+		assertEquals(1, dispatcher.getStats().shortCircuited());
+		assertEquals(2, requests.get());
+
+		// After the cooldown a trial call goes through and closes the circuit
+		Thread.sleep(1100);
+		dispatcher.get(url("/4"));
+		waitFor(() -> dispatcher.getStats().sent() == 1);
+		assertEquals(0, dispatcher.getStats().openCircuits());
+	}
+}
@@ -0,0 +1,109 @@
+package com.bigboxer23.clarifai;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WorkJournalTest {
+	@TempDir
+	File tempDir;
+
+	private WorkJournal journal(long compactBytes) throws Exception {
+		return new WorkJournal(true, new File(tempDir, "work.log").getPath(), compactBytes, 1000);
+	}
+
+	/** Record up to theStage then "crash" by opening a new journal without shutting the old one down */
+	private Map<String, WorkJournal.Stage> crashAfter(File frame, WorkJournal.Stage... stages) throws Exception {
+		WorkJournal before = journal(1024 * 1024);
+		for (WorkJournal.Stage stage : stages) {
+			before.record(stage, frame).join();
+		}
+		return journal(1024 * 1024).getRecovered();
+	}
+
+	@Test
+	public void testCrashAtEveryStage() throws Exception {
+		File frame = new File(tempDir, "frame.jpg");
+		WorkJournal.Stage[][] paths = {
+			{WorkJournal.Stage.RECEIVED},
+			{WorkJournal.Stage.RECEIVED, WorkJournal.Stage.ANALYZED_SUCCESS},
+			{WorkJournal.Stage.RECEIVED, WorkJournal.Stage.ANALYZED_FAILURE},
+			{WorkJournal.Stage.RECEIVED, WorkJournal.Stage.ANALYZED_SUCCESS, WorkJournal.Stage.NOTIFIED},
+			{
+				WorkJournal.Stage.RECEIVED,
+				WorkJournal.Stage.ANALYZED_SUCCESS,
+				WorkJournal.Stage.NOTIFIED,
+				WorkJournal.Stage.UPLOADED
+			}
+		};
+		for (WorkJournal.Stage[] path : paths) {
+			new File(tempDir, "work.log").delete();
+			Map<String, WorkJournal.Stage> recovered = crashAfter(frame, path);
+			assertEquals(Map.of(frame.getAbsolutePath(), path[path.length - 1]), recovered);
+		}
+		new File(tempDir, "work.log").delete();
+		assertTrue(crashAfter(
+						frame,
+						WorkJournal.Stage.RECEIVED,
+						WorkJournal.Stage.ANALYZED_FAILURE,
+						WorkJournal.Stage.UPLOADED,
+						WorkJournal.Stage.DELETED)
+				.isEmpty());
+	}
+
+	@Test
+	public void testTornAndCorruptRecordsIgnored() throws Exception {
+		File first = new File(tempDir, "first.jpg");
+		File second = new File(tempDir, "second.jpg");
+		WorkJournal before = journal(1024 * 1024);
+		before.record(WorkJournal.Stage.RECEIVED, first).join();
+		before.record(WorkJournal.Stage.RECEIVED, second).join();
+		File log = new File(tempDir, "work.log");
+		String contents = Files.readString(log.toPath(), StandardCharsets.UTF_8);
+		// change the last byte of the second record's path, then leave a torn write after it
+		String corrupted = contents.substring(0, contents.length() - 2) + "X\n" + "0badc0de RECEIV";
+		Files.writeString(log.toPath(), corrupted, StandardCharsets.UTF_8);
+
+		Map<String, WorkJournal.Stage> recovered = journal(1024 * 1024).getRecovered();
+		assertEquals(Map.of(first.getAbsolutePath(), WorkJournal.Stage.RECEIVED), recovered);
+
+		Files.writeString(
+				log.toPath(), contents + "0badc0de RECEIV", StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
+		assertEquals(2, journal(1024 * 1024).getRecovered().size());
+	}
+
+	@Test
+	public void testCompactionKeepsUnfinishedFrames() throws Exception {
+		WorkJournal journal = journal(512);
+		File kept = new File(tempDir, "kept.jpg");
+		journal.record(WorkJournal.Stage.RECEIVED, kept).join();
+		for (int i = 0; i < 50; i++) {
+			File done = new File(tempDir, "done" + i + ".jpg");
+			journal.record(WorkJournal.Stage.RECEIVED, done);
+			journal.record(WorkJournal.Stage.UPLOADED, done);
+			journal.record(WorkJournal.Stage.DELETED, done).join();
+		}
+		journal.record(WorkJournal.Stage.NOTIFIED, kept).join();
+		journal.shutdown();
+		assertTrue(new File(tempDir, "work.log").length() < 50 * 3 * 40);
+		assertEquals(
+				Map.of(kept.getAbsolutePath(), WorkJournal.Stage.NOTIFIED),
+				journal(512).getRecovered());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		WorkJournal journal = new WorkJournal(false, null, 0, 0);
+		assertTrue(journal.record(WorkJournal.Stage.RECEIVED, new File(tempDir, "frame.jpg"))
+				.isDone());
+		journal.recordAndWait(WorkJournal.Stage.RECEIVED, new File(tempDir, "frame.jpg"));
+		assertTrue(journal.getRecovered().isEmpty());
+		journal.shutdown();
+	}
+}